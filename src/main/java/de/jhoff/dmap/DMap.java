@@ -3,36 +3,122 @@ package de.jhoff.dmap;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel.MapMode;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import de.jhoff.dmap.codec.Codec;
+import de.jhoff.dmap.codec.Codecs;
 import de.jhoff.dmap.util.CompressionUtils;
 import de.jhoff.dmap.util.ExtendedFileChannel;
 import gnu.trove.impl.Constants;
 import gnu.trove.map.hash.TObjectIntHashMap;
-import org.iq80.snappy.Snappy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.jhoff.dmap.util.BloomFilter;
 import de.jhoff.dmap.util.ByteArray;
 import de.jhoff.dmap.util.ByteArrayUtils;
-import de.jhoff.dmap.util.map.CachingHashMap;
+import de.jhoff.dmap.util.LookupExecutors;
+import de.jhoff.dmap.util.MappedSegments;
+import de.jhoff.dmap.util.MappedWindow;
+import de.jhoff.dmap.util.map.CacheStats;
+import de.jhoff.dmap.util.map.SegmentedLruCache;
+import de.jhoff.dmap.util.XxHash64;
 
 /**
  * Disk-backed implementation of a very simple Map that supports only
  */
 public class DMap {
-  public static final int VERSION = 4;
+  public static final int VERSION = 6;
+
+  /** Oldest file version that can still be read. */
+  private static final int MIN_SUPPORTED_VERSION = 4;
+
+  /** First version with sorted block trailers that carry an entry position table. */
+  private static final int SORTED_TRAILER_VERSION = 5;
+
+  /** First version with a feature flags field in the header. */
+  private static final int FLAGS_VERSION = 6;
+
+  /** Flag: block trailers carry a Bloom filter over the block's keys. */
+  static final int FLAG_BLOOM_FILTERS = 1;
+
+  /** Flag: the file has a minimal perfect hash index section. */
+  static final int FLAG_PERFECT_HASH_INDEX = 2;
+
+  /** Flag: keys are sorted in {@link KeyOrder#LEXICOGRAPHIC} order instead of {@link KeyOrder#LENGTH_FIRST}. */
+  static final int FLAG_LEXICOGRAPHIC_KEY_ORDER = 4;
+
+  /** Flag: each block is compressed as a whole, the values in it are not compressed individually. */
+  static final int FLAG_BLOCK_COMPRESSION = 8;
+
+  /** Flag: the header is followed by a dictionary the values are compressed with (empty if there is none). */
+  static final int FLAG_DICTIONARY = 16;
+
+  /** Flag: block trailers have front-coded keys, see {@link FrontCodedTrailer}. */
+  static final int FLAG_FRONT_CODED_TRAILERS = 32;
+
+  /** Flag: the file has an open-addressing hash index section, see {@link HashIndex}. */
+  static final int FLAG_HASH_INDEX = 64;
+
+  /** Flag: block trailers store the 64-bit hash of each key. */
+  static final int FLAG_KEY_HASHES = 128;
+
+  /** All flags this version can read. */
+  private static final int SUPPORTED_FLAGS = FLAG_BLOOM_FILTERS | FLAG_PERFECT_HASH_INDEX 
+      | FLAG_LEXICOGRAPHIC_KEY_ORDER | FLAG_BLOCK_COMPRESSION | FLAG_DICTIONARY | FLAG_FRONT_CODED_TRAILERS 
+      | FLAG_HASH_INDEX | FLAG_KEY_HASHES;
 
   private static final int DEFAULT_BLOCK_CACHE_COUNT = 250;
 
+  /** Size of the buffer for reading the header. */
+  private static final int READ_BUFFER_SIZE = 1 << 16;
+
+  /** Size of the window the global trailer and preloaded trailers are mapped in. */
+  private static final int MAPPED_WINDOW_SIZE = 1 << 26;
+
+  /** Default size of the segments the file is mapped in, see {@link Builder#mapFileInSegments()}. */
+  public static final int DEFAULT_SEGMENT_SIZE = 1 << 30;
+
+  /** Maximum size of a global trailer entry without the key: two vlongs and a vint. */
+  private static final int MAX_DIRECTORY_ENTRY_HEADER_SIZE = 9 + 9 + 5;
+
+  /** Minimum number of keys per task when a batch lookup runs in a fork-join pool. */
+  private static final int PARALLEL_BATCH_THRESHOLD = 256;
+
+  /** Number of entries follows the version. */
+  protected static final int DEFAULT_LOC_FOR_SIZE = 4;
+
   /** Current Map file generated by Builder has Global trailer offset at 13. */
   protected static final int DEFAULT_LOC_FOR_TRAILER_OFFSET = 13;
 
+  /** Offset of the index section follows the flags, if there is one. */
+  protected static final int DEFAULT_LOC_FOR_INDEX_OFFSET = 25;
+
   /** Map file with data. */
   private final File mapFile_;
+
+  /** Format version of the map file. */
+  private final int version_;
+
+  /** Feature flags of the map file. */
+  private final int flags_;
+
+  /** Order of the keys in the map file. */
+  private final KeyOrder keyOrder_;
   private final ExtendedFileChannel raf_;
 
   /** Number of entries in the map. */
@@ -44,21 +130,45 @@ public class DMap {
   /** Indicates if the values are compressed */
   private final boolean valuesCompressed;
 
+  /** Codec of the compressed values or blocks. */
+  private final Codec codec_;
+
   /** Maximum number of blocks that can are held in memory when value blocks are held on disk. */
   private final int cacheBlockCount_;
 
   /** First Key - Mapped block pair. */
-  private final Map<ByteArray, MappedByteBuffer>  cachedByteBuffers_;
+  private final SegmentedLruCache<ByteArray, MappedByteBuffer> cachedByteBuffers_;
+
+  /** Mapped and loaded block of each block, in block order, null unless all values are preloaded. */
+  private MappedByteBuffer[] preloadedBlocks_;
+
+  /** Indicates if the blocks are compressed as a whole (with codec_) */
+  private final boolean blocksCompressed_;
+
+  /** First Key - Decompressed block pair (only with block compression). */
+  private final SegmentedLruCache<ByteArray, ByteBuffer> decompressedBlocks_;
 
-  /** Mapping of first key of block to block's start offset. */
-  private final Map<ByteArray, Long> firstKeyInBlock_;
+  /** Start offset of each block, in block order. */
+  private long[] blockStarts_;
 
-  /** Mapping of block start offset to block trailer offset. */
-  private final Map<Long, Long> blockOffsetInfo_;
+  /** Start offset of each block's trailer, in block order. */
+  private long[] blockTrailerStarts_;
 
   /** Flag to enable/disable preloading of key offset pairs. */
   private final boolean preloadAllKeyOffsets;
 
+  /** Indicates if the block trailers are front-coded. */
+  private final boolean frontCodedTrailers_;
+
+  /** Indicates if the block trailers store the hash of each key. */
+  private final boolean keyHashes_;
+
+  /** Size of the key hash that precedes each entry of a sorted trailer, 0 if there is none. */
+  private final int entryHashSize_;
+
+  /** Load the mapped trailers into memory instead of preloading the key offset pairs. */
+  private final boolean loadTrailers_;
+
   /** Flag to enable/disable preloading of all the values. */
   private final boolean preloadAllValues;
   
@@ -68,61 +178,139 @@ public class DMap {
   /** Trove Map no Entry value (default: -1) */
   private final int troveNoEntryValue = -1;
 
-  /** Mapping of BlockTrailer Start offset and block trailer mapped bytebuffer of trailer. */
-  private final Map<Long, MappedByteBuffer> blockTrailerBuffer_;
+  /** Mapped block trailer of each block, in block order, mapped on first use (only without offset preloading). */
+  private AtomicReferenceArray<ByteBuffer> blockTrailerBuffers_;
+
+  /** Bloom filter of each block, in block order, read on first use (only without offset preloading). */
+  private AtomicReferenceArray<BloomFilter> blockFilters_;
+
+  /** Blocks and trailers mapped as a few large segments, null if each is mapped on its own. */
+  private MappedSegments segments_;
+
+  /** Perfect hash index of the file, null if there is none. */
+  private PerfectHashIndex perfectHashIndex_;
+
+  /** Hash index of the file, null if there is none. */
+  private HashIndex hashIndex_;
+
+  /** All key-offset pairs contained in the trailer of each block, in block order. */
+  private TObjectIntHashMap<ByteArray>[] blockTrailerKeys;
+
+  /** Start offset of the global trailer, which follows the trailer of the last block. */
+  private final long globalTrailerOffset_;
 
-  /** Mapping of BlockTrailer start offset and all key-offset pairs info contained in the trailer. */
-  private final Map<Long, TObjectIntHashMap<ByteArray>> blockTrailerKeys;
+  /** Number of entries before each block and in total, computed on first use. */
+  private volatile long[] entriesBeforeBlock_;
 
   /** First keys of all the blocks present in the dmap loaded once. */
   private ByteArray[] firstKeys;
 
+  /** Runs the lookups of the asynchronous API that may block on disk reads. */
+  private final Executor lookupExecutor_;
+
+  /** Per-thread buffers for decompressing values without allocating. */
+  private final ThreadLocal<ScratchBuffers> scratchBuffers_ = new ThreadLocal<ScratchBuffers>() {
+    @Override
+    protected ScratchBuffers initialValue() {
+      return new ScratchBuffers();
+    }
+  };
+
   private final Logger logger_ = LoggerFactory.getLogger(DMap.class);
 
   private DMap(Builder loader) throws IOException {
     mapFile_ = loader.mapFile_;
-    preloadAllKeyOffsets = loader.preloadOffsets_;
     preloadAllValues = loader.preloadValues_;
     cacheBlockCount_ = loader.cacheBlockSize_;
+    lookupExecutor_ = loader.lookupExecutor_ != null ? loader.lookupExecutor_ : LookupExecutors.getDefault();
 
-    raf_ = new ExtendedFileChannel(new RandomAccessFile(mapFile_, "r").getChannel());
+    // buffered, the global trailer is read sequentially while loading
+    raf_ = new ExtendedFileChannel(new RandomAccessFile(mapFile_, "r").getChannel(), 
+        READ_BUFFER_SIZE, ExtendedFileChannel.Durability.NONE);
 
-    int version = raf_.readInt();
-    if(version != VERSION) {
+    version_ = raf_.readInt();
+    if(version_ < MIN_SUPPORTED_VERSION || version_ > VERSION) {
       throw new IOException("Invalid version of DMap file encountered. Please fix.");
     }
 
-    // Sorted first keys
-    firstKeyInBlock_ = new TreeMap<>();
-    blockOffsetInfo_ = new HashMap<>();
-    blockTrailerBuffer_ = new HashMap<>();
-    blockTrailerKeys = new HashMap<>();
-
     size = raf_.readInt();
     blockSize = raf_.readInt();
-    valuesCompressed = raf_.readBool();
+    int codecId = raf_.readByte();
+    long indexOffset = 0;
+    globalTrailerOffset_ = raf_.readLong();
+    if (version_ >= FLAGS_VERSION) {
+      flags_ = raf_.readInt();
+      if ((flags_ & ~SUPPORTED_FLAGS) != 0) {
+        throw new IOException("Unsupported features in DMap file encountered (flags: " + flags_ + ").");
+      }
+      if ((flags_ & (FLAG_PERFECT_HASH_INDEX | FLAG_HASH_INDEX)) != 0) {
+        indexOffset = raf_.readLong();
+      }
+    } else {
+      flags_ = 0;
+    }
+    keyOrder_ = (flags_ & FLAG_LEXICOGRAPHIC_KEY_ORDER) != 0 ? KeyOrder.LEXICOGRAPHIC : KeyOrder.LENGTH_FIRST;
+    blocksCompressed_ = (flags_ & FLAG_BLOCK_COMPRESSION) != 0;
+    // older maps store a compressed flag, which is the id of the Snappy codec
+    Codec codec = Codecs.forId(codecId);
+    if ((flags_ & FLAG_DICTIONARY) != 0) {
+      byte[] dictionary = new byte[raf_.readInt()];
+      if (raf_.read(dictionary) < dictionary.length) {
+        throw new IOException("Truncated dictionary in DMap file.");
+      }
+      if (dictionary.length > 0) {
+        codec = codec.withDictionary(dictionary);
+      }
+    }
+    codec_ = codec;
+    valuesCompressed = !blocksCompressed_ && codec_ != Codecs.IDENTITY;
+    decompressedBlocks_ = new SegmentedLruCache<>(blocksCompressed_ ? loader.decompressedBlockCacheSize_ : 0);
+    frontCodedTrailers_ = (flags_ & FLAG_FRONT_CODED_TRAILERS) != 0;
+    keyHashes_ = (flags_ & FLAG_KEY_HASHES) != 0;
+    // front-coded trailers store the hashes in a separate table
+    entryHashSize_ = keyHashes_ && !frontCodedTrailers_ ? 8 : 0;
+    // the index needs the mapped trailers and makes preloaded offsets unnecessary
+    preloadAllKeyOffsets = loader.preloadOffsets_ && indexOffset == 0 && !frontCodedTrailers_;
+    // with front-coded trailers or an index, the trailers are searched in memory instead of copying all keys to the heap
+    loadTrailers_ = loader.preloadOffsets_ && !preloadAllKeyOffsets;
+    if (loader.preloadOffsets_ && !preloadAllKeyOffsets) {
+      logger_.debug("Not preloading offsets, keys are looked up in the " 
+          + (indexOffset != 0 ? "index." : "loaded front-coded trailers."));
+    }
     
     if (size == 0) {
-      cachedByteBuffers_ = new CachingHashMap<>(0);
+      cachedByteBuffers_ = new SegmentedLruCache<>(0);
+      initBlockDirectory(0);
       return;
     }
     
-    loadKeyDetails();
+    loadKeyDetails(indexOffset != 0 ? indexOffset : raf_.size(), loader.segmentSize_);
+    if (indexOffset != 0 && (flags_ & FLAG_HASH_INDEX) != 0) {
+      hashIndex_ = HashIndex.read(raf_, indexOffset, loader.preloadOffsets_);
+    } else if (indexOffset != 0) {
+      perfectHashIndex_ = PerfectHashIndex.read(raf_, indexOffset);
+    }
 
-    if (preloadAllValues) {
+    if (segments_ != null) {
+      // blocks are slices of the segments, the cache is not used
+      cachedByteBuffers_ = new SegmentedLruCache<>(0);
+      if (preloadAllValues) {
+        segments_.load();
+        logger_.debug("Preloaded all " + segments_.getSegmentCount() + " segments.");
+      }
+    } else if (preloadAllValues) {
       int numBlocks = getBlockCount();
-      // override the cacheBlockCount_
-      cachedByteBuffers_ = new CachingHashMap<>(numBlocks);
-      for(ByteArray firstKey : firstKeyInBlock_.keySet()) {
-        long blockStart = firstKeyInBlock_.get(firstKey);
-        long blockTrailerStart = blockOffsetInfo_.get(blockStart);
-        MappedByteBuffer mappedBuffer_ = raf_.map(MapMode.READ_ONLY, blockStart, blockTrailerStart - blockStart);
+      // held outside the cache, nothing may be evicted
+      cachedByteBuffers_ = new SegmentedLruCache<>(0);
+      preloadedBlocks_ = new MappedByteBuffer[numBlocks];
+      for(int block = 0; block < numBlocks; ++block) {
+        MappedByteBuffer mappedBuffer_ = mapBlock(block);
         mappedBuffer_.load();
-        cachedByteBuffers_.put(firstKey, mappedBuffer_);
+        preloadedBlocks_[block] = mappedBuffer_;
       }
       logger_.debug("Preloaded all " + numBlocks + " blocks.");
     } else
-      cachedByteBuffers_ = new CachingHashMap<>(cacheBlockCount_);
+      cachedByteBuffers_ = new SegmentedLruCache<>(cacheBlockCount_);
   }
 
   /*  This public Builder class allows creation of customized DMap instance.
@@ -132,6 +320,9 @@ public class DMap {
     private boolean preloadOffsets_;
     private boolean preloadValues_;
     private int cacheBlockSize_;
+    private int decompressedBlockCacheSize_;
+    private Executor lookupExecutor_;
+    private int segmentSize_;
     private final File mapFile_;
 
     /**
@@ -142,13 +333,16 @@ public class DMap {
     public Builder(File mapFile) {
       mapFile_ = mapFile;
       cacheBlockSize_ = DEFAULT_BLOCK_CACHE_COUNT;
+      decompressedBlockCacheSize_ = DEFAULT_BLOCK_CACHE_COUNT;
       // by default, both keyoffset loading and value loading will be disabled
       preloadOffsets_ = false;
       preloadValues_ = false;
     }
 
     /**
-     * This method enables key-offset preloading during DMap instantiation
+     * This method enables key-offset preloading during DMap instantiation. 
+     * Maps with an index or front-coded trailers load the mapped index and 
+     * trailers into memory instead of copying all keys onto the heap.
      *
      * @return The current Loader instance.
      */
@@ -168,7 +362,41 @@ public class DMap {
     }
 
     /**
-     * This method sets the DMap block limit to specified value
+     * This method maps the blocks and trailers of the file as a few segments
+     * of {@link DMap#DEFAULT_SEGMENT_SIZE} bytes when the DMap is opened,
+     * see {@link #mapFileInSegments(int)}.
+     *
+     * @return The current Loader instance.
+     */
+    public Builder mapFileInSegments() {
+      return mapFileInSegments(DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * This method maps the blocks and trailers of the file as a few large 
+     * segments when the DMap is opened, instead of mapping each block and 
+     * trailer on its own. Lookups then never create mappings, which keeps 
+     * large maps below the limit of mappings per process (vm.max_map_count 
+     * on Linux), and the block cache is only used for decompressed blocks.
+     * The segments take address space for the whole file, but only the 
+     * pages that are read take memory.
+     *
+     * @param segmentSize Maximum size of a segment, blocks larger than that
+     *  get a segment of their own.
+     * @return The current Loader instance.
+     */
+    public Builder mapFileInSegments(int segmentSize) {
+      if (segmentSize <= 0) {
+        throw new IllegalArgumentException("Segment size must be positive: " + segmentSize);
+      }
+      this.segmentSize_ = segmentSize;
+      return this;
+    }
+
+    /**
+     * This method sets the DMap block limit to specified value. Use
+     * {@link DMap#getBlockCacheStats()} to check whether the limit fits
+     * the access pattern.
      *
      * @return The current Loader instance.
      */
@@ -177,6 +405,33 @@ public class DMap {
       return this;
     }
 
+    /**
+     * This method sets the number of decompressed blocks held on the heap for
+     * maps written with block compression. Hot blocks are then decompressed 
+     * once instead of on every lookup. Use 
+     * {@link DMap#getDecompressedBlockCacheStats()} to check whether the limit 
+     * fits the access pattern.
+     *
+     * @return The current Loader instance.
+     */
+    public Builder setDecompressedBlockLimit(int value) {
+      this.decompressedBlockCacheSize_ = value;
+      return this;
+    }
+
+    /**
+     * This method sets the executor that runs the lookups of 
+     * {@link DMap#getAsync(byte[])} and {@link DMap#multiGetAsync(byte[][])} 
+     * which need to read from disk. By default, these run on virtual threads 
+     * if the runtime supports them and on a shared bounded pool otherwise.
+     *
+     * @return The current Loader instance.
+     */
+    public Builder setLookupExecutor(Executor executor) {
+      this.lookupExecutor_ = executor;
+      return this;
+    }
+
     /**
      * The parameter-less build method creates an instance of DMap.
      * This method needs to be called once all DMap customizations are done.
@@ -214,10 +469,58 @@ public class DMap {
    * @return Number of blocks in the map.
    * @throws IOException
    */
-  public synchronized int getBlockCount() throws IOException {
-    long trailerOffset = getGlobalTrailerOffset();
-    raf_.position(trailerOffset);
-    return raf_.readVInt();
+  public int getBlockCount() throws IOException {
+    return blockStarts_.length;
+  }
+
+  /**
+   * Get the heap memory used by the per-block Bloom filters. The filter of a
+   * block is loaded with its trailer on the first lookup in the block, and 
+   * only when offsets are not preloaded, preloaded offsets are looked up in 
+   * memory anyway.
+   * 
+   * @return Size of all loaded Bloom filters in bytes.
+   */
+  public long getBloomFilterMemoryUsage() {
+    long bytes = 0;
+    for (int block = 0; block < blockFilters_.length(); ++block) {
+      BloomFilter filter = blockFilters_.get(block);
+      if (filter != null) {
+        bytes += filter.sizeInBytes();
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Get the heap memory used by the perfect hash index. The hash index is
+   * only mapped and uses no heap.
+   * 
+   * @return Size of the index in bytes, 0 if the map has no index.
+   */
+  public long getIndexMemoryUsage() {
+    return perfectHashIndex_ != null ? perfectHashIndex_.sizeInBytes() : 0;
+  }
+
+  /**
+   * Get the hit, miss and eviction counters of the block cache. The cache
+   * is not used when the file is mapped in segments or all values are 
+   * preloaded.
+   *
+   * @return Snapshot of the block cache counters.
+   */
+  public CacheStats getBlockCacheStats() {
+    return cachedByteBuffers_.stats();
+  }
+
+  /**
+   * Get the hit and miss counts of the decompressed block cache, which is 
+   * only used for maps written with block compression.
+   * 
+   * @return  Statistics of the decompressed block cache.
+   */
+  public CacheStats getDecompressedBlockCacheStats() {
+    return decompressedBlocks_.stats();
   }
 
   /**
@@ -227,240 +530,1218 @@ public class DMap {
    * @return  byte[] associated with key.
    */
   public byte[] get(byte[] key) throws IOException {
-    if (size == 0)
+    long location = locate(key);
+    if (location < 0) {
       return null;
-    
-    ByteArray keyBytes = new ByteArray(key);
-    // logger_.debug("get(" + keyBytes + ") - hash: " + keyBytes.hashCode());
-    // identify the block containing the given key using first key information.
-    ByteArray firstKeyBytes = ByteArrayUtils.findMaxElementLessThanTarget(firstKeys, keyBytes);
+    }
+    int block = (int) (location >>> 32);
+    int valueOffset = (int) location;
 
-    if(firstKeyBytes == null) {
-      // key not in range (less than start key)
-      return null;
+    return readValue(getBlockBuffer(block), valueOffset);
+  }
+
+  /**
+   * Copy the value for key into dst, starting at its current position.
+   * 
+   * Unlike {@link #get(byte[])}, this does not allocate when the map is read 
+   * without offset preloading and the block is cached, so it can be used on 
+   * hot paths with a reused destination buffer.
+   * 
+   * @param key Key to retrieve the value for.
+   * @param dst Buffer to copy the value into, its position is advanced by the 
+   *  value length.
+   * @return  Length of the value, or -1 if key is not in the map.
+   * @throws BufferOverflowException if the value does not fit into dst. Nothing 
+   *  is copied in this case.
+   */
+  public int get(byte[] key, ByteBuffer dst) throws IOException {
+    long location = locate(key);
+    if (location < 0) {
+      return -1;
     }
+    int block = (int) (location >>> 32);
+    int valueOffset = (int) location;
 
-    MappedByteBuffer mappedBuffer;
-    long blockStart = firstKeyInBlock_.get(firstKeyBytes);
-    long blockTrailerStart = blockOffsetInfo_.get(blockStart);
-    // load the value offset
-    int valueOffset = getValueOffset(keyBytes, blockTrailerStart);
-    if (valueOffset == troveNoEntryValue) {
-      return null;
+    return readValue(getBlockBuffer(block), valueOffset, dst);
+  }
+
+  /**
+   * Get byte[] value for key without blocking the calling thread on disk reads.
+   * 
+   * If the block holding key is cached, the lookup runs on the calling thread 
+   * and the returned future is already complete. Otherwise it runs on the 
+   * lookup executor of the map.
+   * 
+   * @param key Key to retrieve the value for.
+   * @return  Future of the byte[] associated with key (null if key is not in 
+   *  the map). It completes exceptionally with a CompletionException wrapping
+   *  the IOException if the value cannot be read.
+   */
+  public CompletableFuture<byte[]> getAsync(final byte[] key) {
+    if (isBlockCached(key)) {
+      try {
+        return CompletableFuture.completedFuture(get(key));
+      } catch (IOException e) {
+        CompletableFuture<byte[]> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new CompletionException(e));
+        return failed;
+      }
     }
-    
-    mappedBuffer = cachedByteBuffers_.get(firstKeyBytes);
-    if(mappedBuffer == null) {
-      synchronized (cachedByteBuffers_) {
-        mappedBuffer = cachedByteBuffers_.get(firstKeyBytes);
-        if (mappedBuffer == null) {
-          mappedBuffer = raf_.map(MapMode.READ_ONLY, blockStart, blockTrailerStart - blockStart);
-          cachedByteBuffers_.put(firstKeyBytes, mappedBuffer);
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return get(key);
+      } catch (IOException e) {
+        throw new CompletionException(e);
+      }
+    }, lookupExecutor_);
+  }
+
+  /**
+   * Get the values for a batch of keys without blocking the calling thread 
+   * on disk reads, see {@link #multiGet(byte[][])}.
+   * 
+   * If the blocks holding all keys are cached, the lookup runs on the calling 
+   * thread and the returned future is already complete. Otherwise it runs on 
+   * the lookup executor of the map.
+   * 
+   * @param keys Keys to retrieve the values for.
+   * @return  Future of the value for each key (at the same index), null for 
+   *  keys that are not in the map. It completes exceptionally with a 
+   *  CompletionException wrapping the IOException if a value cannot be read.
+   */
+  public CompletableFuture<byte[][]> multiGetAsync(final byte[][] keys) {
+    boolean cached = true;
+    for (int i = 0; i < keys.length && cached; ++i) {
+      cached = isBlockCached(keys[i]);
+    }
+    if (cached) {
+      try {
+        return CompletableFuture.completedFuture(multiGet(keys));
+      } catch (IOException e) {
+        CompletableFuture<byte[][]> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new CompletionException(e));
+        return failed;
+      }
+    }
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return multiGet(keys);
+      } catch (IOException e) {
+        throw new CompletionException(e);
+      }
+    }, lookupExecutor_);
+  }
+
+  /*
+   * Checks whether a lookup of key can be answered without reading a block 
+   * that is not in the block cache.
+   */
+  boolean isBlockCached(byte[] key) {
+    int block = findBlock(key, 0);
+    if (block < 0) {
+      return true;
+    }
+    if (blocksCompressed_) {
+      return decompressedBlocks_.containsKey(firstKeys[block]);
+    }
+    if (preloadAllValues) {
+      return true;
+    }
+    // mapped segments are only known to be in memory if they were preloaded
+    return segments_ == null && cachedByteBuffers_.containsKey(firstKeys[block]);
+  }
+
+  /**
+   * Get the values for a batch of keys.
+   * 
+   * The keys are looked up in key order, so every block is searched and 
+   * fetched only once no matter how many of the keys it holds.
+   * 
+   * @param keys Keys to retrieve the values for.
+   * @return  The value for each key (at the same index), null for keys that 
+   *  are not in the map.
+   */
+  public byte[][] multiGet(byte[][] keys) throws IOException {
+    byte[][] values = new byte[keys.length][];
+    readValues(keys, sortedOrder(keys), 0, keys.length, values);
+    return values;
+  }
+
+  /**
+   * Get the values for a batch of keys, spreading large batches over the 
+   * given fork-join pool. Each task handles a contiguous range of keys in 
+   * key order, so the tasks mostly work on disjoint blocks.
+   * 
+   * @param keys Keys to retrieve the values for.
+   * @param pool Pool to run the lookups in.
+   * @return  The value for each key (at the same index), null for keys that 
+   *  are not in the map.
+   */
+  public byte[][] multiGet(byte[][] keys, ForkJoinPool pool) throws IOException {
+    byte[][] values = new byte[keys.length][];
+    Integer[] order = sortedOrder(keys);
+    if (keys.length < 2 * PARALLEL_BATCH_THRESHOLD) {
+      readValues(keys, order, 0, keys.length, values);
+      return values;
+    }
+    try {
+      pool.invoke(new MultiGetTask(keys, order, 0, keys.length, values));
+    } catch (MultiGetException e) {
+      throw e.getCause();
+    }
+    return values;
+  }
+
+  /**
+   * Copy the values for a batch of keys into dst, one after the other and in 
+   * the order of the keys, starting at the current position of dst.
+   * 
+   * The keys are looked up in key order, so every block is searched and 
+   * fetched only once no matter how many of the keys it holds.
+   * 
+   * @param keys Keys to retrieve the values for.
+   * @param dst Buffer to copy the values into, its position is advanced by 
+   *  the total length of the values.
+   * @param valueLengths Receives the length of the value for each key (at the 
+   *  same index), -1 for keys that are not in the map.
+   * @return  Total length of all values.
+   * @throws BufferOverflowException if the values do not fit into dst. Nothing 
+   *  is copied in this case.
+   */
+  public int multiGet(byte[][] keys, ByteBuffer dst, int[] valueLengths) throws IOException {
+    Integer[] order = sortedOrder(keys);
+    ByteBuffer[] blockBuffers = new ByteBuffer[keys.length];
+    int[] valueOffsets = new int[keys.length];
+    Arrays.fill(valueLengths, 0, keys.length, -1);
+    long totalLength = 0;
+    int block = -1;
+    ByteBuffer blockBuffer = null;
+    for (int k : order) {
+      long location = locate(keys[k], Math.max(block, 0));
+      if (location < 0) {
+        continue;
+      }
+      if ((int) (location >>> 32) != block) {
+        block = (int) (location >>> 32);
+        blockBuffer = getBlockBuffer(block);
+      }
+      blockBuffers[k] = blockBuffer;
+      valueOffsets[k] = (int) location;
+      valueLengths[k] = readValueLength(blockBuffer, (int) location);
+      totalLength += valueLengths[k];
+    }
+    if (totalLength > dst.remaining()) {
+      throw new BufferOverflowException();
+    }
+    for (int k = 0; k < keys.length; ++k) {
+      if (blockBuffers[k] != null) {
+        readValue(blockBuffers[k], valueOffsets[k], dst);
+      }
+    }
+    return (int) totalLength;
+  }
+
+  /*
+   * Returns the indexes of keys in key order.
+   */
+  private Integer[] sortedOrder(final byte[][] keys) {
+    Integer[] order = new Integer[keys.length];
+    for (int i = 0; i < keys.length; ++i) {
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return keyOrder_.compare(keys[a], keys[b]);
+      }
+    });
+    return order;
+  }
+
+  /*
+   * Reads the values for the keys at order[from] to order[to-1], which are in 
+   * key order. Consecutive keys in the same block share the block lookup.
+   */
+  private void readValues(byte[][] keys, Integer[] order, int from, int to, byte[][] values) throws IOException {
+    int block = -1;
+    ByteBuffer blockBuffer = null;
+    for (int i = from; i < to; ++i) {
+      int k = order[i];
+      // keys are sorted, so the block can only be the current one or a later one
+      long location = locate(keys[k], Math.max(block, 0));
+      if (location < 0) {
+        continue;
+      }
+      if ((int) (location >>> 32) != block) {
+        block = (int) (location >>> 32);
+        blockBuffer = getBlockBuffer(block);
+      }
+      values[k] = readValue(blockBuffer, (int) location);
+    }
+  }
+
+  private class MultiGetTask extends RecursiveAction {
+    private static final long serialVersionUID = -2871935626479716355L;
+
+    private final byte[][] keys_;
+    private final Integer[] order_;
+    private final int from_;
+    private final int to_;
+    private final byte[][] values_;
+
+    private MultiGetTask(byte[][] keys, Integer[] order, int from, int to, byte[][] values) {
+      keys_ = keys;
+      order_ = order;
+      from_ = from;
+      to_ = to;
+      values_ = values;
+    }
+
+    @Override
+    protected void compute() {
+      if (to_ - from_ < 2 * PARALLEL_BATCH_THRESHOLD) {
+        try {
+          readValues(keys_, order_, from_, to_, values_);
+        } catch (IOException e) {
+          throw new MultiGetException(e);
         }
+      } else {
+        int mid = (from_ + to_) >>> 1;
+        invokeAll(new MultiGetTask(keys_, order_, from_, mid, values_),
+            new MultiGetTask(keys_, order_, mid, to_, values_));
       }
     }
-    
-    ByteBuffer slice = mappedBuffer.slice();
+  }
+
+  /**
+   * Carries an IOException out of a fork-join task.
+   */
+  private static class MultiGetException extends RuntimeException {
+    private static final long serialVersionUID = 4158806484938525347L;
+
+    private MultiGetException(IOException cause) {
+      super(cause);
+    }
+
+    @Override
+    public synchronized IOException getCause() {
+      return (IOException) super.getCause();
+    }
+  }
+
+  /*
+   * Reads the value stored at valueOffset in the block.
+   */
+  private byte[] readValue(ByteBuffer blockBuffer, int valueOffset) throws IOException {
+    ByteBuffer slice = blockBuffer.slice();
     slice.position(valueOffset);
     int valueLength = CompressionUtils.readVInt(slice);
     byte[] value = new byte[valueLength];
     slice.get(value);
     if (valuesCompressed)
-      value = Snappy.uncompress(value, 0, value.length);
+      value = codec_.decompress(value, 0, value.length);
     return value;
   }
 
+  /*
+   * Returns the (uncompressed) length of the value stored at valueOffset in the block.
+   */
+  private int readValueLength(ByteBuffer blockBuffer, int valueOffset) throws IOException {
+    int valueLength = CompressionUtils.readVInt(blockBuffer, valueOffset);
+    if (!valuesCompressed) {
+      return valueLength;
+    }
+    int position = valueOffset + CompressionUtils.decodeVNumSize(blockBuffer.get(valueOffset));
+    return codec_.getUncompressedLength(blockBuffer, position, valueLength);
+  }
+
+  /*
+   * Copies the value stored at valueOffset in the block into dst.
+   */
+  private int readValue(ByteBuffer blockBuffer, int valueOffset, ByteBuffer dst) throws IOException {
+    int valueLength = CompressionUtils.readVInt(blockBuffer, valueOffset);
+    int valueStart = valueOffset + CompressionUtils.decodeVNumSize(blockBuffer.get(valueOffset));
+    if (!valuesCompressed) {
+      if (valueLength > dst.remaining()) {
+        throw new BufferOverflowException();
+      }
+      ByteArrayUtils.copy(blockBuffer, valueStart, dst, valueLength);
+      return valueLength;
+    }
+
+    // the length is read from the mapped block, before anything is copied
+    int uncompressedLength = codec_.getUncompressedLength(blockBuffer, valueStart, valueLength);
+    if (uncompressedLength > dst.remaining()) {
+      throw new BufferOverflowException();
+    }
+    ScratchBuffers scratch = scratchBuffers_.get();
+    byte[] compressed = scratch.compressed(valueLength);
+    ByteArrayUtils.copy(blockBuffer, valueStart, compressed, valueLength);
+    if (dst.hasArray()) {
+      codec_.decompress(compressed, 0, valueLength, dst.array(), dst.arrayOffset() + dst.position());
+      dst.position(dst.position() + uncompressedLength);
+    } else {
+      byte[] uncompressed = scratch.uncompressed(uncompressedLength);
+      codec_.decompress(compressed, 0, valueLength, uncompressed, 0);
+      dst.put(uncompressed, 0, uncompressedLength);
+    }
+    return uncompressedLength;
+  }
+
+  /**
+   * Get a read-only view of the value for key.
+   * 
+   * For uncompressed maps the view points directly into the mapped block, 
+   * no value bytes are copied. With block compression it points into the 
+   * decompressed block. For maps with compressed values the view wraps the 
+   * decompressed value.
+   * 
+   * @param key Key to retrieve the value for.
+   * @return  Read-only buffer holding exactly the value, or null if key is 
+   *  not in the map.
+   */
+  public ByteBuffer getView(byte[] key) throws IOException {
+    if (valuesCompressed) {
+      byte[] value = get(key);
+      return value != null ? ByteBuffer.wrap(value).asReadOnlyBuffer() : null;
+    }
+    long location = locate(key);
+    if (location < 0) {
+      return null;
+    }
+    int block = (int) (location >>> 32);
+    int valueOffset = (int) location;
+
+    ByteBuffer view = getBlockBuffer(block).asReadOnlyBuffer();
+    int valueLength = CompressionUtils.readVInt(view, valueOffset);
+    int valueStart = valueOffset + CompressionUtils.decodeVNumSize(view.get(valueOffset));
+    view.limit(valueStart + valueLength);
+    view.position(valueStart);
+    return view.slice();
+  }
+
+  /*
+   * Returns the block of key in the upper and the offset of its value in the 
+   * lower 32 bits, or -1 if key is not in the map.
+   */
+  private long locate(byte[] key) throws IOException {
+    return locate(key, 0);
+  }
+
+  /*
+   * Same as locate(byte[]), but only considers blocks starting with fromBlock
+   * when searching the blocks.
+   */
+  private long locate(byte[] key, int fromBlock) throws IOException {
+    if (size == 0) {
+      return -1;
+    }
+    if (perfectHashIndex_ != null) {
+      long hash = XxHash64.hash(key);
+      long entry = perfectHashIndex_.lookup(hash);
+      if (entry == PerfectHashIndex.NOT_FOUND) {
+        return -1;
+      } else if (entry != PerfectHashIndex.COLLISION) {
+        int block = (int) (entry >>> 32);
+        int valueOffset = readValueOffset(key, hash, block, (int) entry);
+        return valueOffset == troveNoEntryValue ? -1 : ((long) block << 32) | valueOffset;
+      }
+      // several keys share the hash, fall back to the regular lookup
+    }
+    if (hashIndex_ != null) {
+      long hash = XxHash64.hash(key);
+      for (int slot = hashIndex_.firstSlot(hash); ; slot = hashIndex_.nextSlot(slot)) {
+        long entry = hashIndex_.get(slot, hash);
+        if (entry == HashIndex.EMPTY) {
+          return -1;
+        } else if (entry != HashIndex.OTHER_HASH) {
+          int block = (int) (entry >>> 32);
+          int valueOffset = readValueOffset(key, hash, block, (int) entry);
+          if (valueOffset != troveNoEntryValue) {
+            return ((long) block << 32) | valueOffset;
+          }
+          // a different key with the same hash
+        }
+      }
+    }
+    int block = findBlock(key, fromBlock);
+    if (block < 0) {
+      return -1;
+    }
+    int valueOffset = getValueOffset(key, block);
+    return valueOffset == troveNoEntryValue ? -1 : ((long) block << 32) | valueOffset;
+  }
+
+  /*
+   * Returns the index of the block that may contain key, -1 if key is out of range.
+   */
+  private int findBlock(byte[] key, int fromBlock) {
+    if (size == 0) {
+      return -1;
+    }
+    // identify the block containing the given key using first key information.
+    return ByteArrayUtils.findMaxElementIndexLessThanTarget(firstKeys, fromBlock, key, keyOrder_);
+  }
+
+  /*
+   * Returns the block with the values, decompressed if blocks are compressed.
+   */
+  private ByteBuffer getBlockBuffer(int block) throws IOException {
+    if (!blocksCompressed_) {
+      return getMappedBlock(block);
+    }
+    ByteArray firstKeyBytes = firstKeys[block];
+    ByteBuffer blockBuffer = decompressedBlocks_.get(firstKeyBytes);
+    if (blockBuffer == null) {
+      ByteBuffer compressedBuffer = getMappedBlock(block);
+      int compressedLength = compressedBuffer.limit();
+      byte[] compressed = scratchBuffers_.get().compressed(compressedLength);
+      ByteArrayUtils.copy(compressedBuffer, 0, compressed, compressedLength);
+      blockBuffer = ByteBuffer.wrap(codec_.decompress(compressed, 0, compressedLength));
+      ByteBuffer cachedBuffer = decompressedBlocks_.putIfAbsent(firstKeyBytes, blockBuffer);
+      if (cachedBuffer != null) {
+        blockBuffer = cachedBuffer;
+      }
+    }
+    return blockBuffer;
+  }
+
+  private ByteBuffer getMappedBlock(int block) throws IOException {
+    if (segments_ != null) {
+      long blockStart = blockStarts_[block];
+      return segments_.slice(blockStart, (int) (blockTrailerStarts_[block] - blockStart));
+    }
+    if (preloadedBlocks_ != null) {
+      return preloadedBlocks_[block];
+    }
+    ByteArray firstKeyBytes = firstKeys[block];
+    MappedByteBuffer mappedBuffer = cachedByteBuffers_.get(firstKeyBytes);
+    if(mappedBuffer == null) {
+      // mapping the same block twice in a race is harmless, only one of them is kept
+      mappedBuffer = mapBlock(block);
+      MappedByteBuffer cachedBuffer = cachedByteBuffers_.putIfAbsent(firstKeyBytes, mappedBuffer);
+      if (cachedBuffer != null) {
+        mappedBuffer = cachedBuffer;
+      }
+    }
+    return mappedBuffer;
+  }
+
+  private MappedByteBuffer mapBlock(int block) throws IOException {
+    long blockStart = blockStarts_[block];
+    return raf_.map(MapMode.READ_ONLY, blockStart, blockTrailerStarts_[block] - blockStart);
+  }
+
   /* NOTE:
    *
-   *    When Offset preloading is disabled, this method does a linear search over all the keys in the given block
-   * to find the matching key and retrieve the value offset associated with the key.
+   *    When Offset preloading is disabled, this method searches the mapped block trailer to find the matching key
+   * and retrieve the value offset associated with the key. Keys are compared in place, without copying them out of
+   * the mapped trailer. Trailers are sorted since version 5 and are binary-searched, older trailers are scanned
+   * linearly.
    *    Searching single block DMap contaning N keys will be slower than Searching M-Blocks DMap with each block containing
    *    a subset of key.
    */
-  private int getValueOffset(ByteArray keyBytes, Long blockTrailerStartOffset) throws IOException {
+  private int getValueOffset(byte[] key, int block) throws IOException {
     int valueOffset = troveNoEntryValue;
     if(!preloadAllKeyOffsets) {
-      // time for linear search over the keys in block using mappedTrailer
-      ByteBuffer trailerBuffer = blockTrailerBuffer_.get(blockTrailerStartOffset).slice();
-      // load key count - int
-      int numKeysInBlock = CompressionUtils.readVInt(trailerBuffer);
-
-      // start search over keys
-      for(int count=0; count<numKeysInBlock; count++) {
-        int keyLen = CompressionUtils.readVInt(trailerBuffer);
-        byte[] currentkey = new byte[keyLen];
-        trailerBuffer.get(currentkey);
-        ByteArray currentKeyBytes = new ByteArray(currentkey);
-        int offset = CompressionUtils.readVInt(trailerBuffer);
-        // logger_.debug("Comparing " + keyBytes + " and " + currentKeyBytes + " : " + keyBytes.compareTo(currentKeyBytes));
-        if(keyBytes.compareTo(currentKeyBytes) == 0) {
-          valueOffset = offset;
-          break;
-        }
+      if (blockFilters_.length() > 0 && !getBloomFilter(block).mightContain(XxHash64.hash(key))) {
+        return troveNoEntryValue;
+      }
+      ByteBuffer trailerBuffer = getTrailerBuffer(block);
+      if (frontCodedTrailers_) {
+        valueOffset = scratchBuffers_.get().cursor(trailerBuffer).find(key, keyOrder_);
+      } else if (version_ >= SORTED_TRAILER_VERSION) {
+        valueOffset = searchSortedTrailer(key, trailerBuffer);
+      } else {
+        valueOffset = scanTrailer(key, trailerBuffer);
       }
     } else {
       // just look up in the existing map
-      TObjectIntHashMap tmpMap = blockTrailerKeys.get(blockTrailerStartOffset);
+      TObjectIntHashMap<ByteArray> tmpMap = blockTrailerKeys[block];
       if(tmpMap != null) {
-        valueOffset = tmpMap.get(keyBytes);
+        valueOffset = tmpMap.get(new ByteArray(key));
       }
     }
     return valueOffset;
   }
 
-  private long getGlobalTrailerOffset() throws IOException {
-    raf_.position(DEFAULT_LOC_FOR_TRAILER_OFFSET);
-    return raf_.readLong();
+  /*
+   * Binary search over the entry position table of a sorted trailer.
+   */
+  private int searchSortedTrailer(byte[] key, ByteBuffer trailerBuffer) {
+    int low = 0;
+    int high = trailerBuffer.getInt(0) - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int position = trailerBuffer.getInt(4 + 4 * mid) + entryHashSize_;
+      int keyLen = CompressionUtils.readVInt(trailerBuffer, position);
+      position += CompressionUtils.decodeVNumSize(trailerBuffer.get(position));
+      int cmp = keyOrder_.compare(key, trailerBuffer, position, keyLen);
+      if (cmp == 0) {
+        return CompressionUtils.readVInt(trailerBuffer, position + keyLen);
+      } else if (cmp < 0) {
+        high = mid - 1;
+      } else {
+        low = mid + 1;
+      }
+    }
+    return troveNoEntryValue;
   }
 
-  private void processBlockTrailer(long trailerStartOffset, long trailerSize) throws IOException {
-    MappedByteBuffer trailerBuffer = raf_.map(MapMode.READ_ONLY, trailerStartOffset, trailerSize);
-    if(!preloadAllKeyOffsets) {
-      blockTrailerBuffer_.put(trailerStartOffset, trailerBuffer);
-    } else {
-      int numKeysInBlock = CompressionUtils.readVInt(trailerBuffer);
-      TObjectIntHashMap<ByteArray> tmpKeyOffsetMap = 
-        new TObjectIntHashMap<>((int) (numKeysInBlock/troveLoadFactor+0.5), troveLoadFactor, troveNoEntryValue);
-      for(int count=0; count<numKeysInBlock; count++) {
-        int keyLen = CompressionUtils.readVInt(trailerBuffer);
-        byte[] currentkey = new byte[keyLen];
-        trailerBuffer.get(currentkey);
-        ByteArray currentKeyBytes = new ByteArray(currentkey);
-        int offset = CompressionUtils.readVInt(trailerBuffer);
-        tmpKeyOffsetMap.put(currentKeyBytes, offset);
+  /*
+   * Returns the value offset of the trailer entry an index refers to if it 
+   * belongs to key. Stored hashes are compared before the key bytes.
+   */
+  private int readValueOffset(byte[] key, long hash, int block, int entry) throws IOException {
+    ByteBuffer trailerBuffer = getTrailerBuffer(block);
+    if (frontCodedTrailers_) {
+      FrontCodedTrailer.Cursor cursor = scratchBuffers_.get().cursor(trailerBuffer);
+      if (keyHashes_ && cursor.hash(entry) != hash) {
+        return troveNoEntryValue;
+      }
+      return cursor.find(key, entry, keyOrder_);
+    }
+    if (keyHashes_ && trailerBuffer.getLong(entry) != hash) {
+      return troveNoEntryValue;
+    }
+    return readValueOffset(key, trailerBuffer, entry + entryHashSize_);
+  }
+
+  /*
+   * Returns the value offset of the trailer entry at the given position if
+   * it belongs to key.
+   */
+  private int readValueOffset(byte[] key, ByteBuffer trailerBuffer, int position) {
+    int keyLen = CompressionUtils.readVInt(trailerBuffer, position);
+    position += CompressionUtils.decodeVNumSize(trailerBuffer.get(position));
+    if (keyLen != key.length || !ByteArrayUtils.equals(trailerBuffer, position, key)) {
+      return troveNoEntryValue;
+    }
+    return CompressionUtils.readVInt(trailerBuffer, position + keyLen);
+  }
+
+  /*
+   * Linear search over an unsorted (version 4) trailer.
+   */
+  private int scanTrailer(byte[] key, ByteBuffer trailerBuffer) {
+    int position = 0;
+    // load key count - int
+    int numKeysInBlock = CompressionUtils.readVInt(trailerBuffer, position);
+    position += CompressionUtils.decodeVNumSize(trailerBuffer.get(position));
+
+    // start search over keys
+    for(int count=0; count<numKeysInBlock; count++) {
+      int keyLen = CompressionUtils.readVInt(trailerBuffer, position);
+      position += CompressionUtils.decodeVNumSize(trailerBuffer.get(position));
+      boolean found = keyLen == key.length && ByteArrayUtils.equals(trailerBuffer, position, key);
+      position += keyLen;
+      if(found) {
+        return CompressionUtils.readVInt(trailerBuffer, position);
       }
-      blockTrailerKeys.put(trailerStartOffset, tmpKeyOffsetMap);
+      position += CompressionUtils.decodeVNumSize(trailerBuffer.get(position));
+    }
+    return troveNoEntryValue;
+  }
+
+  /*
+   * Reads the number of entries in the trailer and moves the buffer's 
+   * position to the first entry.
+   */
+  private int readTrailerHeader(ByteBuffer trailerBuffer) {
+    if (version_ >= SORTED_TRAILER_VERSION) {
+      int numKeysInBlock = trailerBuffer.getInt();
+      // skip the entry position table
+      trailerBuffer.position(trailerBuffer.position() + 4 * numKeysInBlock);
+      if ((flags_ & FLAG_BLOOM_FILTERS) != 0) {
+        BloomFilter.skip(trailerBuffer);
+      }
+      return numKeysInBlock;
+    } else {
+      return CompressionUtils.readVInt(trailerBuffer);
     }
   }
 
-  private void loadKeyDetails() throws IOException {
-    int numBlocks = getBlockCount();
+  /*
+   * Copies the key-offset pairs of a trailer onto the heap.
+   */
+  private void preloadBlockTrailer(int block, ByteBuffer trailerBuffer) {
+    int numKeysInBlock = readTrailerHeader(trailerBuffer);
+    TObjectIntHashMap<ByteArray> tmpKeyOffsetMap = 
+      new TObjectIntHashMap<>((int) (numKeysInBlock/troveLoadFactor+0.5), troveLoadFactor, troveNoEntryValue);
+    for(int count=0; count<numKeysInBlock; count++) {
+      long hash = keyHashes_ ? trailerBuffer.getLong() : 0;
+      int keyLen = CompressionUtils.readVInt(trailerBuffer);
+      byte[] currentkey = new byte[keyLen];
+      trailerBuffer.get(currentkey);
+      // with stored hashes, the key is not hashed again
+      ByteArray currentKeyBytes = keyHashes_ ? new ByteArray(currentkey, hash) : new ByteArray(currentkey);
+      int offset = CompressionUtils.readVInt(trailerBuffer);
+      tmpKeyOffsetMap.put(currentKeyBytes, offset);
+    }
+    blockTrailerKeys[block] = tmpKeyOffsetMap;
+  }
+
+  /*
+   * Builds the block directory from the global trailer, which is mapped and 
+   * decoded in a single pass. Block trailers are only mapped here if they 
+   * are preloaded, otherwise on first use.
+   */
+  private void loadKeyDetails(long globalTrailerEnd, int segmentSize) throws IOException {
+    MappedWindow globalTrailer = new MappedWindow(raf_, globalTrailerEnd, MAPPED_WINDOW_SIZE);
+    long position = globalTrailerOffset_;
+    ByteBuffer buffer = globalTrailer.at(position, 5);
+    int numBlocks = CompressionUtils.readVInt(buffer);
+    position += CompressionUtils.getVNumSize(numBlocks);
     logger_.debug("Number of blocks in file : " + numBlocks);
-    long blockStart;
-    long blockTrailerStart;
-    long prevBlockTrailerStart = -1;
 
+    initBlockDirectory(numBlocks);
+    // blocks are stored in key order, so the first keys are sorted for binary search during get()
     for(int blockCount = 0; blockCount < numBlocks; ++blockCount) {
-      blockStart = raf_.readVLong();
-      blockTrailerStart = raf_.readVLong();
-      int firstKeySize = raf_.readVInt();
+      buffer = globalTrailer.at(position, MAX_DIRECTORY_ENTRY_HEADER_SIZE);
+      int start = buffer.position();
+      blockStarts_[blockCount] = CompressionUtils.readVLong(buffer);
+      blockTrailerStarts_[blockCount] = CompressionUtils.readVLong(buffer);
+      int firstKeySize = CompressionUtils.readVInt(buffer);
+      position += buffer.position() - start;
       byte[] firstKeyBytes = new byte[firstKeySize];
-      raf_.read(firstKeyBytes);
-      firstKeyInBlock_.put(new ByteArray(firstKeyBytes), blockStart);
-      blockOffsetInfo_.put(blockStart, blockTrailerStart);
-      if(blockCount > 0) {
-        // compute the previous block's trailer size and store the information
-        processBlockTrailer(prevBlockTrailerStart, blockStart - prevBlockTrailerStart);
+      globalTrailer.at(position, firstKeySize).get(firstKeyBytes);
+      position += firstKeySize;
+      firstKeys[blockCount] = new ByteArray(firstKeyBytes);
+    }
+
+    if (segmentSize > 0 && numBlocks > 0) {
+      segments_ = new MappedSegments(raf_, blockStarts_, globalTrailerOffset_, segmentSize);
+      logger_.debug("Mapped " + numBlocks + " blocks as " + segments_.getSegmentCount() + " segments.");
+    }
+
+    if (preloadAllKeyOffsets) {
+      // trailers are read in file order through a window, or sliced from the segments
+      MappedWindow trailers = new MappedWindow(raf_, globalTrailerOffset_, MAPPED_WINDOW_SIZE);
+      for (int block = 0; block < numBlocks; ++block) {
+        preloadBlockTrailer(block, segments_ != null ? getTrailerBuffer(block)
+            : trailers.slice(blockTrailerStarts_[block], getTrailerSize(block)));
+      }
+    } else if (loadTrailers_ && segments_ != null) {
+      for (int block = 0; block < numBlocks; ++block) {
+        getBloomFilter(block);
+        segments_.load(blockTrailerStarts_[block], getTrailerSize(block));
+      }
+    } else if (loadTrailers_) {
+      for (int block = 0; block < numBlocks; ++block) {
+        getBloomFilter(block);
+        ((MappedByteBuffer) getTrailerBuffer(block)).load();
       }
-      prevBlockTrailerStart = blockTrailerStart;
     }
-    processBlockTrailer(prevBlockTrailerStart, getGlobalTrailerOffset()-prevBlockTrailerStart);
+  }
 
-    // load all the first keys for binary search during get()
-    firstKeys = new ByteArray[firstKeyInBlock_.size()];
-    firstKeyInBlock_.keySet().toArray(firstKeys);
+  private void initBlockDirectory(int numBlocks) {
+    firstKeys = new ByteArray[numBlocks];
+    blockStarts_ = new long[numBlocks];
+    blockTrailerStarts_ = new long[numBlocks];
+    if (preloadAllKeyOffsets) {
+      blockTrailerKeys = newKeyOffsetMaps(numBlocks);
+      blockTrailerBuffers_ = new AtomicReferenceArray<>(0);
+      blockFilters_ = new AtomicReferenceArray<>(0);
+    } else {
+      blockTrailerKeys = newKeyOffsetMaps(0);
+      blockTrailerBuffers_ = new AtomicReferenceArray<>(numBlocks);
+      blockFilters_ = new AtomicReferenceArray<>((flags_ & FLAG_BLOOM_FILTERS) != 0 ? numBlocks : 0);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static TObjectIntHashMap<ByteArray>[] newKeyOffsetMaps(int count) {
+    return (TObjectIntHashMap<ByteArray>[]) new TObjectIntHashMap<?>[count];
+  }
+
+  /*
+   * Returns the Bloom filter of the block, reading it from the trailer on 
+   * first use.
+   */
+  private BloomFilter getBloomFilter(int block) throws IOException {
+    BloomFilter filter = blockFilters_.get(block);
+    if (filter == null) {
+      ByteBuffer filterBuffer = getTrailerBuffer(block).duplicate();
+      // filter follows the entry count and the entry position table (or the fixed-width fields)
+      filterBuffer.position(frontCodedTrailers_ ? FrontCodedTrailer.FILTER_POSITION : 4 + 4 * filterBuffer.getInt(0));
+      filter = BloomFilter.readFrom(filterBuffer);
+      // racing threads read the same filter, only one of them is kept
+      if (!blockFilters_.compareAndSet(block, null, filter)) {
+        filter = blockFilters_.get(block);
+      }
+    }
+    return filter;
   }
 
   /**
-   * This method returns an iterator for this DMap with 
-   * different implementations for different preload settings.
+   * This method returns an iterator over all entries of this DMap in key 
+   * order. It walks the blocks in file order and decodes each block trailer 
+   * and the values in one sequential pass, without looking up the keys.
    * 
    * These iterators are NOT thread save.
    * 
    * @return an iterator for the current dmap
    */
   public EntryIterator entryIterator() {
-    if (preloadAllKeyOffsets)
-      return new EntryIteratorForPreloadedKeys();
-    else 
-      return new EntryIteratorWithoutPreloading();
+    return new ScanIterator(null, null, false, true);
   }
 
-  private class EntryIteratorWithoutPreloading implements EntryIterator {
-    Iterator<MappedByteBuffer> blockIterator_;
-    ByteBuffer curBuffer_;
-    int curBlockKeyNum_;
-    int curKey_;
-    
-    private EntryIteratorWithoutPreloading() {
-      blockIterator_ = blockTrailerBuffer_.values().iterator();
-      if (blockIterator_.hasNext()) {
-        curBuffer_ = blockIterator_.next().slice();
-        curBlockKeyNum_ = CompressionUtils.readVInt(curBuffer_);
-      } else {
-        curBuffer_ = null;
-        curBlockKeyNum_ = 0;
+  /**
+   * Same as {@link #entryIterator()}, but if reuseEntry is set, next() 
+   * always returns the same Entry object, and its key and value arrays are 
+   * reused as well whenever they have the right size. The arrays are only 
+   * valid until the next call to next(). This avoids most allocation when 
+   * iterating over large maps.
+   * 
+   * @param reuseEntry Whether to reuse the Entry returned by next().
+   * @return an iterator for the current dmap
+   */
+  public EntryIterator entryIterator(boolean reuseEntry) {
+    return new ScanIterator(null, null, reuseEntry, true);
+  }
+
+  /**
+   * This method returns an iterator over all keys of this DMap in key order. 
+   * Only the block trailers are read, not the values.
+   * 
+   * These iterators are NOT thread save.
+   * 
+   * @return an iterator over the keys of the current dmap
+   */
+  public KeyIterator keyIterator() {
+    final ScanIterator entries = new ScanIterator(null, null, false, false);
+    return new KeyIterator() {
+      @Override
+      public boolean hasNext() throws IOException {
+        return entries.hasNext();
+      }
+
+      @Override
+      public byte[] next() throws IOException {
+        Entry entry = entries.next();
+        return entry != null ? entry.getKey() : null;
+      }
+    };
+  }
+
+  /**
+   * Returns a sequential stream over all entries of this DMap in key order.
+   * IOExceptions while reading are thrown as UncheckedIOException.
+   * 
+   * @return  A stream of the entries.
+   */
+  public Stream<Entry> stream() {
+    return StreamSupport.stream(new EntrySpliterator(0, blockStarts_.length), false);
+  }
+
+  /**
+   * Returns a parallel stream over all entries of this DMap. The entries are 
+   * split on block boundaries, so each worker decodes its own blocks.
+   * IOExceptions while reading are thrown as UncheckedIOException.
+   * 
+   * @return  A parallel stream of the entries.
+   */
+  public Stream<Entry> parallelStream() {
+    return StreamSupport.stream(new EntrySpliterator(0, blockStarts_.length), true);
+  }
+
+  /*
+   * Returns the number of entries in the blocks before block.
+   */
+  private long getEntriesBeforeBlock(int block) throws IOException {
+    long[] entriesBeforeBlock = entriesBeforeBlock_;
+    if (entriesBeforeBlock == null) {
+      // racing threads compute the same counts
+      entriesBeforeBlock = new long[blockStarts_.length + 1];
+      for (int b = 0; b < blockStarts_.length; ++b) {
+        entriesBeforeBlock[b + 1] = entriesBeforeBlock[b] + getBlockEntryCount(b);
       }
-      curKey_ = 0;
+      entriesBeforeBlock_ = entriesBeforeBlock;
+    }
+    return entriesBeforeBlock[block];
+  }
+
+  private int getBlockEntryCount(int block) throws IOException {
+    if (blockTrailerKeys.length > 0) {
+      return blockTrailerKeys[block].size();
+    }
+    ByteBuffer trailer = getTrailerBuffer(block);
+    return version_ >= SORTED_TRAILER_VERSION ? trailer.getInt(0) : CompressionUtils.readVInt(trailer, 0);
+  }
+
+  /*
+   * Spliterator over the entries of a range of blocks. It splits off the first
+   * half of its blocks as long as it has not started to traverse them.
+   */
+  private class EntrySpliterator implements Spliterator<Entry> {
+    private int startBlock_;
+    private final int endBlock_;
+    private ScanIterator entries_;
+
+    private EntrySpliterator(int startBlock, int endBlock) {
+      startBlock_ = startBlock;
+      endBlock_ = endBlock;
     }
 
     @Override
-    public boolean hasNext() {
-      return curKey_ < curBlockKeyNum_ || blockIterator_.hasNext();
+    public boolean tryAdvance(Consumer<? super Entry> action) {
+      try {
+        if (entries_ == null) {
+          entries_ = new ScanIterator(null, null, false, true, startBlock_, endBlock_);
+        }
+        if (!entries_.hasNext()) {
+          return false;
+        }
+        action.accept(entries_.next());
+        return true;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
     }
 
     @Override
-    public Entry next() throws IOException {
-      // TODO: make it more efficient if necessary
-      if (curKey_++ < curBlockKeyNum_) {
-        int keyLen = CompressionUtils.readVInt(curBuffer_);
-        byte[] key = new byte[keyLen];
-        curBuffer_.get(key);
-        CompressionUtils.readVInt(curBuffer_);   // skip offset
-        return new Entry(key, get(key));
-      } else if (blockIterator_.hasNext()) {
-        curBuffer_ = blockIterator_.next().slice();
-        curBlockKeyNum_ = CompressionUtils.readVInt(curBuffer_);
-        curKey_ = 0;
-        return next();
-      } else 
+    public Spliterator<Entry> trySplit() {
+      if (entries_ != null || endBlock_ - startBlock_ < 2) {
         return null;
+      }
+      int mid = (startBlock_ + endBlock_) >>> 1;
+      EntrySpliterator prefix = new EntrySpliterator(startBlock_, mid);
+      startBlock_ = mid;
+      return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+      try {
+        return getEntriesBeforeBlock(endBlock_) - getEntriesBeforeBlock(startBlock_);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    @Override
+    public int characteristics() {
+      return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
     }
   }
 
-  private class EntryIteratorForPreloadedKeys implements EntryIterator {
-    Iterator<TObjectIntHashMap<ByteArray>> blockIterator_;
-    Iterator<ByteArray> keyIterator_;
-    Entry nextEntry;
-    
-    private EntryIteratorForPreloadedKeys() {
-      blockIterator_ = blockTrailerKeys.values().iterator();
-      if (blockIterator_.hasNext()) {
-        keyIterator_ = blockIterator_.next().keySet().iterator();
-      } else
-        keyIterator_ = null;
-      nextEntry = null;
+  /**
+   * Get the codec the values or blocks of the map are compressed with.
+   * 
+   * @return  Codec of the map, {@link Codecs#IDENTITY} for uncompressed maps.
+   */
+  public Codec getCodec() {
+    return codec_;
+  }
+
+  /**
+   * Get the order of the keys in the map, which is the order of scans.
+   * 
+   * @return  Order of the keys.
+   */
+  public KeyOrder getKeyOrder() {
+    return keyOrder_;
+  }
+
+  /**
+   * Returns an iterator over the entries with fromKey <= key < toKey, in 
+   * key order (see {@link #getKeyOrder()}). The iterator searches the first 
+   * block and trailer entry once and then streams forward through the blocks.
+   * 
+   * This iterator is NOT thread save.
+   * 
+   * @param fromKey Inclusive lower bound, null to start at the first key.
+   * @param toKey Exclusive upper bound, null to scan to the last key.
+   * @return  An iterator over the entries in the range.
+   */
+  public EntryIterator scan(byte[] fromKey, byte[] toKey) {
+    return new ScanIterator(fromKey, toKey, false, true);
+  }
+
+  /**
+   * Returns an iterator over the entries whose keys start with prefix, in 
+   * key order. Only maps with {@link KeyOrder#LEXICOGRAPHIC} key order keep 
+   * these entries together.
+   * 
+   * This iterator is NOT thread save.
+   * 
+   * @param prefix Prefix of the keys.
+   * @return  An iterator over the entries with the prefix.
+   * @throws UnsupportedOperationException if the map is not in lexicographic 
+   *  key order.
+   */
+  public EntryIterator prefixScan(byte[] prefix) {
+    if (keyOrder_ != KeyOrder.LEXICOGRAPHIC) {
+      throw new UnsupportedOperationException("Prefix scans need a map in lexicographic key order.");
+    }
+    return new ScanIterator(prefix, prefixEnd(prefix), false, true);
+  }
+
+  /*
+   * Returns the smallest key greater than all keys starting with prefix in 
+   * lexicographic order, null if there is none.
+   */
+  private static byte[] prefixEnd(byte[] prefix) {
+    for (int i = prefix.length - 1; i >= 0; --i) {
+      if (prefix[i] != (byte) 0xff) {
+        byte[] end = Arrays.copyOf(prefix, i + 1);
+        ++end[i];
+        return end;
+      }
+    }
+    return null;
+  }
+
+  /*
+   * Returns the mapped trailer of the block. Trailers are sliced from the 
+   * segments, or mapped on first use and kept mapped, unless offsets are 
+   * preloaded.
+   */
+  private ByteBuffer getTrailerBuffer(int block) throws IOException {
+    if (segments_ != null) {
+      return segments_.slice(blockTrailerStarts_[block], getTrailerSize(block));
+    }
+    if (blockTrailerBuffers_.length() == 0) {
+      return raf_.map(MapMode.READ_ONLY, blockTrailerStarts_[block], getTrailerSize(block));
+    }
+    ByteBuffer trailer = blockTrailerBuffers_.get(block);
+    if (trailer == null) {
+      trailer = raf_.map(MapMode.READ_ONLY, blockTrailerStarts_[block], getTrailerSize(block));
+      // mapping the same trailer twice in a race is harmless, only one of them is kept
+      if (!blockTrailerBuffers_.compareAndSet(block, null, trailer)) {
+        trailer = blockTrailerBuffers_.get(block);
+      }
+    }
+    return trailer;
+  }
+
+  /*
+   * Returns the size of the block's trailer, which ends where the next block
+   * (or the global trailer) starts.
+   */
+  private int getTrailerSize(int block) {
+    long trailerEnd = block + 1 < blockStarts_.length ? blockStarts_[block + 1] : globalTrailerOffset_;
+    return (int) (trailerEnd - blockTrailerStarts_[block]);
+  }
+
+  private class ScanIterator implements EntryIterator {
+    private final byte[] fromKey_;
+    private final byte[] toKey_;
+    /** Entry returned by every call to next(), null if a new one is created each time. */
+    private final Entry reusedEntry_;
+    private final boolean readValues_;
+    /** Blocks to scan, the end is exclusive. */
+    private final int startBlock_;
+    private final int endBlock_;
+    /** Buffer wrapping the value array of reusedEntry_. */
+    private ByteBuffer reusedValueBuffer_;
+    private boolean started_;
+    private int block_;
+    private ByteBuffer trailer_;
+    /** Window the trailers are sliced from if they are not kept mapped, created on first use. */
+    private MappedWindow trailerWindow_;
+    private ByteBuffer blockBuffer_;
+    /** Positions of the trailer entries in key order, null if read from the position table. */
+    private int[] entryPositions_;
+    /** Decodes front-coded trailers, null if the trailers are not front-coded. */
+    private final FrontCodedTrailer.Cursor cursor_ = frontCodedTrailers_ ? new FrontCodedTrailer.Cursor() : null;
+    private int numEntries_;
+    private int entry_;
+    private Entry next_;
+
+    private ScanIterator(byte[] fromKey, byte[] toKey, boolean reuseEntry, boolean readValues) {
+      this(fromKey, toKey, reuseEntry, readValues, 0, blockStarts_.length);
+    }
+
+    private ScanIterator(byte[] fromKey, byte[] toKey, boolean reuseEntry, boolean readValues, 
+        int startBlock, int endBlock) {
+      startBlock_ = startBlock;
+      endBlock_ = endBlock;
+      fromKey_ = fromKey;
+      toKey_ = toKey;
+      if (reuseEntry) {
+        reusedEntry_ = new Entry(new byte[0], new byte[0]);
+        reusedValueBuffer_ = ByteBuffer.wrap(reusedEntry_.value);
+      } else {
+        reusedEntry_ = null;
+      }
+      readValues_ = readValues;
     }
 
     @Override
     public boolean hasNext() throws IOException {
-      if (nextEntry == null)
-        nextEntry = getNextEntry();
-      return nextEntry != null;
+      if (next_ == null) {
+        next_ = fetch();
+      }
+      return next_ != null;
     }
 
     @Override
     public Entry next() throws IOException {
-      if (nextEntry == null)
-        nextEntry = getNextEntry();
-      Entry tmpNextEntry = nextEntry;
-      nextEntry = null;
-      return tmpNextEntry;
+      if (!hasNext()) {
+        return null;
+      }
+      Entry entry = next_;
+      next_ = null;
+      return entry;
     }
-    
-    private Entry getNextEntry() throws IOException {
-      // TODO: make it more efficient if necessary
-      if (keyIterator_ != null && keyIterator_.hasNext()) {
-        ByteArray key = keyIterator_.next();
-        return new Entry(key.getBytes(), get(key.getBytes()));
+
+    /*
+     * Moves to the first entry of the range.
+     */
+    private void start() throws IOException {
+      started_ = true;
+      if (startBlock_ >= endBlock_ || (fromKey_ != null && toKey_ != null && keyOrder_.compare(fromKey_, toKey_) >= 0)) {
+        block_ = endBlock_;
+        return;
+      }
+      block_ = fromKey_ == null ? startBlock_ : Math.max(findBlock(fromKey_, startBlock_), startBlock_);
+      openBlock();
+      if (fromKey_ != null) {
+        entry_ = lowerBound(fromKey_);
+        if (cursor_ != null) {
+          cursor_.seek(entry_);
+        }
       }
-      while (blockIterator_.hasNext()) {
-        keyIterator_ = blockIterator_.next().keySet().iterator();
-        if (keyIterator_.hasNext())
-          return getNextEntry();
+    }
+
+    private Entry fetch() throws IOException {
+      if (!started_) {
+        start();
+      }
+      while (block_ < endBlock_) {
+        if (entry_ < numEntries_ && cursor_ != null) {
+          cursor_.next();
+          entry_++;
+          if (toKey_ != null && cursor_.compare(toKey_, keyOrder_) <= 0) {
+            block_ = endBlock_;
+            return null;
+          }
+          Entry entry = reusedEntry_ != null ? reusedEntry_ : new Entry(null, null);
+          if (entry.key == null || entry.key.length != cursor_.keyLength()) {
+            entry.key = new byte[cursor_.keyLength()];
+          }
+          cursor_.copyKey(entry.key);
+          if (readValues_) {
+            readEntryValue(entry, cursor_.valueOffset());
+          }
+          return entry;
+        } else if (entry_ < numEntries_) {
+          int position = entryPosition(entry_++) + entryHashSize_;
+          int keyLen = CompressionUtils.readVInt(trailer_, position);
+          position += CompressionUtils.decodeVNumSize(trailer_.get(position));
+          if (toKey_ != null && keyOrder_.compare(toKey_, trailer_, position, keyLen) <= 0) {
+            // past the end of the range
+            block_ = endBlock_;
+            return null;
+          }
+          Entry entry = reusedEntry_ != null ? reusedEntry_ : new Entry(null, null);
+          if (entry.key == null || entry.key.length != keyLen) {
+            entry.key = new byte[keyLen];
+          }
+          ByteArrayUtils.copy(trailer_, position, entry.key, keyLen);
+          if (readValues_) {
+            readEntryValue(entry, CompressionUtils.readVInt(trailer_, position + keyLen));
+          }
+          return entry;
+        }
+        if (++block_ < endBlock_) {
+          openBlock();
+        }
       }
       return null;
     }
+
+    private void readEntryValue(Entry entry, int valueOffset) throws IOException {
+      if (blockBuffer_ == null) {
+        blockBuffer_ = getBlockBuffer(block_);
+      }
+      if (reusedEntry_ == null) {
+        entry.value = readValue(blockBuffer_, valueOffset);
+        return;
+      }
+      int valueLength = readValueLength(blockBuffer_, valueOffset);
+      if (entry.value.length != valueLength) {
+        entry.value = new byte[valueLength];
+        reusedValueBuffer_ = ByteBuffer.wrap(entry.value);
+      }
+      reusedValueBuffer_.clear();
+      readValue(blockBuffer_, valueOffset, reusedValueBuffer_);
+    }
+
+    private void openBlock() throws IOException {
+      if (segments_ == null && blockTrailerBuffers_.length() == 0) {
+        // with preloaded offsets, the trailers are read in file order without mapping each of them
+        if (trailerWindow_ == null) {
+          trailerWindow_ = new MappedWindow(raf_, globalTrailerOffset_, MAPPED_WINDOW_SIZE);
+        }
+        trailer_ = trailerWindow_.slice(blockTrailerStarts_[block_], getTrailerSize(block_));
+      } else {
+        trailer_ = getTrailerBuffer(block_);
+      }
+      // the block itself is only fetched once a value is read
+      blockBuffer_ = null;
+      entry_ = 0;
+      if (cursor_ != null) {
+        numEntries_ = cursor_.reset(trailer_).size();
+      } else if (version_ >= SORTED_TRAILER_VERSION) {
+        numEntries_ = trailer_.getInt(0);
+        entryPositions_ = null;
+      } else {
+        sortUnsortedTrailer();
+      }
+    }
+
+    /*
+     * Collects the entry positions of a version 4 trailer in key order.
+     */
+    private void sortUnsortedTrailer() {
+      ByteBuffer trailer = trailer_.duplicate();
+      trailer.position(0);
+      numEntries_ = readTrailerHeader(trailer);
+      final byte[][] keys = new byte[numEntries_][];
+      Integer[] order = new Integer[numEntries_];
+      int[] positions = new int[numEntries_];
+      for (int i = 0; i < numEntries_; ++i) {
+        positions[i] = trailer.position();
+        keys[i] = new byte[CompressionUtils.readVInt(trailer)];
+        trailer.get(keys[i]);
+        CompressionUtils.readVInt(trailer);
+        order[i] = i;
+      }
+      Arrays.sort(order, (a, b) -> keyOrder_.compare(keys[a], keys[b]));
+      entryPositions_ = new int[numEntries_];
+      for (int i = 0; i < numEntries_; ++i) {
+        entryPositions_[i] = positions[order[i]];
+      }
+    }
+
+    private int entryPosition(int entry) {
+      return entryPositions_ != null ? entryPositions_[entry] : trailer_.getInt(4 + 4 * entry);
+    }
+
+    /*
+     * Returns the first entry in the current block with a key >= key.
+     */
+    private int lowerBound(byte[] key) {
+      if (cursor_ != null) {
+        return cursor_.lowerBound(key, keyOrder_);
+      }
+      int low = 0;
+      int high = numEntries_;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        int position = entryPosition(mid) + entryHashSize_;
+        int keyLen = CompressionUtils.readVInt(trailer_, position);
+        position += CompressionUtils.decodeVNumSize(trailer_.get(position));
+        if (keyOrder_.compare(key, trailer_, position, keyLen) > 0) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
   }
 
   /**
@@ -470,7 +1751,45 @@ public class DMap {
     public boolean hasNext() throws IOException;
     public Entry next() throws IOException;
   }
+
+  /**
+   * A not thread save iterator for DMap keys
+   */
+  public static interface KeyIterator {
+    public boolean hasNext() throws IOException;
+    public byte[] next() throws IOException;
+  }
   
+  /**
+   * Reusable per-thread buffers for decompression and trailer decoding.
+   */
+  private static class ScratchBuffers {
+    private byte[] compressed_ = new byte[0];
+    private byte[] uncompressed_ = new byte[0];
+    private FrontCodedTrailer.Cursor cursor_;
+
+    private FrontCodedTrailer.Cursor cursor(ByteBuffer trailer) {
+      if (cursor_ == null) {
+        cursor_ = new FrontCodedTrailer.Cursor();
+      }
+      return cursor_.reset(trailer);
+    }
+
+    private byte[] compressed(int length) {
+      if (compressed_.length < length) {
+        compressed_ = new byte[length];
+      }
+      return compressed_;
+    }
+
+    private byte[] uncompressed(int length) {
+      if (uncompressed_.length < length) {
+        uncompressed_ = new byte[length];
+      }
+      return uncompressed_;
+    }
+  }
+
   public static class Entry {
     private byte[] key;
     private byte[] value;
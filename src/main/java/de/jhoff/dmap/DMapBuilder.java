@@ -1,29 +1,55 @@
 package de.jhoff.dmap;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import de.jhoff.dmap.codec.Codec;
+import de.jhoff.dmap.codec.Codecs;
 import de.jhoff.dmap.util.CompressionUtils;
 import de.jhoff.dmap.util.ExtendedFileChannel;
-import org.iq80.snappy.Snappy;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.jhoff.dmap.util.BloomFilter;
 import de.jhoff.dmap.util.ByteArray;
+import de.jhoff.dmap.util.XxHash64;
 
 /**
  * Builder for the DMap. The DMapBuilder is a write-once builder, as DMap is
  * read-only.
  * 
+ * Added entries are buffered in memory up to a configurable budget. Whenever
+ * the budget is exceeded, the buffer is sorted and spilled to a temporary run 
+ * file. build() merges the runs and streams the entries in key order into the 
+ * map file, so the heap needed does not depend on the number of entries.
+ * Presorted input can be added with addSorted() instead, which writes the 
+ * map in a single pass without temporary files.
+ * 
  * Improve:
- *  - Spill keys to disk every K bytes.
  *  - Make appendable.
  *  - Make iterable.
  *  - Compress using varint or delta-encoding
@@ -33,11 +59,61 @@ public class DMapBuilder {
   /** Default Key-Value Block size (in bytes) - set to 1 MB. */
   private static final int DEFAULT_BLOCK_SIZE = 1048576;
 
+  /** Default memory budget for buffering added entries (in bytes) - set to 64 MB. */
+  private static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+
+  /** Estimated heap overhead of a buffered entry besides key and value bytes. */
+  private static final int BUFFERED_ENTRY_OVERHEAD = 80;
+
+  /** Buffer size for reading and writing sorted runs. */
+  private static final int RUN_BUFFER_SIZE = 1 << 16;
+
+  /** Number of values compressed together by one compression task. */
+  private static final int COMPRESSION_BATCH_SIZE = 1024;
+
+  /** Number of compression tasks per thread that may be queued or running. */
+  private static final int COMPRESSION_BATCHES_PER_THREAD = 2;
+
+  /** Default maximum size of a shared dictionary (in bytes) - set to 64 KB. */
+  private static final int DEFAULT_DICTIONARY_SIZE = 1 << 16;
+
+  /** Sample bytes to train a dictionary on, relative to its size. */
+  private static final int DICTIONARY_SAMPLE_FACTOR = 100;
+
   /** Current block size for the file*/
   private int blockSize_;
   
-  /** Compress values */
-  private boolean compressValues_;
+  /** Default false positive rate of the per-block Bloom filters. */
+  private static final double DEFAULT_BLOOM_FILTER_FPP = 0.01;
+
+  /** Codec to compress the values (or blocks) with. */
+  private Codec codec_;
+
+  /** Compress whole blocks instead of single values. */
+  private boolean compressBlocks_;
+
+  /** Maximum size of the shared dictionary for compressing values, 0 if disabled. */
+  private int dictionarySize_;
+
+  /** False positive rate of the per-block Bloom filters, 0 if disabled. */
+  private double bloomFilterFpp_ = DEFAULT_BLOOM_FILTER_FPP;
+
+  /** Number of keys per restart point of front-coded block trailers, 0 if disabled. */
+  private int restartInterval_;
+
+  /** Store the hash of each key in the block trailers. */
+  private boolean storeKeyHashes_;
+
+  /** Write a minimal perfect hash index. */
+  private boolean perfectHashIndex_;
+
+  /** Write an open-addressing hash index. */
+  private boolean hashIndex_;
+
+  /** Hash, block index and trailer entry position of all keys (only with an index). */
+  private TLongArrayList indexHashes_;
+  private TIntArrayList indexBlocks_;
+  private TIntArrayList indexEntryPositions_;
 
   /** Map file to write to. */
   private File mapFile_;
@@ -45,17 +121,38 @@ public class DMapBuilder {
   /** Writer to the map file. */
   private ExtendedFileChannel output_;
 
-  /** Temporary Map file. */
-  private File tmpMapFile_;
+  /** Order of the keys in the map. */
+  private KeyOrder keyOrder_ = KeyOrder.LENGTH_FIRST;
+
+  /** Number of threads compressing values in build(). */
+  private int compressionThreads_ = Runtime.getRuntime().availableProcessors();
+
+  /** Memory budget for buffering added entries (in bytes). */
+  private long memoryBudget_ = DEFAULT_MEMORY_BUDGET;
 
-  /** Writer to the temp file. */
-  private ExtendedFileChannel tmpOutput_;
+  /** Added entries that are not spilled yet. */
+  private List<BufferedEntry> buffer_ = new ArrayList<>();
+
+  /** Estimated heap usage of buffer_. */
+  private long bufferedBytes_;
+
+  /** Sorted runs spilled to disk. */
+  private List<File> runFiles_ = new ArrayList<>();
+
+  /** Writes the entries into blocks, once writing the map has started. */
+  private BlockWriter blockWriter_;
+
+  /** Compresses the values passed to blockWriter_. */
+  private CompressionPipeline pipeline_;
+
+  /** Last key passed to the pipeline, to check the order. */
+  private ByteArray previousKey_;
 
   /** Keep track of number of entries retrieved from original file */
   private int entriesCount_;
 
   /** Keep track of number of bytes written */
-  private int byteCount_;
+  private long byteCount_;
 
   private final Logger logger_ = LoggerFactory.getLogger(DMapBuilder.class);
 
@@ -77,184 +174,938 @@ public class DMapBuilder {
     boolean success = mapFile.createNewFile();
     if (success) {
       blockSize_ = blockSize;
-      compressValues_ = compressValues;
+      codec_ = compressValues ? Codecs.SNAPPY : Codecs.IDENTITY;
       mapFile_ = mapFile;
-      try {
-        tmpMapFile_ = File.createTempFile("tmpDMap_", "_" + mapFile.getName());
-      } catch (Exception e) {
-        throw new IOException("Error creating intermediate file: " + tmpMapFile_ + ", cannot write.");
-      }
-      tmpOutput_ = new ExtendedFileChannel(new RandomAccessFile(tmpMapFile_, "rw").getChannel());
-      
-      
-      output_ = new ExtendedFileChannel(new RandomAccessFile(mapFile_, "rw").getChannel());
+      output_ = new ExtendedFileChannel(new RandomAccessFile(mapFile_, "rw").getChannel(), 
+          ExtendedFileChannel.DEFAULT_BUFFER_SIZE, ExtendedFileChannel.Durability.SYNC_ON_CLOSE);
     } else {
       throw new IOException("Output map file already exists at: " + mapFile
           + ", cannot write.");
     }
   }
 
+  /**
+   * Sets the false positive rate of the Bloom filter written for each block 
+   * (default: 0.01). The filters let the reader reject most keys that are not 
+   * in the map without searching the block trailer.
+   * 
+   * @param falsePositiveRate False positive rate, in (0, 1).
+   * @return  The current builder instance.
+   */
+  public DMapBuilder setBloomFilterFalsePositiveRate(double falsePositiveRate) {
+    if (falsePositiveRate <= 0.0 || falsePositiveRate >= 1.0) {
+      throw new IllegalArgumentException("False positive rate must be in (0, 1): " + falsePositiveRate);
+    }
+    checkFormatUnchanged("Bloom filters");
+    bloomFilterFpp_ = falsePositiveRate;
+    return this;
+  }
+
+  /**
+   * Disables writing per-block Bloom filters.
+   * 
+   * @return  The current builder instance.
+   */
+  public DMapBuilder disableBloomFilters() {
+    checkFormatUnchanged("Bloom filters");
+    bloomFilterFpp_ = 0.0;
+    return this;
+  }
+
+  /**
+   * Enables writing a minimal perfect hash index. The reader then finds the 
+   * trailer entry of a key with one hash evaluation and one probe in the 
+   * mapped index, instead of searching the blocks and trailers. The heap 
+   * needed by the reader is a few bits per key. Building the index needs 
+   * 16 bytes of heap per key.
+   * 
+   * @return  The current builder instance.
+   */
+  public DMapBuilder enablePerfectHashIndex() {
+    checkFormatUnchanged("index");
+    perfectHashIndex_ = true;
+    return this;
+  }
+
+  /**
+   * Enables writing an open-addressing hash index. The reader then finds the
+   * trailer entry of a key with one hash evaluation and usually one or two 
+   * probes in the mapped index, like with the perfect hash index. The index 
+   * takes 24-48 bytes per key in the file, but opening it needs neither time
+   * nor heap, which makes it the better choice for maps that are opened 
+   * often. Building the index needs 16 bytes of heap per key, and another 
+   * 24-48 bytes per key while writing it. Cannot be combined with the perfect
+   * hash index.
+   * 
+   * @return  The current builder instance.
+   */
+  public DMapBuilder enableHashIndex() {
+    checkFormatUnchanged("index");
+    hashIndex_ = true;
+    return this;
+  }
+
+  /**
+   * Stores the 64-bit hash of each key in the block trailers (8 bytes per 
+   * key). Readers then fill the preloaded offsets without hashing any key, 
+   * and lookups through an index compare the stored hash before the key 
+   * bytes.
+   * 
+   * @return  The current builder instance.
+   */
+  public DMapBuilder enableKeyHashes() {
+    checkFormatUnchanged("key hashes");
+    storeKeyHashes_ = true;
+    return this;
+  }
+
+  /**
+   * Front-codes the keys in the block trailers: each key is stored as the 
+   * length of the prefix it shares with the previous key and the remaining 
+   * suffix, with a full key every 16 keys as restart point. This shrinks the 
+   * trailers of long keys with shared prefixes (URLs, composite ids) 
+   * considerably. Lookups binary-search the restart points and decode at most
+   * one run of keys.
+   * 
+   * @return  The current builder instance.
+   */
+  public DMapBuilder enableFrontCoding() {
+    return enableFrontCoding(FrontCodedTrailer.DEFAULT_RESTART_INTERVAL);
+  }
+
+  /**
+   * Front-codes the keys in the block trailers with a restart point every 
+   * restartInterval keys, see {@link #enableFrontCoding()}. Longer intervals
+   * give smaller trailers and slower lookups.
+   * 
+   * @param restartInterval Number of keys per restart point.
+   * @return  The current builder instance.
+   */
+  public DMapBuilder enableFrontCoding(int restartInterval) {
+    if (restartInterval < 1) {
+      throw new IllegalArgumentException("Restart interval must be positive: " + restartInterval);
+    }
+    checkFormatUnchanged("front coding");
+    restartInterval_ = restartInterval;
+    return this;
+  }
+
+  /**
+   * Compresses each block as a whole instead of each value on its own. Small
+   * values compress much better together, and readers keep hot blocks 
+   * decompressed (see {@link DMap.Builder#setDecompressedBlockLimit(int)}), 
+   * so that a lookup in a hot block does not decompress anything. The block 
+   * size limits the uncompressed size of a block. This replaces the per-value
+   * compression.
+   * 
+   * @return  The current builder instance.
+   */
+  public DMapBuilder enableBlockCompression() {
+    checkFormatUnchanged("compression");
+    compressBlocks_ = true;
+    if (codec_ == Codecs.IDENTITY) {
+      codec_ = Codecs.SNAPPY;
+    }
+    return this;
+  }
+
+  /**
+   * Compresses the values against a dictionary shared by all values of the 
+   * map (default size: 64 KB). Small values have too little data of their own
+   * to compress well, with a dictionary trained on the first values they 
+   * compress about as well as whole blocks, and are still read without 
+   * decompressing anything else. The dictionary is stored in the map. Needs a
+   * codec that supports dictionaries, switches to {@link Codecs#ZSTD} 
+   * otherwise. Cannot be combined with block compression.
+   * 
+   * @return  The current builder instance.
+   */
+  public DMapBuilder enableDictionaryCompression() {
+    return enableDictionaryCompression(DEFAULT_DICTIONARY_SIZE);
+  }
+
+  /**
+   * Compresses the values against a shared dictionary of at most 
+   * dictionarySize bytes, see {@link #enableDictionaryCompression()}. The 
+   * dictionary is trained on about 100 times as many bytes of values.
+   * 
+   * @param dictionarySize Maximum size of the dictionary in bytes.
+   * @return  The current builder instance.
+   */
+  public DMapBuilder enableDictionaryCompression(int dictionarySize) {
+    if (dictionarySize <= 0) {
+      throw new IllegalArgumentException("Dictionary size must be positive: " + dictionarySize);
+    }
+    checkFormatUnchanged("compression");
+    dictionarySize_ = dictionarySize;
+    if (!codec_.supportsDictionary()) {
+      codec_ = Codecs.ZSTD;
+    }
+    return this;
+  }
+
+  /**
+   * Sets the codec the values (or blocks) are compressed with (default: 
+   * {@link Codecs#SNAPPY}, or {@link Codecs#IDENTITY} if the builder was 
+   * created without value compression). The id of the codec is stored in the
+   * map, readers pick the codec by it.
+   * 
+   * @param codec Codec to compress with.
+   * @return  The current builder instance.
+   */
+  public DMapBuilder setCodec(Codec codec) {
+    checkFormatUnchanged("codec");
+    codec_ = codec;
+    return this;
+  }
+
+  /**
+   * Sets the order of the keys in the map (default: 
+   * {@link KeyOrder#LENGTH_FIRST}). Prefix scans need 
+   * {@link KeyOrder#LEXICOGRAPHIC}.
+   * 
+   * @param keyOrder Order of the keys.
+   * @return  The current builder instance.
+   */
+  public DMapBuilder setKeyOrder(KeyOrder keyOrder) {
+    checkFormatUnchanged("key order");
+    keyOrder_ = keyOrder;
+    return this;
+  }
+
+  /**
+   * Sets the number of threads compressing values while building the map 
+   * (default: number of available processors). The output does not depend 
+   * on the number of threads.
+   * 
+   * @param threads Number of threads, 1 compresses on the building thread.
+   * @return  The current builder instance.
+   */
+  public DMapBuilder setCompressionThreads(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("Number of compression threads must be positive: " + threads);
+    }
+    compressionThreads_ = threads;
+    return this;
+  }
+
+  /**
+   * Sets the amount of heap used to buffer added entries before they are 
+   * sorted and spilled to disk (default: 64 MB). A larger budget means fewer 
+   * runs to merge in build().
+   * 
+   * @param bytes Memory budget in bytes.
+   * @return  The current builder instance.
+   */
+  public DMapBuilder setMemoryBudget(long bytes) {
+    if (bytes <= 0) {
+      throw new IllegalArgumentException("Memory budget must be positive: " + bytes);
+    }
+    memoryBudget_ = bytes;
+    return this;
+  }
+
+  /*
+   * The header is written when the first entry is added with addSorted(), 
+   * settings that change the format cannot change afterwards.
+   */
+  private void checkFormatUnchanged(String setting) {
+    if (blockWriter_ != null) {
+      throw new IllegalStateException("Cannot change the " + setting + " after addSorted() was used.");
+    }
+  }
+
   public void add(byte[] key, byte[] value) throws IOException {
-    tmpOutput_.writeInt(key.length);
-    tmpOutput_.writeInt(value.length);
-    tmpOutput_.write(key);
-    tmpOutput_.write(value);
+    if (blockWriter_ != null) {
+      throw new IllegalStateException("Cannot add unsorted entries after addSorted() was used.");
+    }
+    // copy, callers may reuse their arrays
+    buffer_.add(new BufferedEntry(new ByteArray(key.clone()), value.clone()));
+    bufferedBytes_ += key.length + value.length + BUFFERED_ENTRY_OVERHEAD;
     entriesCount_++;
     byteCount_ += key.length + value.length;
+    if (bufferedBytes_ > memoryBudget_) {
+      spill();
+    }
   }
 
-  public void build() throws IOException {
-    Map<ByteArray, Long> tmpKeyOffsetMap =  new HashMap<>();
-    tmpOutput_.flush();
-    tmpOutput_.close();
-
-    ExtendedFileChannel raf = new ExtendedFileChannel(new RandomAccessFile(tmpMapFile_, "r").getChannel());
-    byte[] key;
-    byte[] value;
-    long currentOffset = 0;
+  /**
+   * Adds an entry of a presorted input. The entries are written to the map 
+   * right away, without any temporary files, so the heap needed is bounded 
+   * by the current block and the values being compressed. The keys have to 
+   * be added in increasing order of the key order of the builder, which is 
+   * checked. add() and addSorted() cannot 
+   * be mixed in one builder.
+   * 
+   * @param key Key, greater than all previously added keys.
+   * @param value Value.
+   * @throws IOException if the key is not greater than the previous key.
+   */
+  public void addSorted(byte[] key, byte[] value) throws IOException {
+    if (entriesCount_ > 0 && blockWriter_ == null) {
+      throw new IllegalStateException("Cannot add sorted entries after add() was used.");
+    }
+    if (blockWriter_ == null) {
+      startMap();
+    }
+    // copy, callers may reuse their arrays
+    ByteArray keyBytes = new ByteArray(key.clone());
+    if (previousKey_ != null && keyOrder_.compare(previousKey_.getBytes(), key) >= 0) {
+      throw new IOException(previousKey_.equals(keyBytes) ? "Duplicate key encountered: " + keyBytes
+          : "Key out of order encountered: " + keyBytes + " after " + previousKey_);
+    }
+    pipeline_.add(keyBytes, value.clone());
+    previousKey_ = keyBytes;
+    entriesCount_++;
+    byteCount_ += key.length + value.length;
+  }
 
+  public void build() throws IOException {
+    List<SortedRun> runs = new ArrayList<>();
     try {
-      logger_.debug("Keys to process: " + entriesCount_);
-      for(int i=0;i<entriesCount_;i++) {
-        int keyLen = raf.readInt();
-        int valLen = raf.readInt();
-
-        key = new byte[keyLen];
-        raf.read(key);
-        if(tmpKeyOffsetMap.containsKey(new ByteArray(key))) {
+      if (blockWriter_ != null) {
+        // all entries were added with addSorted() and are written already
+        finishMap();
+        return;
+      }
+      if (runFiles_.isEmpty()) {
+        // everything fits into memory, no need to go through disk
+        runs.add(new BufferedRun(sortBuffer()));
+      } else {
+        spill();
+        for (File runFile : runFiles_) {
+          runs.add(new FileRun(runFile));
+        }
+      }
+      buffer_ = null;
+      logger_.debug("Keys to process: " + entriesCount_ + " in " + runs.size() + " sorted run(s)");
+      logger_.info("Map size: " + byteCount_ + " bytes ");
+      logger_.info("Writing map for " + entriesCount_ + " keys.");
+
+      startMap();
+      // k-way merge of the runs, equal keys come out next to each other
+      PriorityQueue<SortedRun> queue = new PriorityQueue<>(runs.size(), 
+          (a, b) -> keyOrder_.compare(a.key().getBytes(), b.key().getBytes()));
+      for (SortedRun run : runs) {
+        if (run.advance()) {
+          queue.add(run);
+        }
+      }
+      while (!queue.isEmpty()) {
+        SortedRun run = queue.poll();
+        ByteArray key = run.key();
+        if (key.equals(previousKey_)) {
           throw new IOException("Duplicate key encountered: " + key);
         }
+        pipeline_.add(key, run.value());
+        previousKey_ = key;
+        if (run.advance()) {
+          queue.add(run);
+        }
+      }
+      finishMap();
+    } finally {
+      if (pipeline_ != null) {
+        pipeline_.close();
+      }
+      // delete the intermediate run files
+      for (SortedRun run : runs) {
+        run.close();
+      }
+      for (File runFile : runFiles_) {
+        runFile.delete();
+      }
+    }
+  }
 
-        tmpKeyOffsetMap.put(new ByteArray(key), currentOffset);
-        // ignore the value byte sequence (for the time being) and move to next record start pos
-        currentOffset = raf.position() + valLen;
-        raf.position(currentOffset);
+  /*
+   * Writes the global header and prepares writing the entries.
+   */
+  private void startMap() throws IOException {
+    if (hashIndex_ && perfectHashIndex_) {
+      throw new IllegalStateException("A map can have either a hash index or a perfect hash index.");
+    }
+    if (dictionarySize_ > 0 && (compressBlocks_ || !codec_.supportsDictionary())) {
+      throw new IllegalStateException("Dictionary compression needs value compression with a codec " 
+          + "that supports dictionaries, not " + (compressBlocks_ ? "block compression." : codec_.getName() + "."));
+    }
+    // global header - version, entries count, block size, trailer offset, flags
+    output_.writeInt(DMap.VERSION);
+    // entries count is filled in by finishMap()
+    output_.writeInt(0);
+    output_.writeInt(blockSize_);
+    // codec id, older readers take it as the compressed flag
+    output_.writeByte(codec_.getId());
+    // insert placeholder for trailer offset
+    output_.writeLong(0);
+    int flags = 0;
+    if (bloomFilterFpp_ > 0.0) {
+      flags |= DMap.FLAG_BLOOM_FILTERS;
+    }
+    if (keyOrder_ == KeyOrder.LEXICOGRAPHIC) {
+      flags |= DMap.FLAG_LEXICOGRAPHIC_KEY_ORDER;
+    }
+    if (compressBlocks_) {
+      flags |= DMap.FLAG_BLOCK_COMPRESSION;
+    }
+    if (dictionarySize_ > 0) {
+      flags |= DMap.FLAG_DICTIONARY;
+    }
+    if (restartInterval_ > 0) {
+      flags |= DMap.FLAG_FRONT_CODED_TRAILERS;
+    }
+    if (storeKeyHashes_) {
+      flags |= DMap.FLAG_KEY_HASHES;
+    }
+    if (perfectHashIndex_ || hashIndex_) {
+      flags |= perfectHashIndex_ ? DMap.FLAG_PERFECT_HASH_INDEX : DMap.FLAG_HASH_INDEX;
+      indexHashes_ = new TLongArrayList(Math.max(entriesCount_, 16));
+      indexBlocks_ = new TIntArrayList(Math.max(entriesCount_, 16));
+      indexEntryPositions_ = new TIntArrayList(Math.max(entriesCount_, 16));
+    }
+    output_.writeInt(flags);
+    if (writesIndex()) {
+      // insert placeholder for index offset
+      output_.writeLong(0);
+    }
+    blockWriter_ = new BlockWriter(output_.position());
+    pipeline_ = new CompressionPipeline(blockWriter_);
+  }
+
+  /*
+   * Writes the remaining entries, the trailers and the index, and fills in 
+   * the placeholders in the header.
+   */
+  private void finishMap() throws IOException {
+    pipeline_.finish();
+    long globalOffset = blockWriter_.finish();
+
+    long indexOffset = output_.position();
+    if (perfectHashIndex_) {
+      logger_.info("Writing perfect hash index for " + indexHashes_.size() + " keys.");
+      PerfectHashIndex.write(output_, indexHashes_.toArray(), indexBlocks_.toArray(), 
+          indexEntryPositions_.toArray());
+    } else if (hashIndex_) {
+      logger_.info("Writing hash index for " + indexHashes_.size() + " keys.");
+      HashIndex.write(output_, indexHashes_.toArray(), indexBlocks_.toArray(), indexEntryPositions_.toArray());
+    }
+    indexHashes_ = null;
+    indexBlocks_ = null;
+    indexEntryPositions_ = null;
+
+    // fill in the previously created placeholders for entries count and trailer offset
+    output_.position(DMap.DEFAULT_LOC_FOR_SIZE);
+    output_.writeInt(entriesCount_);
+    output_.position(DMap.DEFAULT_LOC_FOR_TRAILER_OFFSET);
+    logger_.info("DMap Trailer start at " + globalOffset + ".");
+    output_.writeLong(globalOffset);
+    if (writesIndex()) {
+      output_.position(DMap.DEFAULT_LOC_FOR_INDEX_OFFSET);
+      output_.writeLong(indexOffset);
+    }
+    // forces the map to disk once
+    output_.close();
+  }
+
+  /*
+   * Sorts the buffered entries by key.
+   */
+  private List<BufferedEntry> sortBuffer() {
+    Collections.sort(buffer_, (a, b) -> keyOrder_.compare(a.key_.getBytes(), b.key_.getBytes()));
+    return buffer_;
+  }
+
+  /*
+   * Returns true if a hash index or a perfect hash index is written.
+   */
+  private boolean writesIndex() {
+    return perfectHashIndex_ || hashIndex_;
+  }
+
+  /*
+   * Returns true if each value is compressed on its own.
+   */
+  private boolean compressValues() {
+    return !compressBlocks_ && codec_ != Codecs.IDENTITY;
+  }
+
+  /*
+   * Writes the buffered entries as a sorted run to a new temporary file.
+   */
+  private void spill() throws IOException {
+    File runFile = File.createTempFile("tmpDMap_", "_" + mapFile_.getName());
+    runFiles_.add(runFile);
+    logger_.debug("Spilling " + buffer_.size() + " entries to " + runFile);
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(runFile), RUN_BUFFER_SIZE))) {
+      for (BufferedEntry entry : sortBuffer()) {
+        byte[] key = entry.key_.getBytes();
+        out.writeInt(key.length);
+        out.writeInt(entry.value_.length);
+        out.write(key);
+        out.write(entry.value_);
       }
+    }
+    buffer_.clear();
+    bufferedBytes_ = 0;
+  }
 
-      logger_.debug("Loaded " + tmpKeyOffsetMap.size() + " keys from temporary file");
+  /*
+   * Compresses the values of entries in key order and passes them on to the 
+   * block writer in the same order. The values are compressed in batches on a
+   * pool of threads, with a bounded number of batches in flight, so that the 
+   * merge, the compression and the writing overlap.
+   * 
+   * With dictionary compression, the first batches are held back until there
+   * are enough sample values, the dictionary is trained on them and written 
+   * before the first block, and the held batches are compressed with it.
+   */
+  private class CompressionPipeline {
+    private final BlockWriter blockWriter_;
+    private final ExecutorService executor_;
+    private final int maxBatchesInFlight_;
 
-      // global header - version, entries count, block size, trailer offset
-      output_.writeInt(DMap.VERSION);
-      output_.writeInt(tmpKeyOffsetMap.size());
-      output_.writeInt(blockSize_);
-      output_.writeBool(compressValues_);
-      // insert placeholder for trailer offset
-      output_.writeLong(0);
+    /** Submitted batches, in key order. */
+    private final ArrayDeque<Batch> batchesInFlight_ = new ArrayDeque<>();
 
-      List<ByteArray> allKeys = new ArrayList<>(tmpKeyOffsetMap.keySet());
-      Collections.sort(allKeys);
-      logger_.info("Map size: " + byteCount_ + " bytes ");
-      logger_.info("Writing map for " + allKeys.size() + " keys.");
-
-      long globalOffset = output_.position();
-      int currentBlockOffset = 0;
-      int remainingBytes = blockSize_;
-      ByteArray firstKey = null;
-
-      // Map to store block-level key-offset pairs (to be written to each block trailer)
-      Map<ByteArray, Integer> blockKeyOffset_ = new HashMap<>();
-      // Map to store blockStart-blockTrailerStart pair (to be written to global trailer)
-      Map<Long, Long> blockTrailerOffsets = new HashMap<>();
-      // Map to store blockStart-firstKey pair (to be written to global trailer)
-      Map<Long, ByteArray> blockFirstKey = new HashMap<>();
-
-      for (ByteArray keyBytes : allKeys) {
-        long offset = tmpKeyOffsetMap.get(keyBytes);
-        raf.position(offset);
-        int keyLen = raf.readInt();
-        int valLen = raf.readInt();
-        value = new byte[valLen];
-        // position pointer at the starting of value data
-        raf.position(raf.position() + keyLen);
-        raf.read(value);
-
-        if (compressValues_) {
-          value = Snappy.compress(value);
-        }
-        
-        int dataLength = CompressionUtils.getVNumSize(value.length) + value.length;
+    private Batch currentBatch_ = new Batch();
 
-        if(dataLength > blockSize_) {
-          throw new IOException("Data size ("+ dataLength +" bytes) greater than specified block size(" + blockSize_ + " bytes)");
-        }
+    /** Batches held back until the dictionary is trained, null once it is. */
+    private List<Batch> heldBatches_;
+    private long heldBytes_;
 
-        // write block trailer & reset variables
-        if(dataLength > remainingBytes) {
-          logger_.debug("Key : " + keyBytes + " with value doesnt fit in remaining "+ remainingBytes + " bytes.");
-          globalOffset = updateBlockTrailer(blockKeyOffset_, blockTrailerOffsets, blockFirstKey, firstKey, globalOffset);
-          logger_.debug("Creating new block @ " + globalOffset);
-          currentBlockOffset = 0;
-          remainingBytes = blockSize_;
-          firstKey = null;
+    private CompressionPipeline(BlockWriter blockWriter) {
+      blockWriter_ = blockWriter;
+      if (compressValues() && compressionThreads_ > 1) {
+        // daemon threads, a builder that is abandoned after a failed addSorted() is never closed
+        executor_ = Executors.newFixedThreadPool(compressionThreads_, r -> {
+          Thread thread = new Thread(r, "dmap-compression");
+          thread.setDaemon(true);
+          return thread;
+        });
+      } else {
+        executor_ = null;
+      }
+      maxBatchesInFlight_ = COMPRESSION_BATCHES_PER_THREAD * compressionThreads_;
+      if (dictionarySize_ > 0) {
+        heldBatches_ = new ArrayList<>();
+      }
+    }
+
+    private void add(ByteArray key, byte[] value) throws IOException {
+      if (!compressValues()) {
+        blockWriter_.add(key, value);
+        return;
+      }
+      currentBatch_.keys_[currentBatch_.size_] = key;
+      currentBatch_.values_[currentBatch_.size_] = value;
+      heldBytes_ += value.length;
+      if (++currentBatch_.size_ == COMPRESSION_BATCH_SIZE) {
+        submit(currentBatch_);
+        currentBatch_ = new Batch();
+      }
+    }
+
+    /*
+     * Writes all remaining entries.
+     */
+    private void finish() throws IOException {
+      if (currentBatch_.size_ > 0) {
+        submit(currentBatch_);
+      }
+      if (heldBatches_ != null) {
+        trainDictionary();
+      }
+      while (!batchesInFlight_.isEmpty()) {
+        writeOldestBatch();
+      }
+    }
+
+    /*
+     * Stops the compression threads.
+     */
+    private void close() {
+      if (executor_ != null) {
+        executor_.shutdownNow();
+      }
+    }
+
+    private void submit(final Batch batch) throws IOException {
+      if (heldBatches_ != null) {
+        heldBatches_.add(batch);
+        if (heldBytes_ >= (long) DICTIONARY_SAMPLE_FACTOR * dictionarySize_) {
+          trainDictionary();
         }
+        return;
+      }
+      if (executor_ == null) {
+        batch.compress(codec_);
+        batch.writeTo(blockWriter_);
+        return;
+      }
+      batch.future_ = executor_.submit(() -> {
+        batch.compress(codec_);
+        return null;
+      });
+      batchesInFlight_.add(batch);
+      while (batchesInFlight_.size() > maxBatchesInFlight_) {
+        writeOldestBatch();
+      }
+    }
 
-        if(firstKey == null) {
-          firstKey = keyBytes;
+    /*
+     * Trains the dictionary on the held values, writes it and compresses the
+     * held batches with it. Continues without a dictionary if none can be 
+     * trained, e.g. from too few values.
+     */
+    private void trainDictionary() throws IOException {
+      List<Batch> batches = heldBatches_;
+      heldBatches_ = null;
+      List<byte[]> samples = new ArrayList<>();
+      for (Batch batch : batches) {
+        for (int i = 0; i < batch.size_; ++i) {
+          samples.add(batch.values_[i]);
         }
+      }
+      byte[] dictionary = samples.isEmpty() ? null : codec_.trainDictionary(samples, dictionarySize_);
+      if (dictionary != null) {
+        logger_.info("Trained a " + dictionary.length + " byte dictionary on " + heldBytes_ + " bytes of values.");
+        codec_ = codec_.withDictionary(dictionary);
+      } else {
+        logger_.info("Could not train a dictionary on " + samples.size() + " values, compressing without one.");
+        dictionary = new byte[0];
+      }
+      blockWriter_.writeDictionary(dictionary);
+      for (Batch batch : batches) {
+        submit(batch);
+      }
+    }
+
+    private void writeOldestBatch() throws IOException {
+      Batch batch = batchesInFlight_.poll();
+      try {
+        batch.future_.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while compressing values.", e);
+      } catch (ExecutionException e) {
+        throw new IOException("Error compressing values.", e.getCause());
+      }
+      batch.writeTo(blockWriter_);
+    }
+  }
+
+  /*
+   * Consecutive entries whose values are compressed together.
+   */
+  private static class Batch {
+    private final ByteArray[] keys_ = new ByteArray[COMPRESSION_BATCH_SIZE];
+    private final byte[][] values_ = new byte[COMPRESSION_BATCH_SIZE][];
+    private int size_;
+    private Future<?> future_;
+
+    private void compress(Codec codec) {
+      for (int i = 0; i < size_; ++i) {
+        values_[i] = codec.compress(values_[i]);
+      }
+    }
+
+    private void writeTo(BlockWriter blockWriter) throws IOException {
+      for (int i = 0; i < size_; ++i) {
+        blockWriter.add(keys_[i], values_[i]);
+      }
+    }
+  }
+
+  /*
+   * Writes entries in key order into blocks, followed by a block trailer for
+   * each block and finally the global trailer.
+   */
+  private class BlockWriter {
+    private long globalOffset_;
+    private int currentBlockOffset_;
+    private int remainingBytes_ = blockSize_;
+    private ByteArray firstKey_;
+
+    /** Block-level key-offset pairs (to be written to each block trailer), in key order. */
+    private final Map<ByteArray, Integer> blockKeyOffset_ = new LinkedHashMap<>();
 
-        logger_.debug("write@ " + globalOffset + " key: " + keyBytes + ""
-          + " (hash: " + keyBytes.hashCode() + ")");
+    /** Start, trailer start and first key of each block (to be written to the global trailer). */
+    private final TLongArrayList blockStarts_ = new TLongArrayList();
+    private final TLongArrayList blockTrailerStarts_ = new TLongArrayList();
+    private final List<ByteArray> blockFirstKeys_ = new ArrayList<>();
+
+    /** Uncompressed data of the current block and its compressed form (only with block compression). */
+    private final ByteBuffer blockData_;
+    private final byte[] compressedBlock_;
+
+    private BlockWriter(long globalOffset) {
+      globalOffset_ = globalOffset;
+      if (compressBlocks_) {
+        blockData_ = ByteBuffer.allocate(blockSize_);
+        compressedBlock_ = new byte[codec_.maxCompressedLength(blockSize_)];
+      } else {
+        blockData_ = null;
+        compressedBlock_ = null;
+      }
+    }
+
+    /*
+     * Writes the dictionary, which precedes the first block.
+     */
+    private void writeDictionary(byte[] dictionary) throws IOException {
+      output_.writeInt(dictionary.length);
+      output_.write(dictionary);
+      globalOffset_ += 4 + dictionary.length;
+    }
+
+    /*
+     * Adds the next entry, value is already compressed if values are compressed.
+     */
+    private void add(ByteArray keyBytes, byte[] value) throws IOException {
+      int dataLength = CompressionUtils.getVNumSize(value.length) + value.length;
+
+      if(dataLength > blockSize_) {
+        throw new IOException("Data size ("+ dataLength +" bytes) greater than specified block size(" + blockSize_ + " bytes)");
+      }
+
+      // write block trailer & reset variables
+      if(dataLength > remainingBytes_) {
+        logger_.debug("Key : " + keyBytes + " with value doesnt fit in remaining "+ remainingBytes_ + " bytes.");
+        finishBlock();
+        logger_.debug("Creating new block @ " + globalOffset_);
+      }
+
+      if(firstKey_ == null) {
+        firstKey_ = keyBytes;
+      }
+
+      logger_.debug("write@ " + globalOffset_ + " key: " + keyBytes + ""
+        + " (hash: " + keyBytes.hashCode() + ")");
+      if (blockData_ != null) {
+        CompressionUtils.writeVInt(blockData_, value.length);
+        blockData_.put(value);
+      } else {
         output_.writeVInt(value.length);
         // write value (key can be retrieved from block trailer)
         output_.write(value);
-        // store key-offset pair (needed for block trailer)
-        blockKeyOffset_.put(keyBytes, currentBlockOffset);
-        currentBlockOffset += (dataLength);
-        remainingBytes -= dataLength;
       }
+      // store key-offset pair (needed for block trailer)
+      blockKeyOffset_.put(keyBytes, currentBlockOffset_);
+      currentBlockOffset_ += (dataLength);
+      remainingBytes_ -= dataLength;
+    }
 
-      // write the last block trailer information
-      globalOffset = updateBlockTrailer(blockKeyOffset_, blockTrailerOffsets, blockFirstKey, firstKey, globalOffset);
+    private void finishBlock() throws IOException {
+      if (blockData_ != null) {
+        int compressedLength = codec_.compress(blockData_.array(), 0, blockData_.position(), compressedBlock_, 0);
+        output_.write(ByteBuffer.wrap(compressedBlock_, 0, compressedLength));
+        blockData_.clear();
+      }
+      // track block offset info & first keys in each block
+      blockStarts_.add(globalOffset_);
+      blockTrailerStarts_.add(output_.position());
+      blockFirstKeys_.add(firstKey_);
+      globalOffset_ = updateBlockTrailer(blockKeyOffset_, blockStarts_.size() - 1);
+      currentBlockOffset_ = 0;
+      remainingBytes_ = blockSize_;
+      firstKey_ = null;
+    }
 
+    /*
+     * Writes the last block trailer and the global trailer, returns the start
+     * offset of the global trailer.
+     */
+    private long finish() throws IOException {
+      if (firstKey_ != null) {
+        finishBlock();
+      }
       // write global trailer (block start offset-block trailer offset pair & first key in the block)
-      output_.writeVInt(blockTrailerOffsets.size());
-      List<Long> allBlockKeys = new ArrayList<>(blockTrailerOffsets.keySet());
-      Collections.sort(allBlockKeys);
-      for(long blockStart : allBlockKeys) {
-        output_.writeVLong(blockStart);
-        output_.writeVLong(blockTrailerOffsets.get(blockStart));
-        byte[] tmpFirstKeyByte = blockFirstKey.get(blockStart).getBytes();
+      output_.writeVInt(blockStarts_.size());
+      for (int block = 0; block < blockStarts_.size(); ++block) {
+        output_.writeVLong(blockStarts_.get(block));
+        output_.writeVLong(blockTrailerStarts_.get(block));
+        byte[] tmpFirstKeyByte = blockFirstKeys_.get(block).getBytes();
         // write the first key info to global trailer
         output_.writeVInt(tmpFirstKeyByte.length);
         output_.write(tmpFirstKeyByte);
       }
-      raf.close();
-      output_.flush();
-      output_.close();
-
-      // fill in the previously created placeholder for trailer offset
-      raf = new ExtendedFileChannel(new RandomAccessFile(mapFile_, "rw").getChannel());
-      raf.position(DMap.DEFAULT_LOC_FOR_TRAILER_OFFSET);
-      logger_.info("DMap Trailer start at " + globalOffset + ".");
-      raf.writeLong(globalOffset);
-    } finally {
-      // delete the intermediate temp file
-      tmpMapFile_.delete();
-      raf.close();
+      return globalOffset_;
     }
   }
 
   /*
-   * Returns new global offset after updating the block trailer
+   * Returns new global offset after updating the block trailer.
+   * 
+   * The trailer starts with the number of entries and a table with the 
+   * position of each entry (relative to the trailer start), both as fixed-width
+   * ints, followed by the optional Bloom filter over the block's keys and the 
+   * entries (optional key hash, key length, key, value offset) in key order. 
+   * This allows the reader to binary-search the trailer in place.
    */
-  private long updateBlockTrailer(Map<ByteArray, Integer> keyOffsets,
-      Map<Long, Long> blockTrailerOffsets,
-      Map<Long, ByteArray> blockFirstKey,
-      ByteArray firstKey, long globalOffset) throws IOException {
-    long trailerOffset = output_.size();
+  private long updateBlockTrailer(Map<ByteArray, Integer> keyOffsets, int block) throws IOException {
+    // hash each key once for the Bloom filter, the index and the stored hashes
+    long[] hashes = null;
+    if (bloomFilterFpp_ > 0.0 || writesIndex() || storeKeyHashes_) {
+      hashes = new long[keyOffsets.size()];
+      int entry = 0;
+      for (ByteArray key : keyOffsets.keySet()) {
+        hashes[entry++] = XxHash64.hash(key.getBytes());
+      }
+    }
+    BloomFilter bloomFilter = null;
+    if (bloomFilterFpp_ > 0.0) {
+      bloomFilter = BloomFilter.create(keyOffsets.size(), bloomFilterFpp_);
+      for (long hash : hashes) {
+        bloomFilter.add(hash);
+      }
+    }
+    if (restartInterval_ > 0) {
+      return writeFrontCodedTrailer(keyOffsets, block, hashes, bloomFilter);
+    }
     // write number of entries in the current block
-    output_.writeVInt(keyOffsets.size());
+    output_.writeInt(keyOffsets.size());
+    int entryPosition = 4 + 4 * keyOffsets.size();
+    if (bloomFilter != null) {
+      entryPosition += bloomFilter.serializedSize();
+    }
+    // write the entry position table
+    int entry = 0;
+    for(Entry<ByteArray, Integer> e : keyOffsets.entrySet()) {
+      output_.writeInt(entryPosition);
+      if (writesIndex()) {
+        indexHashes_.add(hashes[entry]);
+        indexBlocks_.add(block);
+        indexEntryPositions_.add(entryPosition);
+      }
+      int keyLength = e.getKey().getBytes().length;
+      entryPosition += (storeKeyHashes_ ? 8 : 0) + CompressionUtils.getVNumSize(keyLength) + keyLength 
+          + CompressionUtils.getVNumSize(e.getValue());
+      ++entry;
+    }
+    if (bloomFilter != null) {
+      bloomFilter.writeTo(output_);
+    }
+    entry = 0;
     for(Entry<ByteArray, Integer> e : keyOffsets.entrySet()) {
       ByteArray byteArray = e.getKey();
+      if (storeKeyHashes_) {
+        output_.writeLong(hashes[entry]);
+      }
       output_.writeVInt(byteArray.getBytes().length);
       output_.write(byteArray.getBytes());
       output_.writeVInt(e.getValue());
+      ++entry;
+    }
+    keyOffsets.clear();
+    return output_.position();
+  }
+
+  /*
+   * Writes a front-coded block trailer (see FrontCodedTrailer), returns the 
+   * new global offset. The index refers to the entries by their number.
+   */
+  private long writeFrontCodedTrailer(Map<ByteArray, Integer> keyOffsets, int block, long[] hashes, 
+      BloomFilter bloomFilter) throws IOException {
+    List<ByteArray> keys = new ArrayList<>(keyOffsets.keySet());
+    int[] valueOffsets = new int[keys.size()];
+    for (int i = 0; i < keys.size(); ++i) {
+      valueOffsets[i] = keyOffsets.get(keys.get(i));
+      if (writesIndex()) {
+        indexHashes_.add(hashes[i]);
+        indexBlocks_.add(block);
+        indexEntryPositions_.add(i);
+      }
     }
+    FrontCodedTrailer.write(output_, keys, valueOffsets, storeKeyHashes_ ? hashes : null, restartInterval_, 
+        bloomFilter);
     keyOffsets.clear();
-    // track block offset info
-    blockTrailerOffsets.put(globalOffset, trailerOffset);
-    // track first keys in each block
-    blockFirstKey.put(globalOffset, firstKey);
     return output_.position();
   }
+
+  /*
+   * An added key-value pair.
+   */
+  private static class BufferedEntry {
+    private final ByteArray key_;
+    private final byte[] value_;
+
+    private BufferedEntry(ByteArray key, byte[] value) {
+      key_ = key;
+      value_ = value;
+    }
+  }
+
+  /*
+   * Sequence of entries in key order.
+   */
+  private static abstract class SortedRun {
+    protected ByteArray key_;
+    protected byte[] value_;
+
+    /*
+     * Moves to the next entry, returns false if there is none.
+     */
+    abstract boolean advance() throws IOException;
+
+    ByteArray key() {
+      return key_;
+    }
+
+    byte[] value() {
+      return value_;
+    }
+
+    void close() throws IOException {
+    }
+  }
+
+  private static class BufferedRun extends SortedRun {
+    private final Iterator<BufferedEntry> entries_;
+
+    private BufferedRun(List<BufferedEntry> entries) {
+      entries_ = entries.iterator();
+    }
+
+    @Override
+    boolean advance() {
+      if (!entries_.hasNext()) {
+        return false;
+      }
+      BufferedEntry entry = entries_.next();
+      key_ = entry.key_;
+      value_ = entry.value_;
+      return true;
+    }
+  }
+
+  private static class FileRun extends SortedRun {
+    private final DataInputStream in_;
+
+    private FileRun(File runFile) throws IOException {
+      in_ = new DataInputStream(new BufferedInputStream(new FileInputStream(runFile), RUN_BUFFER_SIZE));
+    }
+
+    @Override
+    boolean advance() throws IOException {
+      int keyLen;
+      try {
+        keyLen = in_.readInt();
+      } catch (EOFException e) {
+        return false;
+      }
+      int valLen = in_.readInt();
+      byte[] key = new byte[keyLen];
+      in_.readFully(key);
+      value_ = new byte[valLen];
+      in_.readFully(value_);
+      key_ = new ByteArray(key);
+      return true;
+    }
+
+    @Override
+    void close() throws IOException {
+      in_.close();
+    }
+  }
 }
\ No newline at end of file
@@ -0,0 +1,346 @@
+package de.jhoff.dmap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import de.jhoff.dmap.util.BloomFilter;
+import de.jhoff.dmap.util.ByteArray;
+import de.jhoff.dmap.util.CompressionUtils;
+import de.jhoff.dmap.util.ExtendedFileChannel;
+
+/**
+ * Block trailer with front-coded keys, as in SSTables. Each key is stored as
+ * the length of the prefix it shares with the previous key and the remaining
+ * suffix. Every restartInterval-th key is stored in full (a restart point),
+ * so a lookup binary-searches the restart points and then decodes at most
+ * one run of keys. The value offsets are bit-packed with as many bits as the
+ * largest offset of the block needs.
+ *
+ * The trailer consists of:
+ *  - number of entries (int), restart interval (int), position of the
+ *    restart table (int), bits per value offset (byte)
+ *  - the optional Bloom filter over the block's keys
+ *  - the restart table, the position of each restart entry (int)
+ *  - the bit-packed value offsets (longs)
+ *  - the optional hash of each key (longs), see {@link DMapBuilder#enableKeyHashes()}
+ *  - the entries (shared prefix length, suffix length, suffix) in key order
+ *
+ * All positions are relative to the trailer start.
+ */
+class FrontCodedTrailer {
+  /** Default number of keys per restart point. */
+  static final int DEFAULT_RESTART_INTERVAL = 16;
+
+  /** Value offset returned for keys that are not in the trailer. */
+  static final int NOT_FOUND = -1;
+
+  /** Position of the Bloom filter, it follows the fixed-width fields. */
+  static final int FILTER_POSITION = 13;
+
+  /**
+   * Writes the trailer for the entries of a block at the current position of
+   * output.
+   *
+   * @param output Channel to write to.
+   * @param keys Keys of the block, in key order.
+   * @param valueOffsets Value offset of each key.
+   * @param hashes Hash of each key, or null if the hashes are not stored.
+   * @param restartInterval Number of keys per restart point.
+   * @param bloomFilter Filter over the keys, or null.
+   */
+  static void write(ExtendedFileChannel output, List<ByteArray> keys, int[] valueOffsets, long[] hashes,
+      int restartInterval, BloomFilter bloomFilter) throws IOException {
+    int numEntries = keys.size();
+    int numRestarts = (numEntries + restartInterval - 1) / restartInterval;
+    int maxOffset = 0;
+    for (int offset : valueOffsets) {
+      maxOffset = Math.max(maxOffset, offset);
+    }
+    int offsetBits = 32 - Integer.numberOfLeadingZeros(maxOffset);
+    int offsetWords = (int) (((long) numEntries * offsetBits + 63) >>> 6);
+    int tablePosition = FILTER_POSITION + (bloomFilter != null ? bloomFilter.serializedSize() : 0);
+    int hashWords = hashes != null ? numEntries : 0;
+    int entriesPosition = tablePosition + 4 * numRestarts + 8 * offsetWords + 8 * hashWords;
+
+    // shared prefix length of each entry, and the size of all entries
+    int[] shared = new int[numEntries];
+    int entriesSize = 0;
+    byte[] previous = null;
+    for (int i = 0; i < numEntries; ++i) {
+      byte[] key = keys.get(i).getBytes();
+      if (i % restartInterval != 0) {
+        int limit = Math.min(key.length, previous.length);
+        while (shared[i] < limit && key[shared[i]] == previous[shared[i]]) {
+          ++shared[i];
+        }
+      }
+      int suffixLength = key.length - shared[i];
+      entriesSize += CompressionUtils.getVNumSize(shared[i]) + CompressionUtils.getVNumSize(suffixLength)
+          + suffixLength;
+      previous = key;
+    }
+
+    output.writeInt(numEntries);
+    output.writeInt(restartInterval);
+    output.writeInt(tablePosition);
+    output.writeByte(offsetBits);
+    if (bloomFilter != null) {
+      bloomFilter.writeTo(output);
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(4 * numRestarts + 8 * offsetWords + 8 * hashWords + entriesSize);
+    int position = entriesPosition;
+    for (int i = 0; i < numEntries; ++i) {
+      byte[] key = keys.get(i).getBytes();
+      int suffixLength = key.length - shared[i];
+      if (i % restartInterval == 0) {
+        buffer.putInt(position);
+      }
+      position += CompressionUtils.getVNumSize(shared[i]) + CompressionUtils.getVNumSize(suffixLength)
+          + suffixLength;
+    }
+    long[] words = new long[offsetWords];
+    // with 0 bits (all offsets 0, e.g. a single entry) there is nothing to pack
+    for (int i = 0; offsetBits > 0 && i < numEntries; ++i) {
+      long bit = (long) i * offsetBits;
+      int word = (int) (bit >>> 6);
+      int shift = (int) (bit & 63);
+      words[word] |= (long) valueOffsets[i] << shift;
+      if (shift + offsetBits > 64) {
+        words[word + 1] |= (long) valueOffsets[i] >>> (64 - shift);
+      }
+    }
+    for (long word : words) {
+      buffer.putLong(word);
+    }
+    for (int i = 0; i < hashWords; ++i) {
+      buffer.putLong(hashes[i]);
+    }
+    for (int i = 0; i < numEntries; ++i) {
+      byte[] key = keys.get(i).getBytes();
+      CompressionUtils.writeVInt(buffer, shared[i]);
+      CompressionUtils.writeVInt(buffer, key.length - shared[i]);
+      buffer.put(key, shared[i], key.length - shared[i]);
+    }
+    buffer.flip();
+    output.write(buffer);
+  }
+
+  /**
+   * Decodes the entries of a trailer. A cursor can be reset to another
+   * trailer, so that lookups reuse its key buffer. It is not thread-safe.
+   */
+  static class Cursor {
+    private ByteBuffer trailer_;
+    private int numEntries_;
+    private int restartInterval_;
+    private int tablePosition_;
+    private int offsetsPosition_;
+    private int offsetBits_;
+    /** Position of the key hashes, if they are stored. */
+    private int hashesPosition_;
+
+    /** Index of the entry next() decodes. */
+    private int entry_;
+    /** Position of the entry next() decodes. */
+    private int position_;
+
+    /** The current key, in the first keyLength_ bytes of key_. */
+    private byte[] key_ = new byte[64];
+    private ByteBuffer keyBuffer_ = ByteBuffer.wrap(key_);
+    private int keyLength_;
+    private int valueOffset_;
+
+    /**
+     * Moves the cursor before the first entry of trailer.
+     */
+    Cursor reset(ByteBuffer trailer) {
+      trailer_ = trailer;
+      numEntries_ = trailer.getInt(0);
+      restartInterval_ = trailer.getInt(4);
+      tablePosition_ = trailer.getInt(8);
+      offsetBits_ = trailer.get(12);
+      offsetsPosition_ = tablePosition_ + 4 * numRestarts();
+      hashesPosition_ = offsetsPosition_ + 8 * (int) (((long) numEntries_ * offsetBits_ + 63) >>> 6);
+      entry_ = 0;
+      position_ = numEntries_ > 0 ? trailer.getInt(tablePosition_) : 0;
+      return this;
+    }
+
+    int size() {
+      return numEntries_;
+    }
+
+    /**
+     * Moves the cursor so that next() decodes the entry.
+     */
+    void seek(int entry) {
+      if (entry >= numEntries_) {
+        entry_ = numEntries_;
+        return;
+      }
+      int restart = entry / restartInterval_;
+      if (entry < entry_ || entry_ <= restart * restartInterval_) {
+        entry_ = restart * restartInterval_;
+        position_ = trailer_.getInt(tablePosition_ + 4 * restart);
+      }
+      while (entry_ < entry) {
+        next();
+      }
+    }
+
+    boolean hasNext() {
+      return entry_ < numEntries_;
+    }
+
+    /**
+     * Decodes the next entry.
+     */
+    void next() {
+      int shared = CompressionUtils.readVInt(trailer_, position_);
+      position_ += CompressionUtils.decodeVNumSize(trailer_.get(position_));
+      int suffixLength = CompressionUtils.readVInt(trailer_, position_);
+      position_ += CompressionUtils.decodeVNumSize(trailer_.get(position_));
+      keyLength_ = shared + suffixLength;
+      if (keyLength_ > key_.length) {
+        byte[] key = new byte[Math.max(keyLength_, 2 * key_.length)];
+        System.arraycopy(key_, 0, key, 0, shared);
+        key_ = key;
+        keyBuffer_ = ByteBuffer.wrap(key_);
+      }
+      for (int i = 0; i < suffixLength; ++i) {
+        key_[shared + i] = trailer_.get(position_ + i);
+      }
+      position_ += suffixLength;
+      valueOffset_ = readOffset(entry_++);
+    }
+
+    /**
+     * @return  Index of the current entry.
+     */
+    int entry() {
+      return entry_ - 1;
+    }
+
+    int keyLength() {
+      return keyLength_;
+    }
+
+    /**
+     * Copies the current key to dst.
+     */
+    void copyKey(byte[] dst) {
+      System.arraycopy(key_, 0, dst, 0, keyLength_);
+    }
+
+    int valueOffset() {
+      return valueOffset_;
+    }
+
+    /**
+     * @return  Stored hash of the entry's key, only if the hashes are stored.
+     */
+    long hash(int entry) {
+      return trailer_.getLong(hashesPosition_ + 8 * entry);
+    }
+
+    /**
+     * Compares key to the current key.
+     */
+    int compare(byte[] key, KeyOrder keyOrder) {
+      return keyOrder.compare(key, keyBuffer_, 0, keyLength_);
+    }
+
+    /**
+     * Returns the value offset of key, or {@link #NOT_FOUND}.
+     */
+    int find(byte[] key, KeyOrder keyOrder) {
+      int restart = lastRestartNotAfter(key, keyOrder);
+      if (restart < 0) {
+        return NOT_FOUND;
+      }
+      seek(restart * restartInterval_);
+      int end = Math.min(numEntries_, (restart + 1) * restartInterval_);
+      while (entry_ < end) {
+        next();
+        int cmp = compare(key, keyOrder);
+        if (cmp == 0) {
+          return valueOffset_;
+        } else if (cmp < 0) {
+          break;
+        }
+      }
+      return NOT_FOUND;
+    }
+
+    /**
+     * Returns the value offset of the entry if it belongs to key, or
+     * {@link #NOT_FOUND}.
+     */
+    int find(byte[] key, int entry, KeyOrder keyOrder) {
+      seek(entry);
+      next();
+      return keyLength_ == key.length && compare(key, keyOrder) == 0 ? valueOffset_ : NOT_FOUND;
+    }
+
+    /**
+     * Returns the index of the first entry with a key >= key.
+     */
+    int lowerBound(byte[] key, KeyOrder keyOrder) {
+      int restart = lastRestartNotAfter(key, keyOrder);
+      if (restart < 0) {
+        return 0;
+      }
+      seek(restart * restartInterval_);
+      int end = Math.min(numEntries_, (restart + 1) * restartInterval_);
+      while (entry_ < end) {
+        next();
+        if (compare(key, keyOrder) <= 0) {
+          return entry();
+        }
+      }
+      return end;
+    }
+
+    private int numRestarts() {
+      return (numEntries_ + restartInterval_ - 1) / restartInterval_;
+    }
+
+    /*
+     * Binary search for the last restart point with a key <= key, -1 if
+     * key is smaller than all keys. Restart keys are compared in place.
+     */
+    private int lastRestartNotAfter(byte[] key, KeyOrder keyOrder) {
+      int low = 0;
+      int high = numRestarts() - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        int position = trailer_.getInt(tablePosition_ + 4 * mid);
+        // the shared prefix length of a restart entry is 0, a single byte
+        position += 1;
+        int keyLength = CompressionUtils.readVInt(trailer_, position);
+        position += CompressionUtils.decodeVNumSize(trailer_.get(position));
+        if (keyOrder.compare(key, trailer_, position, keyLength) < 0) {
+          high = mid - 1;
+        } else {
+          low = mid + 1;
+        }
+      }
+      return high;
+    }
+
+    private int readOffset(int entry) {
+      if (offsetBits_ == 0) {
+        return 0;
+      }
+      long bit = (long) entry * offsetBits_;
+      int position = offsetsPosition_ + 8 * (int) (bit >>> 6);
+      int shift = (int) (bit & 63);
+      long value = trailer_.getLong(position) >>> shift;
+      if (shift + offsetBits_ > 64) {
+        value |= trailer_.getLong(position + 8) << (64 - shift);
+      }
+      return (int) (value & ((1L << offsetBits_) - 1));
+    }
+  }
+}
@@ -0,0 +1,163 @@
+package de.jhoff.dmap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+
+import de.jhoff.dmap.util.ExtendedFileChannel;
+
+/**
+ * Index section with an open-addressing hash table from key hashes to the
+ * block trailer entry of the key. Unlike the {@link PerfectHashIndex},
+ * nothing of it is held on the heap and nothing is computed when it is
+ * opened, the table is probed in the mapped file.
+ *
+ * The section consists of the number of slots (int, a power of two) and the
+ * slots, each holding the 64-bit hash of a key, its block index and the
+ * position of its entry in the block trailer (its number in front-coded
+ * trailers). Empty slots have block index -1. Keys are placed with linear
+ * probing, the table is at most 2/3 full.
+ */
+class HashIndex {
+  /** Location returned for empty slots, the key is not in the index. */
+  static final long EMPTY = -1;
+
+  /** Location returned for slots of other hashes, probing continues. */
+  static final long OTHER_HASH = -2;
+
+  private static final int EMPTY_BLOCK = -1;
+
+  private static final int SLOT_SIZE = 16;
+
+  /** Slots per mapped segment, keeps each mapping at 1GB. */
+  private static final int SLOTS_PER_SEGMENT = 1 << 26;
+
+  private final MappedByteBuffer[] slotSegments_;
+
+  private final int mask_;
+
+  private HashIndex(MappedByteBuffer[] slotSegments, int slotCount) {
+    slotSegments_ = slotSegments;
+    mask_ = slotCount - 1;
+  }
+
+  /**
+   * Writes the index for all keys at the current position of output.
+   *
+   * @param output Channel to write to.
+   * @param hashes Hash of each key.
+   * @param blocks Block index of each key.
+   * @param entryPositions Position of each key's entry in its block trailer.
+   */
+  static void write(ExtendedFileChannel output, long[] hashes, int[] blocks, int[] entryPositions) throws IOException {
+    int slotCount = slotCount(hashes.length);
+    int mask = slotCount - 1;
+    long[] slotHashes = new long[slotCount];
+    int[] slotBlocks = new int[slotCount];
+    int[] slotEntries = new int[slotCount];
+    Arrays.fill(slotBlocks, EMPTY_BLOCK);
+    for (int i = 0; i < hashes.length; ++i) {
+      int slot = slot(hashes[i], mask);
+      while (slotBlocks[slot] != EMPTY_BLOCK) {
+        slot = (slot + 1) & mask;
+      }
+      slotHashes[slot] = hashes[i];
+      slotBlocks[slot] = blocks[i];
+      slotEntries[slot] = entryPositions[i];
+    }
+    output.writeInt(slotCount);
+    ByteBuffer buffer = ByteBuffer.allocate(Math.min(slotCount, 1 << 16) * SLOT_SIZE);
+    for (int slot = 0; slot < slotCount; ++slot) {
+      if (!buffer.hasRemaining()) {
+        buffer.flip();
+        output.write(buffer);
+        buffer.clear();
+      }
+      buffer.putLong(slotHashes[slot]);
+      buffer.putInt(slotBlocks[slot]);
+      buffer.putInt(slotEntries[slot]);
+    }
+    buffer.flip();
+    output.write(buffer);
+  }
+
+  /**
+   * Maps the index starting at offset.
+   *
+   * @param raf Channel of the map file.
+   * @param offset Start of the index section.
+   * @param load Whether to load the index into memory.
+   * @return  The index.
+   */
+  static HashIndex read(ExtendedFileChannel raf, long offset, boolean load) throws IOException {
+    int slotCount = raf.map(MapMode.READ_ONLY, offset, 4).getInt(0);
+    long slotsStart = offset + 4;
+    int numSegments = (slotCount + SLOTS_PER_SEGMENT - 1) / SLOTS_PER_SEGMENT;
+    MappedByteBuffer[] slotSegments = new MappedByteBuffer[numSegments];
+    for (int i = 0; i < numSegments; ++i) {
+      int slots = Math.min(SLOTS_PER_SEGMENT, slotCount - i * SLOTS_PER_SEGMENT);
+      slotSegments[i] = raf.map(MapMode.READ_ONLY,
+          slotsStart + (long) i * SLOTS_PER_SEGMENT * SLOT_SIZE, (long) slots * SLOT_SIZE);
+      if (load) {
+        slotSegments[i].load();
+      }
+    }
+    return new HashIndex(slotSegments, slotCount);
+  }
+
+  /**
+   * @param hash Hash of the key.
+   * @return  First slot to probe for the key.
+   */
+  int firstSlot(long hash) {
+    return slot(hash, mask_);
+  }
+
+  /**
+   * @param slot Slot that did not hold the key.
+   * @return  Next slot to probe.
+   */
+  int nextSlot(int slot) {
+    return (slot + 1) & mask_;
+  }
+
+  /**
+   * Reads a slot.
+   *
+   * @param slot Slot to read.
+   * @param hash Hash of the key.
+   * @return  Block index in the upper and trailer entry position in the lower
+   *  32 bits if the slot holds the hash, {@link #EMPTY} or {@link #OTHER_HASH}.
+   *  The key at the entry still needs to be compared, the hash might belong
+   *  to a different key.
+   */
+  long get(int slot, long hash) {
+    ByteBuffer segment = slotSegments_[slot / SLOTS_PER_SEGMENT];
+    int slotStart = (slot % SLOTS_PER_SEGMENT) * SLOT_SIZE;
+    int block = segment.getInt(slotStart + 8);
+    if (block == EMPTY_BLOCK) {
+      return EMPTY;
+    }
+    if (segment.getLong(slotStart) != hash) {
+      return OTHER_HASH;
+    }
+    return ((long) block << 32) | segment.getInt(slotStart + 12);
+  }
+
+  /*
+   * Smallest power of two that keeps the table at most 2/3 full.
+   */
+  private static int slotCount(int keys) {
+    long minSlots = Math.max(2, (keys * 3L + 1) / 2);
+    if (minSlots > 1 << 30) {
+      throw new IllegalArgumentException("Too many keys for a hash index: " + keys);
+    }
+    return Integer.highestOneBit((int) minSlots - 1) << 1;
+  }
+
+  private static int slot(long hash, int mask) {
+    return (int) (hash >>> 32) & mask;
+  }
+}
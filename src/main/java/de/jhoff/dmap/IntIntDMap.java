@@ -0,0 +1,159 @@
+package de.jhoff.dmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Disk-backed, read-only map from int to int, built by the 
+ * {@link IntIntDMapBuilder}.
+ * 
+ * Keys and values are stored as two mapped arrays of fixed-width ints in 
+ * Eytzinger order, so there is no per-key heap overhead and a lookup neither 
+ * boxes nor allocates. File layout: magic, version, size, keys, values.
+ */
+public class IntIntDMap {
+  /** Identifies int-int map files ("IIDM"). */
+  static final int MAGIC = 0x4949444D;
+
+  public static final int VERSION = 1;
+
+  /** Maximum number of pairs, so that each array fits into a single mapping. */
+  public static final int MAX_SIZE = Integer.MAX_VALUE / 4;
+
+  /** Size of magic, version and size. */
+  private static final int HEADER_SIZE = 12;
+
+  /** Number of pairs in the map. */
+  private final int size_;
+
+  /** Keys in Eytzinger order. */
+  private final IntBuffer keys_;
+
+  /** Values, in the order of their keys. */
+  private final IntBuffer values_;
+
+  private final Logger logger_ = LoggerFactory.getLogger(IntIntDMap.class);
+
+  private IntIntDMap(Builder loader) throws IOException {
+    try (RandomAccessFile file = new RandomAccessFile(loader.mapFile_, "r")) {
+      FileChannel channel = file.getChannel();
+      if (channel.size() < HEADER_SIZE) {
+        throw new IOException("Invalid IntIntDMap file encountered, it is too short.");
+      }
+      MappedByteBuffer header = channel.map(MapMode.READ_ONLY, 0, HEADER_SIZE);
+      if (header.getInt(0) != MAGIC) {
+        throw new IOException("Not an IntIntDMap file: " + loader.mapFile_);
+      }
+      if (header.getInt(4) != VERSION) {
+        throw new IOException("Invalid version of IntIntDMap file encountered. Please fix.");
+      }
+      size_ = header.getInt(8);
+      if (size_ < 0 || size_ > MAX_SIZE || channel.size() < HEADER_SIZE + 8L * size_) {
+        throw new IOException("Invalid IntIntDMap file encountered, size does not match: " + size_);
+      }
+      // the mappings stay valid after the channel is closed
+      MappedByteBuffer keys = channel.map(MapMode.READ_ONLY, HEADER_SIZE, 4L * size_);
+      MappedByteBuffer values = channel.map(MapMode.READ_ONLY, HEADER_SIZE + 4L * size_, 4L * size_);
+      if (loader.preload_) {
+        keys.load();
+        values.load();
+        logger_.debug("Preloaded " + size_ + " pairs.");
+      }
+      keys_ = keys.asIntBuffer();
+      values_ = values.asIntBuffer();
+    }
+  }
+
+  /*  This public Builder class allows creation of customized IntIntDMap instance.
+   *  This is the Only way to create an IntIntDMap instance.
+   */
+  public static class Builder {
+    private final File mapFile_;
+    private boolean preload_;
+
+    /**
+     * A Loader constructor that takes a File parameter to be loaded into IntIntDMap.
+     *
+     * @param mapFile A File instance to be loaded.
+     */
+    public Builder(File mapFile) {
+      mapFile_ = mapFile;
+    }
+
+    /**
+     * This method enables loading the whole map into memory during instantiation.
+     *
+     * @return The current Loader instance.
+     */
+    public Builder preload() {
+      preload_ = true;
+      return this;
+    }
+
+    /**
+     * Creates the IntIntDMap instance.
+     *
+     * @return An IntIntDMap instance.
+     * @throws IOException
+     */
+    public IntIntDMap build() throws IOException {
+      return new IntIntDMap(this);
+    }
+  }
+
+  /**
+   * Get the number of entries in the map.
+   * 
+   * @return Number of entries in the map.
+   */
+  public int size() {
+    return size_;
+  }
+
+  /**
+   * Checks whether there is a value for key.
+   * 
+   * @param key Key to look up.
+   * @return  true if key is in the map.
+   */
+  public boolean containsKey(int key) {
+    return indexOf(key) >= 0;
+  }
+
+  /**
+   * Get the value for key.
+   * 
+   * @param key Key to retrieve the value for.
+   * @param defaultValue Value to return if key is not in the map.
+   * @return  Value associated with key, or defaultValue.
+   */
+  public int get(int key, int defaultValue) {
+    int index = indexOf(key);
+    return index >= 0 ? values_.get(index) : defaultValue;
+  }
+
+  /*
+   * Returns the array index of key, -1 if it is not in the map.
+   */
+  private int indexOf(int key) {
+    // descend the implicit tree, k is the 1-based node
+    int k = 1;
+    while (k <= size_) {
+      k = 2 * k + (keys_.get(k - 1) < key ? 1 : 0);
+    }
+    // the last left turn was at the lower bound of key
+    k >>>= Integer.numberOfTrailingZeros(~k) + 1;
+    if (k == 0 || keys_.get(k - 1) != key) {
+      return -1;
+    }
+    return k - 1;
+  }
+}
@@ -0,0 +1,97 @@
+package de.jhoff.dmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import de.jhoff.dmap.util.ExtendedFileChannel;
+import gnu.trove.list.array.TLongArrayList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builder for the {@link IntIntDMap}. Like the DMapBuilder, it is a 
+ * write-once builder.
+ * 
+ * The pairs are kept in memory (8 bytes per pair) until build() sorts them 
+ * and writes keys and values as fixed-width ints in Eytzinger order (the 
+ * breadth-first order of a complete binary search tree). A lookup then 
+ * touches the same first few cache lines and pages for all keys.
+ */
+public class IntIntDMapBuilder {
+
+  /** Map file to write to. */
+  private final File mapFile_;
+
+  /** Added pairs, key in the upper and value in the lower 32 bits. */
+  private TLongArrayList pairs_ = new TLongArrayList();
+
+  private final Logger logger_ = LoggerFactory.getLogger(IntIntDMapBuilder.class);
+
+  public IntIntDMapBuilder(File mapFile) throws IOException {
+    if (!mapFile.createNewFile()) {
+      throw new IOException("Output map file already exists at: " + mapFile
+          + ", cannot write.");
+    }
+    mapFile_ = mapFile;
+  }
+
+  public void add(int key, int value) {
+    if (pairs_.size() == IntIntDMap.MAX_SIZE) {
+      throw new IllegalStateException("An IntIntDMap holds at most " + IntIntDMap.MAX_SIZE + " pairs.");
+    }
+    pairs_.add(((long) key << 32) | (value & 0xffffffffL));
+  }
+
+  public void build() throws IOException {
+    long[] pairs = pairs_.toArray();
+    pairs_ = null;
+    // signed order of the keys, as they are in the upper bits
+    Arrays.sort(pairs);
+    for (int i = 1; i < pairs.length; ++i) {
+      if ((int) (pairs[i] >> 32) == (int) (pairs[i - 1] >> 32)) {
+        throw new IOException("Duplicate key encountered: " + (int) (pairs[i] >> 32));
+      }
+    }
+    int size = pairs.length;
+    int[] keys = new int[size];
+    int[] values = new int[size];
+    toEytzinger(pairs, keys, values, 0, 1);
+    pairs = null;
+
+    logger_.info("Writing int-int map for " + size + " keys.");
+    ExtendedFileChannel output = new ExtendedFileChannel(new RandomAccessFile(mapFile_, "rw").getChannel(), 
+        ExtendedFileChannel.DEFAULT_BUFFER_SIZE, ExtendedFileChannel.Durability.SYNC_ON_CLOSE);
+    try {
+      output.writeInt(IntIntDMap.MAGIC);
+      output.writeInt(IntIntDMap.VERSION);
+      output.writeInt(size);
+      for (int key : keys) {
+        output.writeInt(key);
+      }
+      for (int value : values) {
+        output.writeInt(value);
+      }
+    } finally {
+      // forces the map to disk once
+      output.close();
+    }
+  }
+
+  /*
+   * Puts the sorted pairs into the subtree rooted at the 1-based node k 
+   * (in-order traversal), starting with pairs[i]. Returns the index of the
+   * next pair.
+   */
+  private static int toEytzinger(long[] pairs, int[] keys, int[] values, int i, int k) {
+    if (k <= keys.length) {
+      i = toEytzinger(pairs, keys, values, i, 2 * k);
+      keys[k - 1] = (int) (pairs[i] >> 32);
+      values[k - 1] = (int) pairs[i];
+      ++i;
+      i = toEytzinger(pairs, keys, values, i, 2 * k + 1);
+    }
+    return i;
+  }
+}
@@ -0,0 +1,51 @@
+package de.jhoff.dmap;
+
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+
+import de.jhoff.dmap.util.ByteArray;
+import de.jhoff.dmap.util.ByteArrayUtils;
+
+/**
+ * Order of the keys in a map file. Blocks and block trailers are sorted in 
+ * this order, so it is also the order of scans.
+ */
+public enum KeyOrder implements Comparator<byte[]> {
+  /**
+   * Shorter keys first, keys of the same length by their unsigned bytes. This
+   * is the order of all files written without a key order flag.
+   */
+  LENGTH_FIRST {
+    @Override
+    public int compare(byte[] a, byte[] b) {
+      return ByteArray.compare(a, b);
+    }
+
+    @Override
+    int compare(byte[] key, ByteBuffer buffer, int position, int length) {
+      return ByteArrayUtils.compare(key, buffer, position, length);
+    }
+  },
+
+  /**
+   * Keys by their unsigned bytes, a key comes before all keys it is a prefix 
+   * of. All keys with the same prefix are adjacent, which allows prefix scans.
+   */
+  LEXICOGRAPHIC {
+    @Override
+    public int compare(byte[] a, byte[] b) {
+      return ByteArrayUtils.compareLexicographic(a, b);
+    }
+
+    @Override
+    int compare(byte[] key, ByteBuffer buffer, int position, int length) {
+      return ByteArrayUtils.compareLexicographic(key, buffer, position, length);
+    }
+  };
+
+  /*
+   * Compares key to the length bytes in buffer starting at the absolute 
+   * position, without changing the position of buffer.
+   */
+  abstract int compare(byte[] key, ByteBuffer buffer, int position, int length);
+}
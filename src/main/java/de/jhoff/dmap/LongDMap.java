@@ -0,0 +1,316 @@
+package de.jhoff.dmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import de.jhoff.dmap.util.EliasFano;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Disk-backed, read-only map from long to byte[], built by the
+ * {@link LongDMapBuilder}.
+ *
+ * The sorted keys and the value offsets are held on the heap as two
+ * {@link EliasFano} sequences, which take a few bytes per key for dense key
+ * sets. A lookup is a successor query on the keys followed by reading the
+ * value from the mapped file, so neither blocks nor trailers are involved.
+ * File layout: header (magic, version, size, maximum value length, index
+ * offset), the values in key order, keys and value offsets.
+ */
+public class LongDMap {
+  /** Identifies long map files ("LDDM"). */
+  static final int MAGIC = 0x4C44444D;
+
+  public static final int VERSION = 1;
+
+  /**
+   * Maximum length of a value, so that a value fits into a single mapping: a
+   * segment and the overlap of the maximum value length are mapped at once, 
+   * which must not exceed Integer.MAX_VALUE bytes.
+   */
+  public static final int MAX_VALUE_LENGTH = (int) (Integer.MAX_VALUE - LongDMap.SEGMENT_SIZE);
+
+  static final int LOC_FOR_INDEX_OFFSET = 16;
+
+  private static final int HEADER_SIZE = 24;
+
+  /** Bytes per data segment. Segments overlap by the maximum value length. */
+  static final long SEGMENT_SIZE = 1L << 30;
+
+  /** Number of entries in the map. */
+  private final int size_;
+
+  /** Keys with flipped sign bit. */
+  private final EliasFano keys_;
+
+  /** Start of each value in the data section, followed by the data length. */
+  private final EliasFano offsets_;
+
+  /** Mapped data, segment i starts at i * SEGMENT_SIZE. */
+  private final MappedByteBuffer[] segments_;
+
+  private final Logger logger_ = LoggerFactory.getLogger(LongDMap.class);
+
+  private LongDMap(Builder loader) throws IOException {
+    try (RandomAccessFile file = new RandomAccessFile(loader.mapFile_, "r")) {
+      FileChannel channel = file.getChannel();
+      if (channel.size() < HEADER_SIZE) {
+        throw new IOException("Invalid LongDMap file encountered, it is too short.");
+      }
+      MappedByteBuffer header = channel.map(MapMode.READ_ONLY, 0, HEADER_SIZE);
+      if (header.getInt(0) != MAGIC) {
+        throw new IOException("Not a LongDMap file: " + loader.mapFile_);
+      }
+      if (header.getInt(4) != VERSION) {
+        throw new IOException("Invalid version of LongDMap file encountered. Please fix.");
+      }
+      size_ = header.getInt(8);
+      int maxValueLength = header.getInt(12);
+      long indexOffset = header.getLong(LOC_FOR_INDEX_OFFSET);
+      if (indexOffset < HEADER_SIZE || indexOffset > channel.size()
+          || channel.size() - indexOffset > Integer.MAX_VALUE) {
+        throw new IOException("Invalid LongDMap file encountered, index offset: " + indexOffset);
+      }
+
+      ByteBuffer index = channel.map(MapMode.READ_ONLY, indexOffset, channel.size() - indexOffset);
+      keys_ = EliasFano.readFrom(index);
+      offsets_ = EliasFano.readFrom(index);
+      if (keys_.size() != size_ || offsets_.size() != size_ + 1) {
+        throw new IOException("Invalid LongDMap file encountered, size does not match: " + size_);
+      }
+
+      // the mappings stay valid after the channel is closed
+      long dataLength = indexOffset - HEADER_SIZE;
+      segments_ = new MappedByteBuffer[(int) ((dataLength + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+      for (int i = 0; i < segments_.length; ++i) {
+        long start = i * SEGMENT_SIZE;
+        segments_[i] = channel.map(MapMode.READ_ONLY, HEADER_SIZE + start,
+            Math.min(SEGMENT_SIZE + maxValueLength, dataLength - start));
+        if (loader.preloadValues_) {
+          segments_[i].load();
+        }
+      }
+      logger_.debug("Loaded index for " + size_ + " keys using " + getIndexMemoryUsage() + " bytes.");
+    }
+  }
+
+  /*  This public Builder class allows creation of customized LongDMap instance.
+   *  This is the Only way to create a LongDMap instance.
+   */
+  public static class Builder {
+    private final File mapFile_;
+    private boolean preloadValues_;
+
+    /**
+     * A Loader constructor that takes a File parameter to be loaded into LongDMap.
+     *
+     * @param mapFile A File instance to be loaded.
+     */
+    public Builder(File mapFile) {
+      mapFile_ = mapFile;
+    }
+
+    /**
+     * This method enables loading all values into memory during instantiation.
+     * The index is always held in memory.
+     *
+     * @return The current Loader instance.
+     */
+    public Builder preloadValues() {
+      preloadValues_ = true;
+      return this;
+    }
+
+    /**
+     * Creates the LongDMap instance.
+     *
+     * @return A LongDMap instance.
+     * @throws IOException
+     */
+    public LongDMap build() throws IOException {
+      return new LongDMap(this);
+    }
+  }
+
+  /**
+   * Get the number of entries in the map.
+   *
+   * @return Number of entries in the map.
+   */
+  public int size() {
+    return size_;
+  }
+
+  /**
+   * Get the heap bytes used by the key and offset index.
+   *
+   * @return  Size of the index in bytes.
+   */
+  public long getIndexMemoryUsage() {
+    return keys_.sizeInBytes() + offsets_.sizeInBytes();
+  }
+
+  /**
+   * Checks whether there is a value for key.
+   *
+   * @param key Key to look up.
+   * @return  true if key is in the map.
+   */
+  public boolean containsKey(long key) {
+    return indexOf(key) >= 0;
+  }
+
+  /**
+   * Get byte[] value for key.
+   *
+   * @param key Key to retrieve the value for.
+   * @return  byte[] associated with key, or null if key is not in the map.
+   */
+  public byte[] get(long key) {
+    int index = indexOf(key);
+    return index >= 0 ? readValue(index) : null;
+  }
+
+  /**
+   * Copy the value for key into dst, starting at its current position.
+   *
+   * @param key Key to retrieve the value for.
+   * @param dst Buffer to copy the value into, its position is advanced by the
+   *  value length.
+   * @return  Length of the value, or -1 if key is not in the map.
+   * @throws BufferOverflowException if the value does not fit into dst. Nothing
+   *  is copied in this case.
+   */
+  public int get(long key, ByteBuffer dst) {
+    int index = indexOf(key);
+    if (index < 0) {
+      return -1;
+    }
+    ByteBuffer view = getView(index);
+    if (view.remaining() > dst.remaining()) {
+      throw new BufferOverflowException();
+    }
+    int length = view.remaining();
+    dst.put(view);
+    return length;
+  }
+
+  /**
+   * Get a read-only view of the value for key in the mapped file.
+   *
+   * @param key Key to retrieve the value for.
+   * @return  Read-only buffer holding exactly the value, or null if key is
+   *  not in the map.
+   */
+  public ByteBuffer getView(long key) {
+    int index = indexOf(key);
+    return index >= 0 ? getView(index) : null;
+  }
+
+  /**
+   * Returns an iterator over all entries, in ascending key order.
+   *
+   * @return  An iterator over the entries.
+   */
+  public Iterator<Entry> entryIterator() {
+    return new RangeIterator(0, size_);
+  }
+
+  /**
+   * Returns an iterator over the entries with fromKey <= key < toKey, in
+   * ascending key order.
+   *
+   * @param fromKey Inclusive lower bound.
+   * @param toKey Exclusive upper bound.
+   * @return  An iterator over the entries in the range.
+   */
+  public Iterator<Entry> scan(long fromKey, long toKey) {
+    if (fromKey >= toKey) {
+      return new RangeIterator(0, 0);
+    }
+    return new RangeIterator(keys_.lowerBound(fromKey ^ Long.MIN_VALUE), keys_.lowerBound(toKey ^ Long.MIN_VALUE));
+  }
+
+  /*
+   * Returns the index of key, -1 if it is not in the map.
+   */
+  private int indexOf(long key) {
+    long encoded = key ^ Long.MIN_VALUE;
+    int index = keys_.lowerBound(encoded);
+    if (index == size_ || keys_.get(index) != encoded) {
+      return -1;
+    }
+    return index;
+  }
+
+  private byte[] readValue(int index) {
+    ByteBuffer view = getView(index);
+    byte[] value = new byte[view.remaining()];
+    view.get(value);
+    return value;
+  }
+
+  private ByteBuffer getView(int index) {
+    long start = offsets_.get(index);
+    int length = (int) (offsets_.get(index + 1) - start);
+    if (length == 0) {
+      return ByteBuffer.allocate(0).asReadOnlyBuffer();
+    }
+    ByteBuffer view = segments_[(int) (start / SEGMENT_SIZE)].asReadOnlyBuffer();
+    int position = (int) (start % SEGMENT_SIZE);
+    view.limit(position + length);
+    view.position(position);
+    return view.slice();
+  }
+
+  private class RangeIterator implements Iterator<Entry> {
+    private int next_;
+    private final int end_;
+
+    private RangeIterator(int start, int end) {
+      next_ = start;
+      end_ = end;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next_ < end_;
+    }
+
+    @Override
+    public Entry next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      int index = next_++;
+      return new Entry(keys_.get(index) ^ Long.MIN_VALUE, readValue(index));
+    }
+  }
+
+  public static class Entry {
+    private final long key;
+    private final byte[] value;
+
+    private Entry(long key, byte[] value) {
+      this.key = key;
+      this.value = value;
+    }
+
+    public long getKey() {
+      return key;
+    }
+
+    public byte[] getValue() {
+      return value;
+    }
+  }
+}
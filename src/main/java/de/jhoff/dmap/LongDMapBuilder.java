@@ -0,0 +1,201 @@
+package de.jhoff.dmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import de.jhoff.dmap.util.CompressionUtils;
+import de.jhoff.dmap.util.EliasFano;
+import de.jhoff.dmap.util.ExtendedFileChannel;
+import gnu.trove.list.array.TLongArrayList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builder for the {@link LongDMap}. Like the DMapBuilder, it is a
+ * write-once builder.
+ *
+ * Values are appended to a temporary file as they are added, only the keys
+ * and the temporary offsets are kept in memory (16 bytes per key). build()
+ * sorts them, copies the values into the map file in key order and writes
+ * keys and value offsets as two {@link EliasFano} sequences. Input that is
+ * already sorted by key is not sorted again.
+ */
+public class LongDMapBuilder {
+
+  /** Map file to write to. */
+  private final File mapFile_;
+
+  /** Values in the order they were added, as varint length and bytes. */
+  private final File tmpFile_;
+  private ExtendedFileChannel tmpOutput_;
+
+  private TLongArrayList keys_ = new TLongArrayList();
+  private TLongArrayList tmpOffsets_ = new TLongArrayList();
+
+  /** Whether the keys were added in ascending order so far. */
+  private boolean sorted_ = true;
+
+  private int maxValueLength_;
+
+  private final Logger logger_ = LoggerFactory.getLogger(LongDMapBuilder.class);
+
+  public LongDMapBuilder(File mapFile) throws IOException {
+    if (!mapFile.createNewFile()) {
+      throw new IOException("Output map file already exists at: " + mapFile
+          + ", cannot write.");
+    }
+    mapFile_ = mapFile;
+    tmpFile_ = File.createTempFile("tmp_" + mapFile.getName(), ".tmp");
+    tmpFile_.deleteOnExit();
+    tmpOutput_ = new ExtendedFileChannel(new RandomAccessFile(tmpFile_, "rw").getChannel(),
+        ExtendedFileChannel.DEFAULT_BUFFER_SIZE, ExtendedFileChannel.Durability.NONE);
+  }
+
+  public void add(long key, byte[] value) throws IOException {
+    if (keys_.size() == Integer.MAX_VALUE - 1) {
+      throw new IllegalStateException("A LongDMap holds at most " + (Integer.MAX_VALUE - 1) + " entries.");
+    }
+    if (value.length > LongDMap.MAX_VALUE_LENGTH) {
+      throw new IllegalArgumentException("Values can be at most " + LongDMap.MAX_VALUE_LENGTH
+          + " bytes long, got " + value.length + ".");
+    }
+    if (!keys_.isEmpty() && key <= keys_.get(keys_.size() - 1)) {
+      sorted_ = false;
+    }
+    keys_.add(key);
+    tmpOffsets_.add(tmpOutput_.position());
+    tmpOutput_.writeVInt(value.length);
+    tmpOutput_.write(value);
+    maxValueLength_ = Math.max(maxValueLength_, value.length);
+  }
+
+  public void build() throws IOException {
+    tmpOutput_.close();
+    tmpOutput_ = null;
+    long[] keys = keys_.toArray();
+    long[] tmpOffsets = tmpOffsets_.toArray();
+    keys_ = null;
+    tmpOffsets_ = null;
+    if (!sorted_) {
+      sort(keys, tmpOffsets, 0, keys.length - 1);
+    }
+    for (int i = 1; i < keys.length; ++i) {
+      if (keys[i] == keys[i - 1]) {
+        throw new IOException("Duplicate key encountered: " + keys[i]);
+      }
+    }
+
+    int size = keys.length;
+    logger_.info("Writing long map for " + size + " keys.");
+    long[] offsets = new long[size + 1];
+    ExtendedFileChannel output = new ExtendedFileChannel(new RandomAccessFile(mapFile_, "rw").getChannel(),
+        ExtendedFileChannel.DEFAULT_BUFFER_SIZE, ExtendedFileChannel.Durability.SYNC_ON_CLOSE);
+    try (RandomAccessFile tmp = new RandomAccessFile(tmpFile_, "r")) {
+      FileChannel input = tmp.getChannel();
+      output.writeInt(LongDMap.MAGIC);
+      output.writeInt(LongDMap.VERSION);
+      output.writeInt(size);
+      output.writeInt(maxValueLength_);
+      // placeholder for the index offset
+      output.writeLong(0);
+
+      ByteBuffer lengthBuffer = ByteBuffer.allocate(5);
+      ByteBuffer valueBuffer = ByteBuffer.allocate(maxValueLength_);
+      long dataLength = 0;
+      for (int i = 0; i < size; ++i) {
+        offsets[i] = dataLength;
+        lengthBuffer.clear();
+        readFully(input, lengthBuffer, tmpOffsets[i]);
+        int length = CompressionUtils.readVInt(lengthBuffer, 0);
+        valueBuffer.clear();
+        valueBuffer.limit(length);
+        readFully(input, valueBuffer, tmpOffsets[i] + CompressionUtils.decodeVNumSize(lengthBuffer.get(0)));
+        valueBuffer.flip();
+        output.write(valueBuffer);
+        dataLength += length;
+      }
+      offsets[size] = dataLength;
+      tmpOffsets = null;
+
+      long indexOffset = output.position();
+      for (int i = 0; i < size; ++i) {
+        // flip the sign bit, so the signed key order is the unsigned order
+        keys[i] ^= Long.MIN_VALUE;
+      }
+      EliasFano.encode(keys).writeTo(output);
+      keys = null;
+      EliasFano.encode(offsets).writeTo(output);
+
+      output.position(LongDMap.LOC_FOR_INDEX_OFFSET);
+      output.writeLong(indexOffset);
+    } finally {
+      // forces the map to disk once
+      output.close();
+      tmpFile_.delete();
+    }
+  }
+
+  /*
+   * Reads from input at position until dst is full or the file ends.
+   */
+  private static void readFully(FileChannel input, ByteBuffer dst, long position) throws IOException {
+    while (dst.hasRemaining()) {
+      int n = input.read(dst, position);
+      if (n < 0) {
+        break;
+      }
+      position += n;
+    }
+  }
+
+  /*
+   * Sorts keys[from..to] ascending, moving values along.
+   */
+  private static void sort(long[] keys, long[] values, int from, int to) {
+    while (to - from > 16) {
+      long pivot = medianOfThree(keys[from], keys[(from + to) >>> 1], keys[to]);
+      int i = from;
+      int j = to;
+      while (i <= j) {
+        while (keys[i] < pivot) {
+          ++i;
+        }
+        while (keys[j] > pivot) {
+          --j;
+        }
+        if (i <= j) {
+          swap(keys, values, i++, j--);
+        }
+      }
+      // recurse into the smaller part to bound the stack depth
+      if (j - from < to - i) {
+        sort(keys, values, from, j);
+        from = i;
+      } else {
+        sort(keys, values, i, to);
+        to = j;
+      }
+    }
+    for (int i = from + 1; i <= to; ++i) {
+      for (int j = i; j > from && keys[j - 1] > keys[j]; --j) {
+        swap(keys, values, j - 1, j);
+      }
+    }
+  }
+
+  private static long medianOfThree(long a, long b, long c) {
+    return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+  }
+
+  private static void swap(long[] keys, long[] values, int i, int j) {
+    long key = keys[i];
+    keys[i] = keys[j];
+    keys[j] = key;
+    long value = values[i];
+    values[i] = values[j];
+    values[j] = value;
+  }
+}
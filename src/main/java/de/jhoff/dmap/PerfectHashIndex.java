@@ -0,0 +1,142 @@
+package de.jhoff.dmap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+
+import de.jhoff.dmap.util.ExtendedFileChannel;
+import de.jhoff.dmap.util.MinimalPerfectHash;
+
+/**
+ * Index section that maps key hashes to the block trailer entry of the key 
+ * with a {@link MinimalPerfectHash}, so lookups need neither a binary search 
+ * over the blocks nor a search in the trailer.
+ * 
+ * The section consists of the serialized function followed by the number of 
+ * records and one fixed-width record per distinct key hash, at the position 
+ * the function maps the hash to: fingerprint, block index and position of the
+ * entry in the block trailer (its number in front-coded trailers, all ints). Only the function is held on the heap,
+ * the records are probed in the mapped file.
+ */
+class PerfectHashIndex {
+  /** Location returned for hashes that are not in the index. */
+  static final long NOT_FOUND = -1;
+
+  /** Location returned for hashes shared by several keys, these need a regular lookup. */
+  static final long COLLISION = -2;
+
+  /** Block index stored for hashes shared by several keys. */
+  private static final int COLLISION_BLOCK = -1;
+
+  private static final int RECORD_SIZE = 12;
+
+  /** Records per mapped segment, keeps each mapping below 2GB. */
+  private static final int RECORDS_PER_SEGMENT = 1 << 26;
+
+  private final MinimalPerfectHash hashFunction_;
+
+  private final MappedByteBuffer[] recordSegments_;
+
+  private PerfectHashIndex(MinimalPerfectHash hashFunction, MappedByteBuffer[] recordSegments) {
+    hashFunction_ = hashFunction;
+    recordSegments_ = recordSegments;
+  }
+
+  /**
+   * Writes the index for all keys at the current position of output.
+   * 
+   * @param output Channel to write to.
+   * @param hashes Hash of each key.
+   * @param blocks Block index of each key.
+   * @param entryPositions Position of each key's entry in its block trailer.
+   */
+  static void write(ExtendedFileChannel output, long[] hashes, int[] blocks, int[] entryPositions) throws IOException {
+    long[] distinctHashes = hashes.clone();
+    Arrays.sort(distinctHashes);
+    int distinct = 0;
+    for (int i = 0; i < distinctHashes.length; ++i) {
+      if (i == 0 || distinctHashes[i] != distinctHashes[i - 1]) {
+        distinctHashes[distinct++] = distinctHashes[i];
+      }
+    }
+    MinimalPerfectHash hashFunction = MinimalPerfectHash.build(Arrays.copyOf(distinctHashes, distinct));
+
+    ByteBuffer records = ByteBuffer.allocate(distinct * RECORD_SIZE);
+    boolean[] used = new boolean[distinct];
+    for (int i = 0; i < hashes.length; ++i) {
+      int position = hashFunction.get(hashes[i]);
+      int block = blocks[i];
+      if (used[position]) {
+        // several keys share the hash
+        block = COLLISION_BLOCK;
+      }
+      used[position] = true;
+      records.putInt(position * RECORD_SIZE, fingerprint(hashes[i]));
+      records.putInt(position * RECORD_SIZE + 4, block);
+      records.putInt(position * RECORD_SIZE + 8, entryPositions[i]);
+    }
+    hashFunction.writeTo(output);
+    output.writeInt(distinct);
+    output.write(records);
+  }
+
+  /**
+   * Reads the index starting at offset.
+   * 
+   * @param raf Channel of the map file.
+   * @param offset Start of the index section.
+   * @return  The index.
+   */
+  static PerfectHashIndex read(ExtendedFileChannel raf, long offset) throws IOException {
+    long length = Math.min(raf.size() - offset, Integer.MAX_VALUE);
+    ByteBuffer buffer = raf.map(MapMode.READ_ONLY, offset, length);
+    MinimalPerfectHash hashFunction = MinimalPerfectHash.readFrom(buffer);
+    int recordCount = buffer.getInt();
+    long recordsStart = offset + buffer.position();
+
+    int numSegments = (recordCount + RECORDS_PER_SEGMENT - 1) / RECORDS_PER_SEGMENT;
+    MappedByteBuffer[] recordSegments = new MappedByteBuffer[numSegments];
+    for (int i = 0; i < numSegments; ++i) {
+      int records = Math.min(RECORDS_PER_SEGMENT, recordCount - i * RECORDS_PER_SEGMENT);
+      recordSegments[i] = raf.map(MapMode.READ_ONLY, 
+          recordsStart + (long) i * RECORDS_PER_SEGMENT * RECORD_SIZE, (long) records * RECORD_SIZE);
+    }
+    return new PerfectHashIndex(hashFunction, recordSegments);
+  }
+
+  /**
+   * Finds the trailer entry for a key hash.
+   * 
+   * @param hash Hash of the key.
+   * @return  Block index in the upper and trailer entry position in the lower 
+   *  32 bits, {@link #NOT_FOUND} or {@link #COLLISION}. The key at the entry 
+   *  still needs to be compared, the hash might belong to a different key.
+   */
+  long lookup(long hash) {
+    int position = hashFunction_.get(hash);
+    ByteBuffer segment = recordSegments_[position / RECORDS_PER_SEGMENT];
+    int recordStart = (position % RECORDS_PER_SEGMENT) * RECORD_SIZE;
+    if (segment.getInt(recordStart) != fingerprint(hash)) {
+      return NOT_FOUND;
+    }
+    int block = segment.getInt(recordStart + 4);
+    if (block == COLLISION_BLOCK) {
+      return COLLISION;
+    }
+    return ((long) block << 32) | segment.getInt(recordStart + 8);
+  }
+
+  /**
+   * @return  Heap bytes used by the hash function.
+   */
+  long sizeInBytes() {
+    return hashFunction_.sizeInBytes();
+  }
+
+  private static int fingerprint(long hash) {
+    // uses different bits than the bucket and position of the hash function
+    return (int) ((hash * 0x9E3779B97F4A7C15L) >>> 32);
+  }
+}
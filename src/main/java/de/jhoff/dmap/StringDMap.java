@@ -0,0 +1,102 @@
+package de.jhoff.dmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import de.jhoff.dmap.util.Utf8;
+
+/**
+ * Disk-backed, read-only map from String to String, built by the
+ * {@link StringDMapBuilder}. Keys and values are stored as UTF-8 in a
+ * {@link DMap}.
+ *
+ * Keys are encoded straight from the CharSequence, without an intermediate
+ * String, and compared against the mapped key bytes in place. Values can
+ * be read as Strings or, without decoding them up front, as views of the
+ * encoded bytes.
+ */
+public class StringDMap {
+
+  private final DMap map_;
+
+  /**
+   * Opens the map with the default settings.
+   *
+   * @param mapFile Map file written by a StringDMapBuilder.
+   */
+  public StringDMap(File mapFile) throws IOException {
+    this(new DMap.Builder(mapFile).build());
+  }
+
+  /**
+   * Wraps a DMap, e.g. one opened with preloading options.
+   *
+   * @param map Map written by a StringDMapBuilder.
+   */
+  public StringDMap(DMap map) {
+    map_ = map;
+  }
+
+  /**
+   * Get the number of entries in the map.
+   *
+   * @return Number of entries in the map.
+   */
+  public int size() {
+    return map_.size();
+  }
+
+  /**
+   * @return  The underlying map with the encoded keys and values.
+   */
+  public DMap getMap() {
+    return map_;
+  }
+
+  /**
+   * Get the value for key.
+   *
+   * @param key Key to retrieve the value for.
+   * @return  Value associated with key, or null if key is not in the map.
+   */
+  public String get(CharSequence key) throws IOException {
+    ByteBuffer value = map_.getView(Utf8.encode(key));
+    return value != null ? Utf8.decode(value) : null;
+  }
+
+  /**
+   * Get a view of the value for key. ASCII values are read from the mapped
+   * file directly and are not copied or decoded, other values are decoded
+   * on first access.
+   *
+   * @param key Key to retrieve the value for.
+   * @return  Value associated with key, or null if key is not in the map.
+   */
+  public CharSequence getChars(CharSequence key) throws IOException {
+    ByteBuffer value = map_.getView(Utf8.encode(key));
+    return value != null ? Utf8.view(value) : null;
+  }
+
+  /**
+   * Get a read-only view of the UTF-8 encoded value for key, see
+   * {@link DMap#getView(byte[])}.
+   *
+   * @param key Key to retrieve the value for.
+   * @return  Encoded value associated with key, or null if key is not in
+   *  the map.
+   */
+  public ByteBuffer getUtf8(CharSequence key) throws IOException {
+    return map_.getView(Utf8.encode(key));
+  }
+
+  /**
+   * Checks whether there is a value for key.
+   *
+   * @param key Key to look up.
+   * @return  true if key is in the map.
+   */
+  public boolean containsKey(CharSequence key) throws IOException {
+    return map_.getView(Utf8.encode(key)) != null;
+  }
+}
@@ -0,0 +1,72 @@
+package de.jhoff.dmap;
+
+import java.io.File;
+import java.io.IOException;
+
+import de.jhoff.dmap.codec.Codecs;
+import de.jhoff.dmap.util.Utf8;
+
+/**
+ * Builder for the {@link StringDMap}, which writes keys and values as UTF-8
+ * with a {@link DMapBuilder}. Like the DMapBuilder, it is a write-once
+ * builder.
+ *
+ * Values are stored uncompressed by default, so that 
+ * {@link StringDMap#getChars(CharSequence)} and 
+ * {@link StringDMap#getUtf8(CharSequence)} return views of the mapped file.
+ * Maps with long values can trade that for a smaller file by wrapping a
+ * DMapBuilder with a codec, values are then decompressed into a copy on 
+ * every read.
+ */
+public class StringDMapBuilder {
+
+  private final DMapBuilder builder_;
+
+  /**
+   * Creates a builder that stores the values uncompressed.
+   *
+   * @param mapFile Map file to write.
+   */
+  public StringDMapBuilder(File mapFile) throws IOException {
+    this(new DMapBuilder(mapFile).setCodec(Codecs.IDENTITY));
+  }
+
+  /**
+   * Creates a builder that stores the values uncompressed.
+   *
+   * @param mapFile Map file to write.
+   * @param blockSize Size of a block (in bytes).
+   */
+  public StringDMapBuilder(File mapFile, int blockSize) throws IOException {
+    this(new DMapBuilder(mapFile, blockSize, false));
+  }
+
+  /**
+   * Wraps a DMapBuilder, e.g. one configured with a block size, key order or
+   * compression setting. No entries may have been added to it.
+   *
+   * With {@link KeyOrder#LEXICOGRAPHIC} key order, the keys are sorted by
+   * code point, as UTF-8 preserves the code point order.
+   *
+   * @param builder Builder to write the map with.
+   */
+  public StringDMapBuilder(DMapBuilder builder) {
+    builder_ = builder;
+  }
+
+  public void add(CharSequence key, CharSequence value) throws IOException {
+    builder_.add(Utf8.encode(key), Utf8.encode(value));
+  }
+
+  /**
+   * Adds an entry of a presorted input, see {@link DMapBuilder#addSorted(byte[], byte[])}.
+   * The order is the one of the encoded keys.
+   */
+  public void addSorted(CharSequence key, CharSequence value) throws IOException {
+    builder_.addSorted(Utf8.encode(key), Utf8.encode(value));
+  }
+
+  public void build() throws IOException {
+    builder_.build();
+  }
+}
@@ -3,10 +3,13 @@ package de.jhoff.dmap.benchmark;
 import java.io.File; 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Random;
 
 import de.jhoff.dmap.DMap;
 import de.jhoff.dmap.DMapBuilder;
+import de.jhoff.dmap.codec.Codec;
+import de.jhoff.dmap.codec.Codecs;
 
 public class DMapBenchmark {
   static int[] arrBlockSizes = new int[] {1024, 1048576}; // 1 KB, 1 MB
@@ -16,6 +19,9 @@ public class DMapBenchmark {
   static long[][] rndReadResults;
   static long[][] iterReadResults;
   static int[][] blocksUsed;
+  static Codec[] arrCodecs = new Codec[] {Codecs.IDENTITY, Codecs.SNAPPY, Codecs.zstd(1), Codecs.ZSTD, Codecs.zstd(19), Codecs.DEFLATE};
+  static int codecKeys = 1<<16; // number of keys for the codec comparison
+  static int openBlocks = 1<<20; // number of blocks for the open time comparison
 
   public static void main(String[] args) throws IOException {    
     boolean[] arrPreloadOffsets = new boolean[]{true, false};
@@ -32,6 +38,121 @@ public class DMapBenchmark {
         printResults(preloadOffset, arrCompressValue);
       }
     }    
+    runCodecBenchmark();
+    runOpenBenchmark();
+  }
+
+  /*
+   * Measures the time to open a map with many blocks, which is dominated by
+   * reading the global trailer (and the trailers when offsets are preloaded).
+   */
+  static void runOpenBenchmark() throws IOException {
+    File mapFile = File.createTempFile("tmp", "dmap");
+    mapFile.delete();
+    // one entry per block
+    DMapBuilder dmapBuilder = new DMapBuilder(mapFile, 16).setCodec(Codecs.IDENTITY);
+    for (int i = 0; i < openBlocks; ++i) {
+      dmapBuilder.add(ByteBuffer.allocate(4).putInt(i).array(), ByteBuffer.allocate(4).putInt(i).array());
+    }
+    dmapBuilder.build();
+
+    System.out.println("================");
+    System.out.println("OPEN (" + openBlocks + " blocks, " + (mapFile.length() >> 20) + " MB)");
+    for (boolean segments : new boolean[] {false, true}) {
+      for (boolean preloadOffsets : new boolean[] {false, true}) {
+        long openTime = Long.MAX_VALUE;
+        // the best of three runs, the file is in the page cache
+        for (int run = 0; run < 3; ++run) {
+          long time = System.currentTimeMillis();
+          DMap.Builder builder = new DMap.Builder(mapFile);
+          if (segments) {
+            builder.mapFileInSegments();
+          }
+          if (preloadOffsets) {
+            builder.preloadOffsets();
+          }
+          builder.build();
+          openTime = Math.min(openTime, System.currentTimeMillis() - time);
+        }
+        System.out.println("segments " + segments + ", preloadOffsets " + preloadOffsets + " : " + openTime + "ms");
+      }
+    }
+    System.out.println("================");
+    mapFile.delete();
+  }
+
+  /*
+   * Compares the compression ratio and the decode throughput of the codecs,
+   * compressing each value on its own, each value with a shared dictionary
+   * and whole blocks.
+   */
+  private static void runCodecBenchmark() throws IOException {
+    System.out.println("================");
+    System.out.println("CODECS (" + codecKeys + " record-like values, 64 KB blocks)");
+    for (String mode : new String[] {"values", "dictionary", "blocks"}) {
+      for (Codec codec : arrCodecs) {
+        if (mode.equals("dictionary") && !codec.supportsDictionary()) {
+          continue;
+        }
+        File mapFile = File.createTempFile("tmp", "dmap");
+        mapFile.delete();
+        DMapBuilder dmapBuilder = new DMapBuilder(mapFile, 1 << 16).setCodec(codec);
+        if (mode.equals("dictionary")) {
+          dmapBuilder.enableDictionaryCompression();
+        } else if (mode.equals("blocks")) {
+          dmapBuilder.enableBlockCompression();
+        }
+        Random r = new Random(42);
+        long rawBytes = 0;
+        long time1 = System.currentTimeMillis();
+        for (int i = 0; i < codecKeys; ++i) {
+          byte[] value = createRecord(i, r);
+          rawBytes += value.length;
+          dmapBuilder.add(ByteBuffer.allocate(4).putInt(i).array(), value);
+        }
+        dmapBuilder.build();
+        long buildTime = System.currentTimeMillis() - time1;
+
+        DMap dmap = new DMap.Builder(mapFile).build();
+        ByteBuffer dst = ByteBuffer.allocate(1024);
+        long readBytes = 0;
+        long decodeNanos = 0;
+        // the first pass warms up, the second one is timed
+        for (int pass = 0; pass < 2; ++pass) {
+          long time2 = System.nanoTime();
+          readBytes = 0;
+          for (int i = 0; i < codecKeys; ++i) {
+            dst.clear();
+            readBytes += dmap.get(ByteBuffer.allocate(4).putInt(i).array(), dst);
+          }
+          decodeNanos = Math.max(System.nanoTime() - time2, 1);
+        }
+
+        // block compression never uses the identity codec
+        String codecName = dmap.getCodec().getId() == codec.getId() ? codec.getName() : dmap.getCodec().getName();
+        System.out.println(codecName + " (" + mode + ")"
+            + " : ratio " + String.format("%.2f", (double) rawBytes / mapFile.length()) 
+            + ", build " + buildTime + "ms"
+            + ", decode " + String.format("%.1f", readBytes * 1000.0 / decodeNanos) + " MB/s");
+        mapFile.delete();
+      }
+    }
+    System.out.println("================");
+  }
+
+  /*
+   * Returns a value of 50-300 bytes with a lot of shared structure.
+   */
+  private static byte[] createRecord(int id, Random r) {
+    StringBuilder record = new StringBuilder("{\"id\":").append(id)
+        .append(",\"type\":\"").append(r.nextBoolean() ? "customer" : "supplier")
+        .append("\",\"country\":\"").append(new String[] {"DE", "FR", "US", "JP"}[r.nextInt(4)])
+        .append("\",\"tags\":[");
+    int tags = r.nextInt(12);
+    for (int i = 0; i < tags; ++i) {
+      record.append(i > 0 ? "," : "").append("\"tag").append(r.nextInt(50)).append("\"");
+    }
+    return record.append("]}").toString().getBytes(StandardCharsets.UTF_8);
   }
 
   private static void init() {
@@ -0,0 +1,110 @@
+package de.jhoff.dmap.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compression codec for the values or blocks of a DMap. The id of the codec
+ * is stored in the map header, so readers pick the matching codec from
+ * {@link Codecs}. Implementations must be thread-safe.
+ */
+public interface Codec {
+
+  /**
+   * @return  Id stored in the map header, in [0, 255].
+   */
+  int getId();
+
+  /**
+   * @return  Human-readable name of the codec.
+   */
+  String getName();
+
+  /**
+   * @param length Length of the uncompressed data.
+   * @return  Maximum length of the compressed data.
+   */
+  int maxCompressedLength(int length);
+
+  /**
+   * Compresses src[offset, offset + length) into dst at dstOffset.
+   *
+   * @return  Length of the compressed data.
+   */
+  int compress(byte[] src, int offset, int length, byte[] dst, int dstOffset);
+
+  /**
+   * Reads the uncompressed length from the compressed data at position in
+   * src, without moving the position of src.
+   *
+   * @param src Buffer holding the compressed data.
+   * @param position Start of the compressed data.
+   * @param length Length of the compressed data.
+   * @return  Length of the uncompressed data.
+   */
+  int getUncompressedLength(ByteBuffer src, int position, int length) throws IOException;
+
+  /**
+   * Decompresses src[offset, offset + length) into dst at dstOffset, which
+   * needs room for the uncompressed length.
+   *
+   * @return  Length of the uncompressed data.
+   */
+  int decompress(byte[] src, int offset, int length, byte[] dst, int dstOffset) throws IOException;
+
+  /**
+   * @return  true if the codec can compress against a shared dictionary, see
+   *  {@link #trainDictionary(List, int)}.
+   */
+  default boolean supportsDictionary() {
+    return false;
+  }
+
+  /**
+   * Trains a dictionary for compressing data like the samples.
+   *
+   * @param samples Sample data.
+   * @param maxSize Maximum size of the dictionary in bytes.
+   * @return  The dictionary, null if none could be trained (e.g. from too few
+   *  samples).
+   */
+  default byte[] trainDictionary(List<byte[]> samples, int maxSize) {
+    return null;
+  }
+
+  /**
+   * Returns a codec that compresses and decompresses with a dictionary. The
+   * same dictionary is needed to decompress the data.
+   *
+   * @param dictionary Dictionary from {@link #trainDictionary(List, int)}.
+   * @return  Codec with the same id using the dictionary.
+   */
+  default Codec withDictionary(byte[] dictionary) {
+    throw new UnsupportedOperationException(getName() + " does not support dictionaries.");
+  }
+
+  /**
+   * Compresses data.
+   *
+   * @param data Uncompressed data.
+   * @return  Compressed data.
+   */
+  default byte[] compress(byte[] data) {
+    byte[] compressed = new byte[maxCompressedLength(data.length)];
+    int length = compress(data, 0, data.length, compressed, 0);
+    return length == compressed.length ? compressed : Arrays.copyOf(compressed, length);
+  }
+
+  /**
+   * Decompresses src[offset, offset + length).
+   *
+   * @return  Uncompressed data.
+   */
+  default byte[] decompress(byte[] src, int offset, int length) throws IOException {
+    byte[] uncompressed = new byte[getUncompressedLength(ByteBuffer.wrap(src), offset, length)];
+    decompress(src, offset, length, uncompressed, 0);
+    return uncompressed;
+  }
+}
@@ -0,0 +1,89 @@
+package de.jhoff.dmap.codec;
+
+import java.io.IOException;
+
+/**
+ * Registry of the codecs that maps can be written and read with.
+ *
+ * Ids 0 to 127 are reserved for the codecs shipped with DMap, further codecs
+ * can be registered with ids from 128 on, by writers and readers alike.
+ */
+public class Codecs {
+
+  /** Stores the data as is. */
+  public static final Codec IDENTITY = new IdentityCodec();
+
+  /** Snappy, fast compression and decompression. Id 1 is the compressed flag of older maps. */
+  public static final Codec SNAPPY = new SnappyCodec();
+
+  /** Zstandard at its default level. */
+  public static final Codec ZSTD = new ZstdCodec(ZstdCodec.DEFAULT_LEVEL);
+
+  /** Deflate at its default level, with the JDK's compressor. */
+  public static final Codec DEFLATE = new DeflateCodec(DeflateCodec.DEFAULT_LEVEL);
+
+  /** First id available for custom codecs. */
+  public static final int FIRST_CUSTOM_ID = 128;
+
+  private static final Codec[] codecs_ = new Codec[256];
+
+  static {
+    codecs_[IDENTITY.getId()] = IDENTITY;
+    codecs_[SNAPPY.getId()] = SNAPPY;
+    codecs_[ZSTD.getId()] = ZSTD;
+    codecs_[DEFLATE.getId()] = DEFLATE;
+  }
+
+  /**
+   * Returns a Zstandard codec compressing at the given level. Higher levels
+   * give smaller maps at the cost of build time, decompression speed is
+   * about the same for all levels.
+   *
+   * @param level Compression level, from 1 to 22 (negative levels are faster).
+   * @return  The codec.
+   */
+  public static Codec zstd(int level) {
+    return new ZstdCodec(level);
+  }
+
+  /**
+   * Returns a Deflate codec compressing at the given level.
+   *
+   * @param level Compression level, from 0 (stored) to 9.
+   * @return  The codec.
+   */
+  public static Codec deflate(int level) {
+    return new DeflateCodec(level);
+  }
+
+  /**
+   * Registers a custom codec.
+   *
+   * @param codec Codec with an id from {@link #FIRST_CUSTOM_ID} to 255.
+   */
+  public static synchronized void register(Codec codec) {
+    int id = codec.getId();
+    if (id < FIRST_CUSTOM_ID || id > 255) {
+      throw new IllegalArgumentException("Custom codecs need an id from " + FIRST_CUSTOM_ID + " to 255: " + id);
+    }
+    if (codecs_[id] != null && codecs_[id] != codec) {
+      throw new IllegalArgumentException("Codec id " + id + " is taken by " + codecs_[id].getName() + ".");
+    }
+    codecs_[id] = codec;
+  }
+
+  /**
+   * Returns the codec for an id read from a map header.
+   *
+   * @param id Id of the codec.
+   * @return  The codec.
+   * @throws IOException if there is no codec with the id.
+   */
+  public static synchronized Codec forId(int id) throws IOException {
+    Codec codec = id >= 0 && id < codecs_.length ? codecs_[id] : null;
+    if (codec == null) {
+      throw new IOException("Unknown compression codec encountered (id: " + id + ").");
+    }
+    return codec;
+  }
+}
@@ -0,0 +1,53 @@
+package de.jhoff.dmap.codec;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Pool of (de)compression contexts, which are expensive to create, in a 
+ * fixed array of slots. It holds at most as many contexts as threads used 
+ * it at the same time, up to the number of slots. Contexts are not tied to
+ * threads, which may be short-lived virtual threads. Taking and returning a 
+ * context allocates nothing, contexts that do not fit when they are returned
+ * are released.
+ */
+class ContextPool<T> {
+  /** Maximum number of pooled contexts. */
+  private static final int POOL_SIZE = 64;
+
+  private final AtomicReferenceArray<T> slots_ = new AtomicReferenceArray<>(POOL_SIZE);
+
+  private final Consumer<T> release_;
+
+  /**
+   * @param release Releases the resources of a context that is not pooled.
+   */
+  ContextPool(Consumer<T> release) {
+    release_ = release;
+  }
+
+  /**
+   * @return  A pooled context, or null if there is none.
+   */
+  T poll() {
+    for (int i = 0; i < POOL_SIZE; ++i) {
+      T context = slots_.get(i);
+      if (context != null && slots_.compareAndSet(i, context, null)) {
+        return context;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns a context to the pool.
+   */
+  void offer(T context) {
+    for (int i = 0; i < POOL_SIZE; ++i) {
+      if (slots_.get(i) == null && slots_.compareAndSet(i, null, context)) {
+        return;
+      }
+    }
+    release_.accept(context);
+  }
+}
@@ -0,0 +1,132 @@
+package de.jhoff.dmap.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate codec, with the compressor of the JDK (java.util.zip), so it needs
+ * no further dependency. Compresses better than Snappy and worse than
+ * Zstandard, and decompresses slower than both.
+ *
+ * The data is the uncompressed length as little-endian base-128 varint, as
+ * in Snappy, followed by the raw deflate stream. Deflaters and inflaters are
+ * pooled, see {@link ContextPool}.
+ */
+class DeflateCodec implements Codec {
+  static final int DEFAULT_LEVEL = 6;
+
+  /** Maximum size of the varint holding the uncompressed length. */
+  private static final int MAX_LENGTH_SIZE = 5;
+
+  private final int level_;
+
+  private final ContextPool<Deflater> deflaters_ = new ContextPool<>(Deflater::end);
+  private final ContextPool<Inflater> inflaters_ = new ContextPool<>(Inflater::end);
+
+  DeflateCodec(int level) {
+    if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+      throw new IllegalArgumentException("Deflate levels are 0 to 9: " + level);
+    }
+    level_ = level;
+  }
+
+  @Override
+  public int getId() {
+    return 3;
+  }
+
+  @Override
+  public String getName() {
+    return "deflate-" + level_;
+  }
+
+  @Override
+  public int maxCompressedLength(int length) {
+    // the bound of zlib's deflateBound() for raw streams of any settings
+    return MAX_LENGTH_SIZE + length + ((length + 7) >>> 3) + ((length + 63) >>> 6) + 5;
+  }
+
+  @Override
+  public int compress(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+    int position = dstOffset;
+    for (int remaining = length; ; remaining >>>= 7) {
+      if (remaining < 0x80) {
+        dst[position++] = (byte) remaining;
+        break;
+      }
+      dst[position++] = (byte) (remaining | 0x80);
+    }
+    Deflater deflater = deflaters_.poll();
+    if (deflater == null) {
+      deflater = new Deflater(level_, true);
+    }
+    try {
+      deflater.setInput(src, offset, length);
+      deflater.finish();
+      while (!deflater.finished()) {
+        if (position == dst.length) {
+          throw new IllegalArgumentException("Destination too small for the compressed data.");
+        }
+        position += deflater.deflate(dst, position, dst.length - position);
+      }
+      return position - dstOffset;
+    } finally {
+      deflater.reset();
+      deflaters_.offer(deflater);
+    }
+  }
+
+  @Override
+  public int getUncompressedLength(ByteBuffer src, int position, int length) throws IOException {
+    int end = position + Math.min(length, MAX_LENGTH_SIZE);
+    int uncompressedLength = 0;
+    for (int shift = 0; position < end; shift += 7) {
+      byte b = src.get(position++);
+      uncompressedLength |= (b & 0x7f) << shift;
+      if (b >= 0) {
+        return uncompressedLength;
+      }
+    }
+    throw new IOException("Invalid Deflate data, the uncompressed length is malformed.");
+  }
+
+  @Override
+  public int decompress(byte[] src, int offset, int length, byte[] dst, int dstOffset) throws IOException {
+    int uncompressedLength = getUncompressedLength(ByteBuffer.wrap(src), offset, length);
+    int streamStart = offset + 1;
+    while (src[streamStart - 1] < 0) {
+      ++streamStart;
+    }
+    if (uncompressedLength > dst.length - dstOffset) {
+      throw new IOException("Invalid Deflate data, the uncompressed length does not fit.");
+    }
+    Inflater inflater = inflaters_.poll();
+    if (inflater == null) {
+      inflater = new Inflater(true);
+    }
+    try {
+      inflater.setInput(src, streamStart, offset + length - streamStart);
+      int position = dstOffset;
+      int end = dstOffset + uncompressedLength;
+      while (!inflater.finished()) {
+        int inflated = inflater.inflate(dst, position, end - position);
+        position += inflated;
+        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary() || position == end)) {
+          break;
+        }
+      }
+      if (!inflater.finished() || position != end) {
+        throw new IOException("Invalid Deflate data, the uncompressed length does not match.");
+      }
+      return uncompressedLength;
+    } catch (DataFormatException e) {
+      throw new IOException("Invalid Deflate data.", e);
+    } finally {
+      inflater.reset();
+      inflaters_.offer(inflater);
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package de.jhoff.dmap.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Codec that does not compress.
+ */
+class IdentityCodec implements Codec {
+
+  @Override
+  public int getId() {
+    return 0;
+  }
+
+  @Override
+  public String getName() {
+    return "identity";
+  }
+
+  @Override
+  public int maxCompressedLength(int length) {
+    return length;
+  }
+
+  @Override
+  public int compress(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+    System.arraycopy(src, offset, dst, dstOffset, length);
+    return length;
+  }
+
+  @Override
+  public int getUncompressedLength(ByteBuffer src, int position, int length) {
+    return length;
+  }
+
+  @Override
+  public int decompress(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+    System.arraycopy(src, offset, dst, dstOffset, length);
+    return length;
+  }
+}
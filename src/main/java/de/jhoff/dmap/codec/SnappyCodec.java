@@ -0,0 +1,152 @@
+package de.jhoff.dmap.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.iq80.snappy.CorruptionException;
+import org.iq80.snappy.Snappy;
+
+/**
+ * Snappy codec, fast to compress and decompress.
+ */
+class SnappyCodec implements Codec {
+  /** Compressed inputs above this length, i.e. whole blocks, are decoded by the library. */
+  private static final int LIBRARY_DECODE_LENGTH = 8192;
+
+  @Override
+  public int getId() {
+    return 1;
+  }
+
+  @Override
+  public String getName() {
+    return "snappy";
+  }
+
+  @Override
+  public int maxCompressedLength(int length) {
+    return Snappy.maxCompressedLength(length);
+  }
+
+  @Override
+  public int compress(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+    return Snappy.compress(src, offset, length, dst, dstOffset);
+  }
+
+  @Override
+  public int getUncompressedLength(ByteBuffer src, int position, int length) throws IOException {
+    // snappy data starts with the uncompressed length as little-endian base-128 varint
+    int end = position + Math.min(length, 5);
+    int uncompressedLength = 0;
+    for (int shift = 0; position < end; shift += 7) {
+      byte b = src.get(position++);
+      uncompressedLength |= (b & 0x7f) << shift;
+      if (b >= 0) {
+        return uncompressedLength;
+      }
+    }
+    throw new IOException("Invalid Snappy data, the uncompressed length is malformed.");
+  }
+
+  /*
+   * Decodes the raw Snappy format (a varint length, then literals and copies 
+   * of earlier output). The library's decoder allocates on every call, this 
+   * one does not, so that DMap.get(byte[], ByteBuffer) stays allocation-free.
+   * It is faster for values, the library is faster for whole blocks.
+   */
+  @Override
+  public int decompress(byte[] src, int offset, int length, byte[] dst, int dstOffset) throws IOException {
+    if (length > LIBRARY_DECODE_LENGTH) {
+      try {
+        return Snappy.uncompress(src, offset, length, dst, dstOffset);
+      } catch (CorruptionException e) {
+        throw new IOException("Invalid Snappy data.", e);
+      }
+    }
+    int end = offset + length;
+    int uncompressedLength = 0;
+    int shift = 0;
+    byte b;
+    do {
+      if (offset >= end || shift > 28) {
+        throw new IOException("Invalid Snappy data, the uncompressed length is malformed.");
+      }
+      b = src[offset++];
+      uncompressedLength |= (b & 0x7f) << shift;
+      shift += 7;
+    } while (b < 0);
+    if (uncompressedLength < 0 || uncompressedLength > dst.length - dstOffset) {
+      throw new IOException("Invalid Snappy data, the uncompressed length does not fit.");
+    }
+
+    int dstEnd = dstOffset + uncompressedLength;
+    int position = dstOffset;
+    while (offset < end) {
+      int tag = src[offset++] & 0xff;
+      int tagLength;
+      int copyOffset;
+      switch (tag & 3) {
+      case 0:
+        // literal, lengths above 60 follow the tag in 1-4 bytes
+        tagLength = tag >>> 2;
+        if (tagLength >= 60) {
+          int bytes = tagLength - 59;
+          if (offset + bytes > end) {
+            throw new IOException("Invalid Snappy data, truncated literal.");
+          }
+          tagLength = 0;
+          for (int i = 0; i < bytes; ++i) {
+            tagLength |= (src[offset++] & 0xff) << (8 * i);
+          }
+        }
+        tagLength += 1;
+        if (tagLength <= 0 || tagLength > end - offset || tagLength > dstEnd - position) {
+          throw new IOException("Invalid Snappy data, literal out of bounds.");
+        }
+        System.arraycopy(src, offset, dst, position, tagLength);
+        offset += tagLength;
+        position += tagLength;
+        continue;
+      case 1:
+        if (offset + 1 > end) {
+          throw new IOException("Invalid Snappy data, truncated copy.");
+        }
+        tagLength = 4 + ((tag >>> 2) & 7);
+        copyOffset = ((tag >>> 5) << 8) | (src[offset++] & 0xff);
+        break;
+      case 2:
+        if (offset + 2 > end) {
+          throw new IOException("Invalid Snappy data, truncated copy.");
+        }
+        tagLength = 1 + (tag >>> 2);
+        copyOffset = (src[offset] & 0xff) | (src[offset + 1] & 0xff) << 8;
+        offset += 2;
+        break;
+      default:
+        if (offset + 4 > end) {
+          throw new IOException("Invalid Snappy data, truncated copy.");
+        }
+        tagLength = 1 + (tag >>> 2);
+        copyOffset = (src[offset] & 0xff) | (src[offset + 1] & 0xff) << 8
+            | (src[offset + 2] & 0xff) << 16 | (src[offset + 3] & 0xff) << 24;
+        offset += 4;
+        break;
+      }
+      if (copyOffset <= 0 || copyOffset > position - dstOffset || tagLength > dstEnd - position) {
+        throw new IOException("Invalid Snappy data, copy out of bounds.");
+      }
+      // copies may overlap their own output (runs), the copied pattern doubles with each chunk
+      int from = position - copyOffset;
+      int copyEnd = position + tagLength;
+      while (position < copyEnd) {
+        int chunk = Math.min(position - from, copyEnd - position);
+        System.arraycopy(dst, from, dst, position, chunk);
+        position += chunk;
+      }
+    }
+    if (position != dstEnd) {
+      throw new IOException("Invalid Snappy data, the uncompressed length does not match.");
+    }
+    return uncompressedLength;
+  }
+}
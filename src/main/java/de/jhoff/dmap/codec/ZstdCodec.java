@@ -0,0 +1,186 @@
+package de.jhoff.dmap.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdCompressCtx;
+import com.github.luben.zstd.ZstdDecompressCtx;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.github.luben.zstd.ZstdDictTrainer;
+import com.github.luben.zstd.ZstdException;
+
+/**
+ * Zstandard codec. Compresses better than Snappy, so more of a map fits into
+ * the page cache, at the cost of slower compression and decompression.
+ *
+ * With a dictionary, small values are compressed against the shared
+ * structure learned from samples, and the frames leave out the magic number
+ * and dictionary id, as all values of a map share the same dictionary.
+ *
+ * Contexts are expensive to create, so they are pooled and reused, see
+ * {@link ContextPool}.
+ */
+class ZstdCodec implements Codec {
+  static final int DEFAULT_LEVEL = 3;
+
+  /** Magic number of frames, the first four bytes unless frames are magicless. */
+  private static final int FRAME_MAGIC = 0xFD2FB528;
+
+  private final int level_;
+
+  /** Dictionary, null if there is none. */
+  private final byte[] dictionary_;
+  private final ZstdDictCompress compressDictionary_;
+  private final ZstdDictDecompress decompressDictionary_;
+
+  private final ContextPool<ZstdCompressCtx> compressContexts_ = new ContextPool<>(ZstdCompressCtx::close);
+  private final ContextPool<ZstdDecompressCtx> decompressContexts_ = new ContextPool<>(ZstdDecompressCtx::close);
+
+  ZstdCodec(int level) {
+    this(level, null);
+  }
+
+  private ZstdCodec(int level, byte[] dictionary) {
+    level_ = level;
+    dictionary_ = dictionary;
+    if (dictionary != null) {
+      compressDictionary_ = new ZstdDictCompress(dictionary, level);
+      decompressDictionary_ = new ZstdDictDecompress(dictionary);
+    } else {
+      compressDictionary_ = null;
+      decompressDictionary_ = null;
+    }
+  }
+
+  @Override
+  public int getId() {
+    return 2;
+  }
+
+  @Override
+  public String getName() {
+    return "zstd-" + level_ + (dictionary_ != null ? "-dict" : "");
+  }
+
+  @Override
+  public int maxCompressedLength(int length) {
+    return (int) Zstd.compressBound(length);
+  }
+
+  @Override
+  public int compress(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+    if (dictionary_ == null) {
+      long compressedLength = Zstd.compressByteArray(dst, dstOffset, dst.length - dstOffset,
+          src, offset, length, level_);
+      if (Zstd.isError(compressedLength)) {
+        throw new ZstdException(compressedLength);
+      }
+      return (int) compressedLength;
+    }
+    ZstdCompressCtx context = compressContexts_.poll();
+    if (context == null) {
+      context = new ZstdCompressCtx().setLevel(level_).setMagicless(true).setDictID(false)
+          .setContentSize(true).loadDict(compressDictionary_);
+    }
+    try {
+      return context.compressByteArray(dst, dstOffset, dst.length - dstOffset, src, offset, length);
+    } finally {
+      compressContexts_.offer(context);
+    }
+  }
+
+  /*
+   * Reads the content size from the frame header in place: the magic number
+   * (unless magicless), the frame header descriptor, the window descriptor
+   * (unless single segment), the dictionary id and the content size.
+   */
+  @Override
+  public int getUncompressedLength(ByteBuffer src, int position, int length) throws IOException {
+    int end = position + length;
+    if (dictionary_ == null) {
+      if (length < 4 || Integer.reverseBytes(src.getInt(position)) != FRAME_MAGIC) {
+        throw new IOException("Invalid Zstandard data, no frame magic number.");
+      }
+      position += 4;
+    }
+    if (position >= end) {
+      throw new IOException("Invalid Zstandard data, truncated frame header.");
+    }
+    int descriptor = src.get(position++) & 0xff;
+    int contentSizeFlag = descriptor >>> 6;
+    boolean singleSegment = (descriptor & 0x20) != 0;
+    int dictionaryIdFlag = descriptor & 3;
+    if (!singleSegment) {
+      position += 1;
+    }
+    position += dictionaryIdFlag == 3 ? 4 : dictionaryIdFlag;
+    int contentSizeBytes = contentSizeFlag == 0 ? (singleSegment ? 1 : 0) : 1 << contentSizeFlag;
+    if (contentSizeBytes == 0) {
+      throw new IOException("Invalid Zstandard data, the uncompressed length is unknown.");
+    }
+    if (position + contentSizeBytes > end) {
+      throw new IOException("Invalid Zstandard data, truncated frame header.");
+    }
+    long uncompressedLength = 0;
+    for (int i = 0; i < contentSizeBytes; ++i) {
+      uncompressedLength |= (src.get(position + i) & 0xffL) << (8 * i);
+    }
+    if (contentSizeBytes == 2) {
+      // two-byte sizes are stored with an offset of 256
+      uncompressedLength += 256;
+    }
+    if (uncompressedLength < 0 || uncompressedLength > Integer.MAX_VALUE) {
+      throw new IOException("Invalid Zstandard data, the uncompressed length is too large.");
+    }
+    return (int) uncompressedLength;
+  }
+
+  @Override
+  public int decompress(byte[] src, int offset, int length, byte[] dst, int dstOffset) throws IOException {
+    ZstdDecompressCtx context = decompressContexts_.poll();
+    if (context == null) {
+      context = new ZstdDecompressCtx();
+      if (dictionary_ != null) {
+        context.setMagicless(true).loadDict(decompressDictionary_);
+      }
+    }
+    try {
+      return context.decompressByteArray(dst, dstOffset, dst.length - dstOffset, src, offset, length);
+    } catch (ZstdException e) {
+      throw new IOException("Invalid Zstandard data.", e);
+    } finally {
+      decompressContexts_.offer(context);
+    }
+  }
+
+  @Override
+  public boolean supportsDictionary() {
+    return true;
+  }
+
+  @Override
+  public byte[] trainDictionary(List<byte[]> samples, int maxSize) {
+    long sampleBytes = 0;
+    for (byte[] sample : samples) {
+      sampleBytes += sample.length;
+    }
+    ZstdDictTrainer trainer = new ZstdDictTrainer((int) Math.min(sampleBytes, Integer.MAX_VALUE), maxSize);
+    for (byte[] sample : samples) {
+      trainer.addSample(sample);
+    }
+    try {
+      return trainer.trainSamples();
+    } catch (ZstdException e) {
+      // e.g. too few samples
+      return null;
+    }
+  }
+
+  @Override
+  public Codec withDictionary(byte[] dictionary) {
+    return new ZstdCodec(level_, dictionary);
+  }
+}
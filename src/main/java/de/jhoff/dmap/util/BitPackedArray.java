@@ -0,0 +1,123 @@
+package de.jhoff.dmap.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed-size array of non-negative ints stored with the minimal number of 
+ * bits per value.
+ */
+public class BitPackedArray {
+  private final long[] words_;
+  private final int bitsPerValue_;
+  private final int size_;
+  private final long mask_;
+
+  private BitPackedArray(long[] words, int bitsPerValue, int size) {
+    words_ = words;
+    bitsPerValue_ = bitsPerValue;
+    size_ = size;
+    mask_ = bitsPerValue == 0 ? 0 : -1L >>> (Long.SIZE - bitsPerValue);
+  }
+
+  /**
+   * Packs values using as many bits as the largest value needs.
+   * 
+   * @param values Non-negative values.
+   * @return  Packed copy of values.
+   */
+  public static BitPackedArray pack(int[] values) {
+    int max = 0;
+    for (int value : values) {
+      if (value < 0) {
+        throw new IllegalArgumentException("Cannot pack negative value " + value);
+      }
+      max = Math.max(max, value);
+    }
+    int bitsPerValue = Integer.SIZE - Integer.numberOfLeadingZeros(max);
+    long[] words = new long[(int) (((long) values.length * bitsPerValue + Long.SIZE - 1) / Long.SIZE)];
+    BitPackedArray packed = new BitPackedArray(words, bitsPerValue, values.length);
+    for (int i = 0; i < values.length; ++i) {
+      packed.set(i, values[i]);
+    }
+    return packed;
+  }
+
+  private void set(int index, int value) {
+    if (bitsPerValue_ == 0) {
+      return;
+    }
+    long bitIndex = (long) index * bitsPerValue_;
+    int word = (int) (bitIndex >>> 6);
+    int shift = (int) (bitIndex & 63);
+    words_[word] |= (value & mask_) << shift;
+    if (shift + bitsPerValue_ > Long.SIZE) {
+      words_[word + 1] |= (value & mask_) >>> (Long.SIZE - shift);
+    }
+  }
+
+  public int get(int index) {
+    if (bitsPerValue_ == 0) {
+      return 0;
+    }
+    long bitIndex = (long) index * bitsPerValue_;
+    int word = (int) (bitIndex >>> 6);
+    int shift = (int) (bitIndex & 63);
+    long value = words_[word] >>> shift;
+    if (shift + bitsPerValue_ > Long.SIZE) {
+      value |= words_[word + 1] << (Long.SIZE - shift);
+    }
+    return (int) (value & mask_);
+  }
+
+  public int size() {
+    return size_;
+  }
+
+  public int getBitsPerValue() {
+    return bitsPerValue_;
+  }
+
+  /**
+   * @return  Heap bytes used by the packed values.
+   */
+  public long sizeInBytes() {
+    return (long) words_.length * 8;
+  }
+
+  /**
+   * @return  Number of bytes written by {@link #writeTo(ExtendedFileChannel)}.
+   */
+  public int serializedSize() {
+    return 1 + 4 + 4 + words_.length * 8;
+  }
+
+  /**
+   * Writes bits per value (byte), size (int), number of words (int) and the 
+   * words (longs).
+   */
+  public void writeTo(ExtendedFileChannel output) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(serializedSize());
+    buffer.put((byte) bitsPerValue_);
+    buffer.putInt(size_);
+    buffer.putInt(words_.length);
+    for (long word : words_) {
+      buffer.putLong(word);
+    }
+    output.write(buffer);
+  }
+
+  /**
+   * Reads an array written by {@link #writeTo(ExtendedFileChannel)} from the 
+   * current position of buffer, advancing it past the array.
+   */
+  public static BitPackedArray readFrom(ByteBuffer buffer) {
+    int bitsPerValue = buffer.get();
+    int size = buffer.getInt();
+    long[] words = new long[buffer.getInt()];
+    for (int i = 0; i < words.length; ++i) {
+      words[i] = buffer.getLong();
+    }
+    return new BitPackedArray(words, bitsPerValue, size);
+  }
+}
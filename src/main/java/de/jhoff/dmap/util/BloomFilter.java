@@ -0,0 +1,128 @@
+package de.jhoff.dmap.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Simple Bloom filter over 64-bit key hashes (see {@link XxHash64}).
+ * 
+ * The bit positions are derived from the two 32-bit halves of the hash 
+ * (Kirsch-Mitzenmacher double hashing), so each key is hashed only once.
+ */
+public class BloomFilter {
+  /** Upper bound for the number of hash functions. */
+  private static final int MAX_HASH_FUNCTIONS = 30;
+
+  private final long[] bits_;
+  private final int numBits_;
+  private final int numHashFunctions_;
+
+  private BloomFilter(long[] bits, int numHashFunctions) {
+    bits_ = bits;
+    numBits_ = bits.length * Long.SIZE;
+    numHashFunctions_ = numHashFunctions;
+  }
+
+  /**
+   * Creates an empty filter sized for the expected number of entries and 
+   * false positive rate.
+   * 
+   * @param expectedEntries Number of entries that will be added.
+   * @param falsePositiveRate Target false positive rate, in (0, 1).
+   * @return  Empty filter.
+   */
+  public static BloomFilter create(int expectedEntries, double falsePositiveRate) {
+    if (falsePositiveRate <= 0.0 || falsePositiveRate >= 1.0) {
+      throw new IllegalArgumentException("False positive rate must be in (0, 1): " + falsePositiveRate);
+    }
+    int n = Math.max(1, expectedEntries);
+    long numBits = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+    int numWords = (int) Math.max(1, (numBits + Long.SIZE - 1) / Long.SIZE);
+    int numHashFunctions = (int) Math.round((double) numWords * Long.SIZE / n * Math.log(2));
+    numHashFunctions = Math.max(1, Math.min(MAX_HASH_FUNCTIONS, numHashFunctions));
+    return new BloomFilter(new long[numWords], numHashFunctions);
+  }
+
+  public void add(long hash) {
+    int hash1 = (int) hash;
+    int hash2 = (int) (hash >>> 32);
+    for (int i = 1; i <= numHashFunctions_; ++i) {
+      int bit = bitIndex(hash1 + i * hash2);
+      bits_[bit >>> 6] |= 1L << bit;
+    }
+  }
+
+  /**
+   * @param hash Hash of the key.
+   * @return  false if the key was definitely not added, true if it might have been.
+   */
+  public boolean mightContain(long hash) {
+    int hash1 = (int) hash;
+    int hash2 = (int) (hash >>> 32);
+    for (int i = 1; i <= numHashFunctions_; ++i) {
+      int bit = bitIndex(hash1 + i * hash2);
+      if ((bits_[bit >>> 6] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int bitIndex(int combinedHash) {
+    // flip all bits if negative
+    if (combinedHash < 0) {
+      combinedHash = ~combinedHash;
+    }
+    return combinedHash % numBits_;
+  }
+
+  /**
+   * @return  Heap bytes used by the filter's bit array.
+   */
+  public long sizeInBytes() {
+    return (long) bits_.length * 8;
+  }
+
+  /**
+   * @return  Number of bytes written by {@link #writeTo(ExtendedFileChannel)}.
+   */
+  public int serializedSize() {
+    return 1 + 4 + bits_.length * 8;
+  }
+
+  /**
+   * Writes the filter as number of hash functions (byte), number of words 
+   * (int) and the words (longs).
+   */
+  public void writeTo(ExtendedFileChannel output) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(serializedSize());
+    buffer.put((byte) numHashFunctions_);
+    buffer.putInt(bits_.length);
+    for (long word : bits_) {
+      buffer.putLong(word);
+    }
+    output.write(buffer);
+  }
+
+  /**
+   * Reads a filter written by {@link #writeTo(ExtendedFileChannel)} from the 
+   * current position of buffer, advancing it past the filter.
+   */
+  public static BloomFilter readFrom(ByteBuffer buffer) {
+    int numHashFunctions = buffer.get();
+    long[] bits = new long[buffer.getInt()];
+    for (int i = 0; i < bits.length; ++i) {
+      bits[i] = buffer.getLong();
+    }
+    return new BloomFilter(bits, numHashFunctions);
+  }
+
+  /**
+   * Advances the position of buffer past a serialized filter.
+   */
+  public static void skip(ByteBuffer buffer) {
+    buffer.get();
+    int numWords = buffer.getInt();
+    buffer.position(buffer.position() + numWords * 8);
+  }
+}
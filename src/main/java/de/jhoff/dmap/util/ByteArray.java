@@ -3,28 +3,53 @@ package de.jhoff.dmap.util;
 import java.util.Arrays;
 
 /**
- * Wrapper for a byte[] to be used as key in a Map.
+ * Wrapper for a byte[] to be used as key in a Map. The hash code is derived 
+ * from the {@link XxHash64} hash of the bytes and computed only once, so 
+ * maps of keys with a stored hash can be filled without hashing the keys.
  */
 public class ByteArray implements Comparable<ByteArray> {
   private final byte[] bytes_;
 
+  /** Hash code, 0 if not computed yet. */
+  private int hash_;
+
   public ByteArray(byte[] bytes) {
     bytes_ = bytes;
   }
 
+  /**
+   * Wraps bytes with a precomputed hash.
+   * 
+   * @param bytes Bytes to wrap.
+   * @param hash {@link XxHash64#hash(byte[])} of bytes.
+   */
+  public ByteArray(byte[] bytes, long hash) {
+    bytes_ = bytes;
+    hash_ = hashCode(hash);
+  }
+
   public byte[] getBytes() {
     return bytes_;
   }
 
   @Override
   public int hashCode() {
-    return Arrays.hashCode(bytes_);
+    // racing threads compute the same hash
+    int hash = hash_;
+    if (hash == 0) {
+      hash = hashCode(XxHash64.hash(bytes_));
+      hash_ = hash;
+    }
+    return hash;
   }
 
   @Override
   public boolean equals(Object obj) {
     if (obj instanceof ByteArray) {
       ByteArray comp = (ByteArray) obj;
+      if (hash_ != 0 && comp.hash_ != 0 && hash_ != comp.hash_) {
+        return false;
+      }
       return Arrays.equals(comp.bytes_, bytes_);
     } else {
       return false;
@@ -33,16 +58,28 @@ public class ByteArray implements Comparable<ByteArray> {
 
   @Override
   public int compareTo(ByteArray b) {
-    byte[] bBytes = b.getBytes();
-    if (bytes_.length != bBytes.length) {
-      return bytes_.length - bBytes.length;
+    return compare(bytes_, b.getBytes());
+  }
+
+  /**
+   * Compares two byte[] in the order used for keys: shorter arrays come first,
+   * arrays of the same length are compared by their unsigned bytes.
+   * 
+   * @param a First array.
+   * @param b Second array.
+   * @return  A negative number, zero or a positive number if a is less than, 
+   *  equal to or greater than b.
+   */
+  public static int compare(byte[] a, byte[] b) {
+    if (a.length != b.length) {
+      return a.length - b.length;
     } else {
-      for (int i = 0; i < bytes_.length; ++i) {
+      for (int i = 0; i < a.length; ++i) {
         // comparing unsigned ints instead of signed bytes
-        int maskedThis = (bytes_[i] & 0xff);
-        int maskedB = (bBytes[i] & 0xff);
-        if (maskedThis != maskedB) {
-          return maskedThis - maskedB;
+        int maskedA = (a[i] & 0xff);
+        int maskedB = (b[i] & 0xff);
+        if (maskedA != maskedB) {
+          return maskedA - maskedB;
         }
       }
       // Everything is the same.
@@ -50,6 +87,15 @@ public class ByteArray implements Comparable<ByteArray> {
     }
   }
 
+  /*
+   * Folds a 64-bit hash into a hash code, never 0 (which marks a hash code 
+   * that is not computed yet).
+   */
+  private static int hashCode(long hash) {
+    int hashCode = (int) (hash ^ (hash >>> 32));
+    return hashCode != 0 ? hashCode : 1;
+  }
+
   @Override
   public String toString() {
     return Arrays.toString(bytes_);
@@ -1,5 +1,7 @@
 package de.jhoff.dmap.util;
 
+import java.nio.ByteBuffer;
+import java.util.Comparator;
 
 public class ByteArrayUtils {
   /**
@@ -16,6 +18,175 @@ public class ByteArrayUtils {
     return binarySearch(keys, 0, keys.length-1, target);
   }
   
+  /**
+   * Returns the index of the maximum element that is less than given target,
+   * following the same rules as {@link #findMaxElementLessThanTarget(ByteArray[], ByteArray)}.
+   * Does not allocate.
+   *    
+   * @param keys A sorted array of ByteArray elements to be searched
+   * @param target Search element.
+   * @return The index of the maximum element less than given target, -1 if 
+   *  target is less than the first element.
+   */
+  public static int findMaxElementIndexLessThanTarget(ByteArray[] keys, byte[] target) {
+    return findMaxElementIndexLessThanTarget(keys, 0, target);
+  }
+
+  /**
+   * Same as {@link #findMaxElementIndexLessThanTarget(ByteArray[], byte[])}, 
+   * but only searches the elements starting at fromIndex. Returns fromIndex-1
+   * if target is less than the element at fromIndex.
+   *    
+   * @param keys A sorted array of ByteArray elements to be searched
+   * @param fromIndex Index of the first element to be searched.
+   * @param target Search element.
+   * @return The index of the maximum element less than given target.
+   */
+  public static int findMaxElementIndexLessThanTarget(ByteArray[] keys, int fromIndex, byte[] target) {
+    return findMaxElementIndexLessThanTarget(keys, fromIndex, target, ByteArray::compare);
+  }
+
+  /**
+   * Same as {@link #findMaxElementIndexLessThanTarget(ByteArray[], int, byte[])}, 
+   * for elements sorted in the given order.
+   *    
+   * @param keys An array of ByteArray elements sorted in order.
+   * @param fromIndex Index of the first element to be searched.
+   * @param target Search element.
+   * @param order Order of the elements.
+   * @return The index of the maximum element less than given target.
+   */
+  public static int findMaxElementIndexLessThanTarget(ByteArray[] keys, int fromIndex, byte[] target, 
+      Comparator<byte[]> order) {
+    int start = fromIndex;
+    int end = keys.length - 1;
+    while (start <= end) {
+      int mid = (start + end) >>> 1;
+      int cmp = order.compare(target, keys[mid].getBytes());
+      if (cmp == 0) {
+        return mid;
+      } else if (cmp < 0) {
+        end = mid - 1;
+      } else {
+        start = mid + 1;
+      }
+    }
+    // end is the last element less than target (or -1)
+    return end;
+  }
+
+  /**
+   * Checks if the bytes in buffer starting at the absolute position are equal
+   * to key. The position of buffer is not changed.
+   * 
+   * @param buffer Buffer to compare against.
+   * @param position Absolute position in buffer.
+   * @param key Bytes to compare.
+   * @return true if all bytes of key are found at position.
+   */
+  public static boolean equals(ByteBuffer buffer, int position, byte[] key) {
+    for (int i = 0; i < key.length; ++i) {
+      if (buffer.get(position + i) != key[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Compares key to the length bytes in buffer starting at the absolute 
+   * position, in the same order as {@link ByteArray#compare(byte[], byte[])}.
+   * The position of buffer is not changed.
+   * 
+   * @param key Bytes to compare.
+   * @param buffer Buffer holding the other key.
+   * @param position Absolute position of the other key in buffer.
+   * @param length Length of the other key.
+   * @return  A negative number, zero or a positive number if key is less than,
+   *  equal to or greater than the bytes in buffer.
+   */
+  public static int compare(byte[] key, ByteBuffer buffer, int position, int length) {
+    if (key.length != length) {
+      return key.length - length;
+    }
+    for (int i = 0; i < length; ++i) {
+      // comparing unsigned ints instead of signed bytes
+      int maskedKey = (key[i] & 0xff);
+      int maskedOther = (buffer.get(position + i) & 0xff);
+      if (maskedKey != maskedOther) {
+        return maskedKey - maskedOther;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Compares two byte[] by their unsigned bytes. If one is a prefix of the 
+   * other, the shorter one comes first.
+   * 
+   * @param a First array.
+   * @param b Second array.
+   * @return  A negative number, zero or a positive number if a is less than, 
+   *  equal to or greater than b.
+   */
+  public static int compareLexicographic(byte[] a, byte[] b) {
+    int length = Math.min(a.length, b.length);
+    for (int i = 0; i < length; ++i) {
+      int maskedA = (a[i] & 0xff);
+      int maskedB = (b[i] & 0xff);
+      if (maskedA != maskedB) {
+        return maskedA - maskedB;
+      }
+    }
+    return a.length - b.length;
+  }
+
+  /**
+   * Compares key to the length bytes in buffer starting at the absolute 
+   * position, in the same order as {@link #compareLexicographic(byte[], byte[])}.
+   * The position of buffer is not changed.
+   * 
+   * @param key Bytes to compare.
+   * @param buffer Buffer holding the other key.
+   * @param position Absolute position of the other key in buffer.
+   * @param length Length of the other key.
+   * @return  A negative number, zero or a positive number if key is less than,
+   *  equal to or greater than the bytes in buffer.
+   */
+  public static int compareLexicographic(byte[] key, ByteBuffer buffer, int position, int length) {
+    int common = Math.min(key.length, length);
+    for (int i = 0; i < common; ++i) {
+      int maskedKey = (key[i] & 0xff);
+      int maskedOther = (buffer.get(position + i) & 0xff);
+      if (maskedKey != maskedOther) {
+        return maskedKey - maskedOther;
+      }
+    }
+    return key.length - length;
+  }
+
+  /**
+   * Copies length bytes from the absolute position in src to dst. The position 
+   * of src is not changed.
+   */
+  public static void copy(ByteBuffer src, int position, byte[] dst, int length) {
+    for (int i = 0; i < length; ++i) {
+      dst[i] = src.get(position + i);
+    }
+  }
+
+  /**
+   * Copies length bytes from the absolute position in src to the current 
+   * position of dst, advancing it. The position of src is not changed.
+   */
+  public static void copy(ByteBuffer src, int position, ByteBuffer dst, int length) {
+    int dstPosition = dst.position();
+    for (int i = 0; i < length; ++i) {
+      dst.put(dstPosition + i, src.get(position + i));
+    }
+    dst.position(dstPosition + length);
+  }
+
   private static ByteArray binarySearch(ByteArray[] keys, int start, int end, ByteArray target) {
     // start will never be greater than end
     if(end-start <= 1) {
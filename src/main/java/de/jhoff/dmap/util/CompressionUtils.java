@@ -55,6 +55,32 @@ public final class CompressionUtils {
     return readVLong(bb, len, firstByte);
   }
   
+  /**
+   * Reads a VInt at the absolute index without changing the position of bb. 
+   * The encoded size is {@link #decodeVNumSize(byte)} of the byte at index.
+   */
+  public static int readVInt(ByteBuffer bb, int index) {
+    return (int) readVLong(bb, index);
+  }
+
+  /**
+   * Reads a VLong at the absolute index without changing the position of bb.
+   * The encoded size is {@link #decodeVNumSize(byte)} of the byte at index.
+   */
+  public static long readVLong(ByteBuffer bb, int index) {
+    byte firstByte = bb.get(index);
+    int len = decodeVNumSize(firstByte);
+    if (len == 1) {
+      return firstByte;
+    }
+    long l = 0;
+    for (int idx = 1; idx < len; idx++) {
+      l = l << 8;
+      l = l | (bb.get(index + idx) & 0xFF);
+    }
+    return (isNegativeVNum(firstByte) ? ~l : l);
+  }
+  
   public static long readVLong(ByteBuffer bb, int len, byte firstByte) {
     if (len == 1) {
       return firstByte;
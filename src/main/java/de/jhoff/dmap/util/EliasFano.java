@@ -0,0 +1,258 @@
+package de.jhoff.dmap.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Elias-Fano encoding of a non-decreasing sequence of longs, compared as
+ * unsigned. Uses about 2 + log2(u/n) bits per value, where u is the range
+ * of the values, and supports access by index and successor queries.
+ *
+ * Each value is split into low bits, stored bit-packed, and high bits, stored
+ * in unary: value i sets bit (high_i + i) of a bit vector. The positions of
+ * every 256th set and unset bit are sampled to find them quickly.
+ */
+public class EliasFano {
+
+  /** Every SAMPLE_RATE-th set (unset) bit of the high bits has its position sampled. */
+  private static final int LOG_SAMPLE_RATE = 8;
+
+  private final int size_;
+
+  /** Smallest value, all values are stored relative to it. */
+  private final long base_;
+
+  private final int lowBits_;
+  private final long lowMask_;
+  private final long[] lows_;
+
+  private final long[] highs_;
+
+  /** Number of unset bits in highs_. */
+  private final long numZeros_;
+
+  private final long[] oneSamples_;
+  private final long[] zeroSamples_;
+
+  private EliasFano(int size, long base, int lowBits, long[] lows, long[] highs, long numZeros) {
+    size_ = size;
+    base_ = base;
+    lowBits_ = lowBits;
+    lowMask_ = lowBits == 0 ? 0 : -1L >>> (Long.SIZE - lowBits);
+    lows_ = lows;
+    highs_ = highs;
+    numZeros_ = numZeros;
+    oneSamples_ = new long[(size + (1 << LOG_SAMPLE_RATE) - 1) >>> LOG_SAMPLE_RATE];
+    zeroSamples_ = new long[(int) ((numZeros + (1 << LOG_SAMPLE_RATE) - 1) >>> LOG_SAMPLE_RATE)];
+    long ones = 0;
+    long zeros = 0;
+    long numBits = size + numZeros;
+    for (long position = 0; position < numBits; ++position) {
+      if ((highs_[(int) (position >>> 6)] & (1L << position)) != 0) {
+        if ((ones & ((1 << LOG_SAMPLE_RATE) - 1)) == 0) {
+          oneSamples_[(int) (ones >>> LOG_SAMPLE_RATE)] = position;
+        }
+        ++ones;
+      } else {
+        if ((zeros & ((1 << LOG_SAMPLE_RATE) - 1)) == 0) {
+          zeroSamples_[(int) (zeros >>> LOG_SAMPLE_RATE)] = position;
+        }
+        ++zeros;
+      }
+    }
+  }
+
+  /**
+   * Encodes values.
+   *
+   * @param values Values in non-decreasing (unsigned) order.
+   * @return  Encoded copy of values.
+   */
+  public static EliasFano encode(long[] values) {
+    int size = values.length;
+    long base = size == 0 ? 0 : values[0];
+    long range = size == 0 ? 0 : values[size - 1] - base;
+    int lowBits = 0;
+    if (size > 0) {
+      long quotient = Long.divideUnsigned(range, size);
+      lowBits = quotient == 0 ? 0 : Long.SIZE - 1 - Long.numberOfLeadingZeros(quotient);
+    }
+    long numZeros = (range >>> lowBits) + 1;
+    long[] lows = new long[(int) (((long) size * lowBits + Long.SIZE - 1) / Long.SIZE)];
+    long[] highs = new long[(int) ((size + numZeros + Long.SIZE - 1) / Long.SIZE)];
+    long mask = lowBits == 0 ? 0 : -1L >>> (Long.SIZE - lowBits);
+    for (int i = 0; i < size; ++i) {
+      if (i > 0 && Long.compareUnsigned(values[i], values[i - 1]) < 0) {
+        throw new IllegalArgumentException("Values are not sorted at index " + i);
+      }
+      long value = values[i] - base;
+      if (lowBits > 0) {
+        long bitIndex = (long) i * lowBits;
+        int word = (int) (bitIndex >>> 6);
+        int shift = (int) (bitIndex & 63);
+        lows[word] |= (value & mask) << shift;
+        if (shift + lowBits > Long.SIZE) {
+          lows[word + 1] |= (value & mask) >>> (Long.SIZE - shift);
+        }
+      }
+      long position = (value >>> lowBits) + i;
+      highs[(int) (position >>> 6)] |= 1L << position;
+    }
+    return new EliasFano(size, base, lowBits, lows, highs, numZeros);
+  }
+
+  /**
+   * @param index Index of the value, in [0, size()).
+   * @return  The value at index.
+   */
+  public long get(int index) {
+    long high = select1(index) - index;
+    return base_ + ((high << lowBits_) | getLow(index));
+  }
+
+  /**
+   * Finds the first value that is not less than value (compared as unsigned).
+   *
+   * @param value Value to search for.
+   * @return  Index of the first value >= value, size() if there is none.
+   */
+  public int lowerBound(long value) {
+    if (size_ == 0 || Long.compareUnsigned(value, base_) <= 0) {
+      return 0;
+    }
+    long relative = value - base_;
+    long high = relative >>> lowBits_;
+    if (Long.compareUnsigned(high, numZeros_) >= 0) {
+      return size_;
+    }
+    // values with a smaller high part are the ones before the high-th unset bit
+    int low = high == 0 ? 0 : (int) (select0(high - 1) - (high - 1));
+    // and values with a larger high part are the ones after the next unset bit
+    int end = (int) (select0(high) - high);
+    // binary search, skewed inputs can put many values into one bucket
+    while (low < end) {
+      int mid = (low + end) >>> 1;
+      if (Long.compareUnsigned(get(mid), value) < 0) {
+        low = mid + 1;
+      } else {
+        end = mid;
+      }
+    }
+    return low;
+  }
+
+  public int size() {
+    return size_;
+  }
+
+  /**
+   * @return  Heap bytes used by the encoded values.
+   */
+  public long sizeInBytes() {
+    return 8L * (lows_.length + highs_.length + oneSamples_.length + zeroSamples_.length);
+  }
+
+  /**
+   * @return  Number of bytes written by {@link #writeTo(ExtendedFileChannel)}.
+   */
+  public long serializedSize() {
+    return 1 + 4 + 8 + 8 + 4 + 4 + 8L * (lows_.length + highs_.length);
+  }
+
+  /**
+   * Writes low bits (byte), size (int), base (long), number of unset high bits
+   * (long), number of low and high words (ints) and the words (longs). The
+   * samples are rebuilt when reading.
+   */
+  public void writeTo(ExtendedFileChannel output) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(1 + 4 + 8 + 8 + 4 + 4);
+    header.put((byte) lowBits_);
+    header.putInt(size_);
+    header.putLong(base_);
+    header.putLong(numZeros_);
+    header.putInt(lows_.length);
+    header.putInt(highs_.length);
+    output.write(header);
+    for (long word : lows_) {
+      output.writeLong(word);
+    }
+    for (long word : highs_) {
+      output.writeLong(word);
+    }
+  }
+
+  /**
+   * Reads values written by {@link #writeTo(ExtendedFileChannel)} from the
+   * current position of buffer, advancing it past the values.
+   */
+  public static EliasFano readFrom(ByteBuffer buffer) {
+    int lowBits = buffer.get();
+    int size = buffer.getInt();
+    long base = buffer.getLong();
+    long numZeros = buffer.getLong();
+    long[] lows = new long[buffer.getInt()];
+    long[] highs = new long[buffer.getInt()];
+    buffer.asLongBuffer().get(lows);
+    buffer.position(buffer.position() + 8 * lows.length);
+    buffer.asLongBuffer().get(highs);
+    buffer.position(buffer.position() + 8 * highs.length);
+    return new EliasFano(size, base, lowBits, lows, highs, numZeros);
+  }
+
+  private long getLow(int index) {
+    if (lowBits_ == 0) {
+      return 0;
+    }
+    long bitIndex = (long) index * lowBits_;
+    int word = (int) (bitIndex >>> 6);
+    int shift = (int) (bitIndex & 63);
+    long value = lows_[word] >>> shift;
+    if (shift + lowBits_ > Long.SIZE) {
+      value |= lows_[word + 1] << (Long.SIZE - shift);
+    }
+    return value & lowMask_;
+  }
+
+  /*
+   * Position of the rank-th (0-based) set bit of the high bits.
+   */
+  private long select1(long rank) {
+    long position = oneSamples_[(int) (rank >>> LOG_SAMPLE_RATE)];
+    long remaining = rank & ((1 << LOG_SAMPLE_RATE) - 1);
+    int word = (int) (position >>> 6);
+    long bits = highs_[word] & (-1L << position);
+    while (true) {
+      int count = Long.bitCount(bits);
+      if (remaining < count) {
+        return ((long) word << 6) + selectInWord(bits, (int) remaining);
+      }
+      remaining -= count;
+      bits = highs_[++word];
+    }
+  }
+
+  /*
+   * Position of the rank-th (0-based) unset bit of the high bits.
+   */
+  private long select0(long rank) {
+    long position = zeroSamples_[(int) (rank >>> LOG_SAMPLE_RATE)];
+    long remaining = rank & ((1 << LOG_SAMPLE_RATE) - 1);
+    int word = (int) (position >>> 6);
+    long bits = ~highs_[word] & (-1L << position);
+    while (true) {
+      int count = Long.bitCount(bits);
+      if (remaining < count) {
+        return ((long) word << 6) + selectInWord(bits, (int) remaining);
+      }
+      remaining -= count;
+      bits = ~highs_[++word];
+    }
+  }
+
+  private static int selectInWord(long bits, int rank) {
+    for (int i = 0; i < rank; ++i) {
+      bits &= bits - 1;
+    }
+    return Long.numberOfTrailingZeros(bits);
+  }
+}
@@ -5,31 +5,81 @@ import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 
+/**
+ * FileChannel with methods to read and write primitives and varints.
+ *
+ * In buffered mode, reads and writes go through a direct buffer and only
+ * reach the channel when the buffer is full (or empty, for reads), when the
+ * position is changed or when the channel is flushed. Writes larger than the
+ * free space are written together with the buffered bytes in one gathering
+ * write.
+ */
 public class ExtendedFileChannel {
   public static final byte TRUE_BYTE = 1;
   public static final byte FALSE_BYTE = 0;
-  
+
+  /** Default size of the buffer in buffered mode - set to 1 MB. */
+  public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+  /**
+   * When the data written to the channel is forced to the storage device.
+   */
+  public enum Durability {
+    /** Never, e.g. for temporary files. */
+    NONE,
+    /** On every call to {@link ExtendedFileChannel#flush()}. */
+    SYNC_ON_FLUSH,
+    /** Once, when the channel is closed. */
+    SYNC_ON_CLOSE
+  }
+
+  private static final int MODE_NONE = 0;
+  private static final int MODE_READ = 1;
+  private static final int MODE_WRITE = 2;
+
   private FileChannel fileChannel_;
+  private final Durability durability_;
   private final ByteBuffer boolBuffer_;
   private final ByteBuffer intBuffer_;
   private final ByteBuffer vIntBuffer_;
   private final ByteBuffer longBuffer_;
   private final ByteBuffer vLongBuffer_;
 
+  /** Read or write buffer, null if unbuffered. */
+  private final ByteBuffer buffer_;
+
+  /** Whether buffer_ holds bytes read from or to be written to the channel. */
+  private int mode_ = MODE_NONE;
+
+  private final ByteBuffer[] gatherBuffers_ = new ByteBuffer[2];
+
   public ExtendedFileChannel(FileChannel fileChannel) {
+    this(fileChannel, 0, Durability.SYNC_ON_FLUSH);
+  }
+
+  /**
+   * Creates a buffered channel.
+   *
+   * @param fileChannel Channel to read from and write to.
+   * @param bufferSize Size of the buffer in bytes, 0 for an unbuffered channel.
+   * @param durability When written data is forced to the storage device.
+   */
+  public ExtendedFileChannel(FileChannel fileChannel, int bufferSize, Durability durability) {
     fileChannel_ = fileChannel;
+    durability_ = durability;
+    buffer_ = bufferSize > 0 ? ByteBuffer.allocateDirect(bufferSize) : null;
     boolBuffer_ = ByteBuffer.allocate(1);
     intBuffer_ = ByteBuffer.allocate(4);
     vIntBuffer_ = ByteBuffer.allocate(5);
     longBuffer_ = ByteBuffer.allocate(8);
     vLongBuffer_ = ByteBuffer.allocate(9);
   }
-  
+
   public int write(ByteBuffer byteBuffer) throws IOException {
     byteBuffer.position(0);
-    return fileChannel_.write(byteBuffer);
+    return writeRemaining(byteBuffer);
   }
-  
+
   public int write(byte[] bytes) throws IOException {
     return write(ByteBuffer.wrap(bytes));
   }
@@ -40,65 +90,113 @@ public class ExtendedFileChannel {
     return write(boolBuffer_);
   }
 
+  public int writeByte(int value) throws IOException {
+    boolBuffer_.rewind();
+    boolBuffer_.put((byte) value);
+    return write(boolBuffer_);
+  }
+
   public int writeInt(int value) throws IOException {
+    if (hasWriteSpace(4)) {
+      buffer_.putInt(value);
+      return 4;
+    }
     intBuffer_.rewind();
     intBuffer_.putInt(value);
     return write(intBuffer_);
   }
 
   public int writeVInt(int value) throws IOException {
+    if (hasWriteSpace(vIntBuffer_.capacity())) {
+      return CompressionUtils.writeVInt(buffer_, value);
+    }
     vIntBuffer_.clear();
     int length = CompressionUtils.writeVInt(vIntBuffer_, value);
     vIntBuffer_.rewind();
     vIntBuffer_.limit(length);
-    return fileChannel_.write(vIntBuffer_);
+    return writeRemaining(vIntBuffer_);
   }
 
   public int writeLong(long value) throws IOException {
+    if (hasWriteSpace(8)) {
+      buffer_.putLong(value);
+      return 8;
+    }
     longBuffer_.rewind();
     longBuffer_.putLong(value);
     return write(longBuffer_);
   }
-  
+
   public int writeVLong(long value) throws IOException {
+    if (hasWriteSpace(vLongBuffer_.capacity())) {
+      return CompressionUtils.writeVLong(buffer_, value);
+    }
     vLongBuffer_.clear();
     int length = CompressionUtils.writeVLong(vLongBuffer_, value);
     vLongBuffer_.rewind();
     vLongBuffer_.limit(length);
-    return fileChannel_.write(vLongBuffer_);
+    return writeRemaining(vLongBuffer_);
   }
-  
+
   public int read(ByteBuffer byteBuffer) throws IOException {
-    return fileChannel_.read(byteBuffer);
+    if (buffer_ == null) {
+      return fileChannel_.read(byteBuffer);
+    }
+    startReading();
+    int read = 0;
+    while (byteBuffer.hasRemaining()) {
+      if (buffer_.hasRemaining()) {
+        read += transfer(buffer_, byteBuffer);
+      } else if (byteBuffer.remaining() >= buffer_.capacity()) {
+        // large reads bypass the buffer
+        int n = fileChannel_.read(byteBuffer);
+        if (n < 0) {
+          break;
+        }
+        read += n;
+      } else if (!fillReadBuffer()) {
+        break;
+      }
+    }
+    return read == 0 && byteBuffer.hasRemaining() ? -1 : read;
   }
-  
+
   public int read(byte[] bytes) throws IOException {
     return read(ByteBuffer.wrap(bytes));
   }
-  
+
   public boolean readBool() throws IOException {
     boolBuffer_.rewind();
     read(boolBuffer_);
     return boolBuffer_.get(0) == TRUE_BYTE;
   }
-  
+
+  public int readByte() throws IOException {
+    boolBuffer_.rewind();
+    read(boolBuffer_);
+    return boolBuffer_.get(0) & 0xff;
+  }
+
   public int readInt() throws IOException {
     intBuffer_.rewind();
     read(intBuffer_);
     return intBuffer_.getInt(0);
   }
-  
+
   public int readVInt() throws IOException {
     return (int) readVLong();
   }
-  
+
   public long readLong() throws IOException {
     longBuffer_.rewind();
     read(longBuffer_);
     return longBuffer_.getLong(0);
   }
-  
+
   public long readVLong() throws IOException {
+    if (hasReadData(vLongBuffer_.capacity())) {
+      return CompressionUtils.readVLong(buffer_);
+    }
     vLongBuffer_.clear();
     vLongBuffer_.limit(1);
     read(vLongBuffer_);
@@ -109,29 +207,183 @@ public class ExtendedFileChannel {
     vLongBuffer_.position(1);
     return CompressionUtils.readVLong(vLongBuffer_, length, firstByte);
   }
-  
+
+  /**
+   * Writes out the buffered data. Forces it to the storage device if the
+   * durability is {@link Durability#SYNC_ON_FLUSH}.
+   */
   public void flush() throws IOException {
-    fileChannel_.force(true);
+    flushWrites();
+    if (durability_ == Durability.SYNC_ON_FLUSH) {
+      fileChannel_.force(true);
+    }
   }
-  
+
+  /**
+   * Writes out the buffered data and closes the channel. Forces the data to
+   * the storage device first if the durability is
+   * {@link Durability#SYNC_ON_CLOSE}.
+   */
   public void close() throws IOException {
-    fileChannel_.close();
+    try {
+      flushWrites();
+      if (durability_ == Durability.SYNC_ON_CLOSE) {
+        fileChannel_.force(true);
+      }
+    } finally {
+      fileChannel_.close();
+    }
   }
-  
+
   public long size() throws IOException {
+    flushWrites();
     return fileChannel_.size();
   }
-  
+
   public long position() throws IOException {
+    if (mode_ == MODE_WRITE) {
+      return fileChannel_.position() + buffer_.position();
+    } else if (mode_ == MODE_READ) {
+      return fileChannel_.position() - buffer_.remaining();
+    }
     return fileChannel_.position();
   }
-  
+
   public ExtendedFileChannel position(long newPosition) throws IOException {
+    if (mode_ == MODE_READ) {
+      long bufferStart = fileChannel_.position() - buffer_.limit();
+      if (newPosition >= bufferStart && newPosition <= fileChannel_.position()) {
+        // still within the buffered data
+        buffer_.position((int) (newPosition - bufferStart));
+        return this;
+      }
+    }
+    flushWrites();
+    dropReadBuffer();
     fileChannel_.position(newPosition);
     return this;
   }
-  
+
   public MappedByteBuffer map(FileChannel.MapMode mapMode, long position, long size) throws IOException {
+    flushWrites();
     return fileChannel_.map(mapMode, position, size);
   }
+
+  /*
+   * Writes the remaining bytes of src, through the buffer if there is one.
+   */
+  private int writeRemaining(ByteBuffer src) throws IOException {
+    int length = src.remaining();
+    if (buffer_ == null) {
+      while (src.hasRemaining()) {
+        fileChannel_.write(src);
+      }
+      return length;
+    }
+    startWriting();
+    if (length <= buffer_.remaining()) {
+      buffer_.put(src);
+      return length;
+    }
+    // write the buffered bytes and src in one go
+    buffer_.flip();
+    gatherBuffers_[0] = buffer_;
+    gatherBuffers_[1] = src;
+    while (src.hasRemaining()) {
+      fileChannel_.write(gatherBuffers_);
+    }
+    gatherBuffers_[1] = null;
+    buffer_.clear();
+    return length;
+  }
+
+  /*
+   * Returns true if the next bytes can be put into the write buffer directly.
+   */
+  private boolean hasWriteSpace(int bytes) throws IOException {
+    if (buffer_ == null) {
+      return false;
+    }
+    startWriting();
+    if (buffer_.remaining() < bytes) {
+      flushWrites();
+    }
+    return true;
+  }
+
+  /*
+   * Returns true if the next bytes can be read from the read buffer directly.
+   */
+  private boolean hasReadData(int bytes) throws IOException {
+    if (buffer_ == null) {
+      return false;
+    }
+    startReading();
+    if (buffer_.remaining() < bytes) {
+      fillReadBuffer();
+    }
+    return buffer_.remaining() >= bytes;
+  }
+
+  private void startWriting() throws IOException {
+    if (mode_ == MODE_READ) {
+      dropReadBuffer();
+    }
+    mode_ = MODE_WRITE;
+  }
+
+  private void startReading() throws IOException {
+    if (mode_ == MODE_WRITE) {
+      flushWrites();
+    }
+    if (mode_ != MODE_READ) {
+      buffer_.clear();
+      buffer_.limit(0);
+      mode_ = MODE_READ;
+    }
+  }
+
+  /*
+   * Reads more bytes into the read buffer, keeping the unread ones. Returns
+   * false at the end of the file.
+   */
+  private boolean fillReadBuffer() throws IOException {
+    buffer_.compact();
+    int n = fileChannel_.read(buffer_);
+    buffer_.flip();
+    return n > 0;
+  }
+
+  private void flushWrites() throws IOException {
+    if (mode_ != MODE_WRITE) {
+      return;
+    }
+    buffer_.flip();
+    while (buffer_.hasRemaining()) {
+      fileChannel_.write(buffer_);
+    }
+    buffer_.clear();
+    mode_ = MODE_NONE;
+  }
+
+  /*
+   * Discards the read-ahead, moving the channel back to the logical position.
+   */
+  private void dropReadBuffer() throws IOException {
+    if (mode_ != MODE_READ) {
+      return;
+    }
+    fileChannel_.position(fileChannel_.position() - buffer_.remaining());
+    buffer_.clear();
+    mode_ = MODE_NONE;
+  }
+
+  private static int transfer(ByteBuffer src, ByteBuffer dst) {
+    int n = Math.min(src.remaining(), dst.remaining());
+    ByteBuffer slice = src.duplicate();
+    slice.limit(slice.position() + n);
+    dst.put(slice);
+    src.position(src.position() + n);
+    return n;
+  }
 }
@@ -0,0 +1,86 @@
+package de.jhoff.dmap.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Provides the executor that runs blocking lookups for the asynchronous 
+ * DMap API.
+ * 
+ * On runtimes with virtual threads every lookup gets its own virtual thread, 
+ * so a page fault only parks that thread. Otherwise the lookups share a 
+ * bounded pool of daemon threads.
+ */
+public class LookupExecutors {
+
+  /** Number of threads of the fallback pool per available processor. */
+  private static final int THREADS_PER_PROCESSOR = 4;
+
+  private static final Logger logger_ = LoggerFactory.getLogger(LookupExecutors.class);
+
+  private LookupExecutors() {
+  }
+
+  /**
+   * @return The shared default executor for blocking lookups.
+   */
+  public static Executor getDefault() {
+    return DefaultHolder.EXECUTOR;
+  }
+
+  /**
+   * Creates an executor that starts a virtual thread per task.
+   * 
+   * @return  The executor, or null if the runtime has no virtual threads.
+   */
+  public static ExecutorService newVirtualThreadExecutor() {
+    try {
+      // looked up reflectively to keep running on runtimes before Java 21
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Creates a fixed-size pool of daemon threads.
+   * 
+   * @param threads Number of threads.
+   * @return  The executor.
+   */
+  public static ExecutorService newBoundedExecutor(int threads) {
+    return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      private final AtomicInteger count_ = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "dmap-lookup-" + count_.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  private static class DefaultHolder {
+    private static final Executor EXECUTOR = createDefault();
+
+    private static Executor createDefault() {
+      ExecutorService executor = newVirtualThreadExecutor();
+      if (executor != null) {
+        logger_.debug("Running blocking lookups on virtual threads.");
+        return executor;
+      }
+      int threads = THREADS_PER_PROCESSOR * Runtime.getRuntime().availableProcessors();
+      logger_.debug("Running blocking lookups on a pool of " + threads + " threads.");
+      return newBoundedExecutor(threads);
+    }
+  }
+}
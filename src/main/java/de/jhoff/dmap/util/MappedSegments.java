@@ -0,0 +1,110 @@
+package de.jhoff.dmap.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+
+/**
+ * Read-only view of a region of a file through a few large mappings, which
+ * are created once. Regions are served as slices, so reading them never
+ * creates a mapping.
+ *
+ * The file is split into records (such as blocks) that must not straddle two
+ * mappings: each mapping starts at a record and holds as many whole records
+ * as fit into the segment size, records larger than that get a mapping of
+ * their own.
+ */
+public class MappedSegments {
+  /** Pages are touched at this stride when loading a range. */
+  private static final int PAGE_SIZE = 4096;
+
+  private final long[] segmentStarts_;
+  private final MappedByteBuffer[] segments_;
+
+  /** Sink for the bytes touched while loading, so that the reads are not optimized away. */
+  private volatile byte touched_;
+
+  /**
+   * @param channel Channel of the file.
+   * @param recordStarts Start offset of each record, in file order.
+   * @param end End of the last record (exclusive).
+   * @param segmentSize Maximum size of a mapping, unless a single record is larger.
+   */
+  public MappedSegments(ExtendedFileChannel channel, long[] recordStarts, long end, int segmentSize)
+      throws IOException {
+    long[] segmentStarts = new long[recordStarts.length];
+    int numSegments = 0;
+    for (int record = 0; record < recordStarts.length; ++record) {
+      long recordEnd = record + 1 < recordStarts.length ? recordStarts[record + 1] : end;
+      if (numSegments == 0 || recordEnd - segmentStarts[numSegments - 1] > segmentSize) {
+        segmentStarts[numSegments++] = recordStarts[record];
+      }
+    }
+    segmentStarts_ = Arrays.copyOf(segmentStarts, numSegments);
+    segments_ = new MappedByteBuffer[numSegments];
+    for (int segment = 0; segment < numSegments; ++segment) {
+      long segmentEnd = segment + 1 < numSegments ? segmentStarts_[segment + 1] : end;
+      segments_[segment] = channel.map(MapMode.READ_ONLY, segmentStarts_[segment],
+          segmentEnd - segmentStarts_[segment]);
+    }
+  }
+
+  /**
+   * Returns length bytes at offset, which must lie within one record.
+   *
+   * @param offset Offset in the file.
+   * @param length Number of bytes.
+   * @return  Buffer with position 0 and limit length.
+   */
+  public ByteBuffer slice(long offset, int length) {
+    int segment = segmentOf(offset);
+    ByteBuffer slice = segments_[segment].duplicate();
+    int position = (int) (offset - segmentStarts_[segment]);
+    slice.limit(position + length);
+    slice.position(position);
+    return slice.slice();
+  }
+
+  /**
+   * Loads all segments into memory.
+   */
+  public void load() {
+    for (MappedByteBuffer segment : segments_) {
+      segment.load();
+    }
+  }
+
+  /**
+   * Loads the pages of length bytes at offset into memory by touching them,
+   * the rest of the segment is left alone.
+   *
+   * @param offset Offset in the file.
+   * @param length Number of bytes.
+   */
+  public void load(long offset, int length) {
+    ByteBuffer slice = slice(offset, length);
+    byte touched = 0;
+    for (int position = 0; position < length; position += PAGE_SIZE) {
+      touched ^= slice.get(position);
+    }
+    if (length > 0) {
+      // the last page might not have been touched
+      touched ^= slice.get(length - 1);
+    }
+    touched_ = touched;
+  }
+
+  /**
+   * @return  Number of mappings.
+   */
+  public int getSegmentCount() {
+    return segments_.length;
+  }
+
+  private int segmentOf(long offset) {
+    int segment = Arrays.binarySearch(segmentStarts_, offset);
+    return segment >= 0 ? segment : -segment - 2;
+  }
+}
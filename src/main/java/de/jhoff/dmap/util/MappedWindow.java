@@ -0,0 +1,65 @@
+package de.jhoff.dmap.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Read-only view of a region of a file through a large mapped window, which
+ * is moved forward as the region is read. Reading a region sequentially
+ * needs one mapping per window instead of one read or mapping per record.
+ */
+public class MappedWindow {
+  private final ExtendedFileChannel channel_;
+  private final long end_;
+  private final int windowSize_;
+
+  private MappedByteBuffer window_;
+  private long windowStart_;
+
+  /**
+   * @param channel Channel of the file.
+   * @param end End of the region (exclusive).
+   * @param windowSize Size of the mapped window, larger requests get a larger window.
+   */
+  public MappedWindow(ExtendedFileChannel channel, long end, int windowSize) {
+    channel_ = channel;
+    end_ = end;
+    windowSize_ = windowSize;
+  }
+
+  /**
+   * Returns the window with its position at offset and at least length bytes
+   * remaining, or all bytes up to the end of the region if there are fewer.
+   * The returned buffer is only valid until the next call.
+   *
+   * @param offset Offset in the file.
+   * @param length Number of bytes that will be read.
+   * @return  The window.
+   */
+  public ByteBuffer at(long offset, int length) throws IOException {
+    if (window_ == null || offset < windowStart_
+        || Math.min(offset + length, end_) > windowStart_ + window_.capacity()) {
+      long size = Math.min(end_ - offset, Math.max(windowSize_, length));
+      window_ = channel_.map(MapMode.READ_ONLY, offset, size);
+      windowStart_ = offset;
+    }
+    window_.position((int) (offset - windowStart_));
+    return window_;
+  }
+
+  /**
+   * Returns length bytes at offset as a buffer of their own, which stays
+   * valid when the window moves.
+   *
+   * @param offset Offset in the file.
+   * @param length Number of bytes.
+   * @return  Buffer with position 0 and limit length.
+   */
+  public ByteBuffer slice(long offset, int length) throws IOException {
+    ByteBuffer slice = at(offset, length).slice();
+    slice.limit(length);
+    return slice;
+  }
+}
@@ -0,0 +1,222 @@
+package de.jhoff.dmap.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Minimal perfect hash function over a set of distinct 64-bit key hashes, 
+ * built with the hash-and-displace scheme of PTHash.
+ * 
+ * Keys are distributed over buckets of a few keys each. Starting with the 
+ * largest bucket, every bucket gets the smallest "pilot" value that moves all 
+ * of its keys to free positions of a table slightly larger than the key set.
+ * Positions beyond the number of keys are finally remapped to the free 
+ * positions below it, which makes the function minimal: it maps the n keys
+ * to 0..n-1 without collisions. Only the bit-packed pilots and the remapping
+ * are stored, a few bits per key.
+ * 
+ * Hashes that were not part of the key set are mapped to an arbitrary 
+ * position, callers need to verify the key.
+ */
+public class MinimalPerfectHash {
+  /** Average number of keys per bucket. */
+  private static final double KEYS_PER_BUCKET = 4.0;
+
+  /** Ratio of keys to table positions. */
+  private static final double LOAD_FACTOR = 0.98;
+
+  /** Upper bound for pilot values before giving up on a bucket. */
+  private static final int MAX_PILOT = 1 << 24;
+
+  private final int numKeys_;
+  private final int tableSize_;
+  private final int numBuckets_;
+  private final BitPackedArray pilots_;
+  private final BitPackedArray remap_;
+
+  private MinimalPerfectHash(int numKeys, int tableSize, int numBuckets,
+      BitPackedArray pilots, BitPackedArray remap) {
+    numKeys_ = numKeys;
+    tableSize_ = tableSize;
+    numBuckets_ = numBuckets;
+    pilots_ = pilots;
+    remap_ = remap;
+  }
+
+  /**
+   * Builds the function for the given hashes.
+   * 
+   * @param hashes Distinct hashes of all keys.
+   * @return  Function mapping each of the hashes to a distinct int in 0..hashes.length-1.
+   * @throws IllegalArgumentException if hashes contains duplicates.
+   */
+  public static MinimalPerfectHash build(long[] hashes) {
+    int numKeys = hashes.length;
+    int tableSize = Math.max(1, (int) Math.ceil(numKeys / LOAD_FACTOR));
+    int numBuckets = Math.max(1, (int) Math.ceil(numKeys / KEYS_PER_BUCKET));
+
+    // group the keys by bucket (counting sort)
+    int[] bucketStarts = new int[numBuckets + 1];
+    for (long hash : hashes) {
+      ++bucketStarts[bucket(hash, numBuckets) + 1];
+    }
+    int maxBucketSize = 0;
+    for (int b = 0; b < numBuckets; ++b) {
+      maxBucketSize = Math.max(maxBucketSize, bucketStarts[b + 1]);
+      bucketStarts[b + 1] += bucketStarts[b];
+    }
+    long[] bucketHashes = new long[numKeys];
+    int[] fill = Arrays.copyOf(bucketStarts, numBuckets);
+    for (long hash : hashes) {
+      bucketHashes[fill[bucket(hash, numBuckets)]++] = hash;
+    }
+
+    // process the buckets from the largest to the smallest
+    int[] bucketsBySize = new int[numBuckets];
+    int[] sizeStarts = new int[maxBucketSize + 2];
+    for (int b = 0; b < numBuckets; ++b) {
+      ++sizeStarts[maxBucketSize - (bucketStarts[b + 1] - bucketStarts[b]) + 1];
+    }
+    for (int i = 0; i <= maxBucketSize; ++i) {
+      sizeStarts[i + 1] += sizeStarts[i];
+    }
+    for (int b = 0; b < numBuckets; ++b) {
+      bucketsBySize[sizeStarts[maxBucketSize - (bucketStarts[b + 1] - bucketStarts[b])]++] = b;
+    }
+
+    int[] pilots = new int[numBuckets];
+    long[] taken = new long[(tableSize + Long.SIZE - 1) / Long.SIZE];
+    int[] positions = new int[maxBucketSize];
+    for (int b : bucketsBySize) {
+      int start = bucketStarts[b];
+      int bucketSize = bucketStarts[b + 1] - start;
+      if (bucketSize == 0) {
+        break;
+      }
+      for (int i = start + 1; i < start + bucketSize; ++i) {
+        for (int j = start; j < i; ++j) {
+          if (bucketHashes[i] == bucketHashes[j]) {
+            throw new IllegalArgumentException("Duplicate hash " + bucketHashes[i]);
+          }
+        }
+      }
+      int pilot = 0;
+      while (!tryPilot(bucketHashes, start, bucketSize, pilot, tableSize, taken, positions)) {
+        if (++pilot > MAX_PILOT) {
+          throw new IllegalStateException("Cannot find a pilot for bucket " + b);
+        }
+      }
+      for (int i = 0; i < bucketSize; ++i) {
+        taken[positions[i] >>> 6] |= 1L << positions[i];
+      }
+      pilots[b] = pilot;
+    }
+
+    // remap taken positions >= numKeys to the free ones below numKeys
+    int[] remap = new int[tableSize - numKeys];
+    int free = 0;
+    for (int position = numKeys; position < tableSize; ++position) {
+      if (isTaken(taken, position)) {
+        while (isTaken(taken, free)) {
+          ++free;
+        }
+        remap[position - numKeys] = free++;
+      }
+    }
+    return new MinimalPerfectHash(numKeys, tableSize, numBuckets,
+        BitPackedArray.pack(pilots), BitPackedArray.pack(remap));
+  }
+
+  private static boolean tryPilot(long[] bucketHashes, int start, int bucketSize, int pilot,
+      int tableSize, long[] taken, int[] positions) {
+    long pilotHash = mix(pilot);
+    for (int i = 0; i < bucketSize; ++i) {
+      int position = position(bucketHashes[start + i], pilotHash, tableSize);
+      if (isTaken(taken, position)) {
+        return false;
+      }
+      for (int j = 0; j < i; ++j) {
+        if (positions[j] == position) {
+          return false;
+        }
+      }
+      positions[i] = position;
+    }
+    return true;
+  }
+
+  private static boolean isTaken(long[] taken, int position) {
+    return (taken[position >>> 6] & (1L << position)) != 0;
+  }
+
+  /**
+   * Maps a key hash to its position.
+   * 
+   * @param hash Hash of the key.
+   * @return  Position in 0..size()-1, distinct for all hashes the function was built for.
+   */
+  public int get(long hash) {
+    int pilot = pilots_.get(bucket(hash, numBuckets_));
+    int position = position(hash, mix(pilot), tableSize_);
+    if (position >= numKeys_) {
+      position = remap_.get(position - numKeys_);
+    }
+    return position;
+  }
+
+  /**
+   * @return  Number of keys the function was built for.
+   */
+  public int size() {
+    return numKeys_;
+  }
+
+  /**
+   * @return  Heap bytes used by the function.
+   */
+  public long sizeInBytes() {
+    return pilots_.sizeInBytes() + remap_.sizeInBytes();
+  }
+
+  public void writeTo(ExtendedFileChannel output) throws IOException {
+    output.writeInt(numKeys_);
+    output.writeInt(tableSize_);
+    output.writeInt(numBuckets_);
+    pilots_.writeTo(output);
+    remap_.writeTo(output);
+  }
+
+  /**
+   * Reads a function written by {@link #writeTo(ExtendedFileChannel)} from the 
+   * current position of buffer, advancing it past the function.
+   */
+  public static MinimalPerfectHash readFrom(ByteBuffer buffer) {
+    int numKeys = buffer.getInt();
+    int tableSize = buffer.getInt();
+    int numBuckets = buffer.getInt();
+    BitPackedArray pilots = BitPackedArray.readFrom(buffer);
+    BitPackedArray remap = BitPackedArray.readFrom(buffer);
+    return new MinimalPerfectHash(numKeys, tableSize, numBuckets, pilots, remap);
+  }
+
+  private static int bucket(long hash, int numBuckets) {
+    return (int) ((hash >>> 1) % numBuckets);
+  }
+
+  private static int position(long hash, long pilotHash, int tableSize) {
+    return (int) ((mix(hash ^ pilotHash) >>> 1) % tableSize);
+  }
+
+  /**
+   * 64-bit finalizer of MurmurHash3.
+   */
+  static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB9FE1A85EC53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
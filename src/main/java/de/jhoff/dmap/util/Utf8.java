@@ -0,0 +1,182 @@
+package de.jhoff.dmap.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * UTF-8 encoding of CharSequences without intermediate Strings, and
+ * CharSequence views over encoded bytes.
+ */
+public class Utf8 {
+
+  /** Replaces unpaired surrogates, like String.getBytes() does. */
+  private static final byte REPLACEMENT = '?';
+
+  /**
+   * Encodes chars as UTF-8.
+   *
+   * @param chars Chars to encode.
+   * @return  The encoded bytes.
+   */
+  public static byte[] encode(CharSequence chars) {
+    if (chars instanceof String) {
+      return ((String) chars).getBytes(StandardCharsets.UTF_8);
+    }
+    byte[] bytes = new byte[encodedLength(chars)];
+    int position = 0;
+    int length = chars.length();
+    for (int i = 0; i < length; ++i) {
+      char c = chars.charAt(i);
+      if (c < 0x80) {
+        bytes[position++] = (byte) c;
+      } else if (c < 0x800) {
+        bytes[position++] = (byte) (0xc0 | (c >>> 6));
+        bytes[position++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isSurrogate(c)) {
+        if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(chars.charAt(i + 1))) {
+          int codePoint = Character.toCodePoint(c, chars.charAt(++i));
+          bytes[position++] = (byte) (0xf0 | (codePoint >>> 18));
+          bytes[position++] = (byte) (0x80 | ((codePoint >>> 12) & 0x3f));
+          bytes[position++] = (byte) (0x80 | ((codePoint >>> 6) & 0x3f));
+          bytes[position++] = (byte) (0x80 | (codePoint & 0x3f));
+        } else {
+          bytes[position++] = REPLACEMENT;
+        }
+      } else {
+        bytes[position++] = (byte) (0xe0 | (c >>> 12));
+        bytes[position++] = (byte) (0x80 | ((c >>> 6) & 0x3f));
+        bytes[position++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * @param chars Chars to encode.
+   * @return  Number of bytes of the UTF-8 encoding of chars.
+   */
+  public static int encodedLength(CharSequence chars) {
+    int length = chars.length();
+    int bytes = 0;
+    for (int i = 0; i < length; ++i) {
+      char c = chars.charAt(i);
+      if (c < 0x80) {
+        bytes += 1;
+      } else if (c < 0x800) {
+        bytes += 2;
+      } else if (Character.isSurrogate(c)) {
+        if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(chars.charAt(i + 1))) {
+          ++i;
+          bytes += 4;
+        } else {
+          bytes += 1;
+        }
+      } else {
+        bytes += 3;
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Decodes the remaining bytes of buffer, without moving its position.
+   *
+   * @param buffer UTF-8 encoded bytes.
+   * @return  The decoded String.
+   */
+  public static String decode(ByteBuffer buffer) {
+    if (buffer.hasArray()) {
+      return new String(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(),
+          StandardCharsets.UTF_8);
+    }
+    return StandardCharsets.UTF_8.decode(buffer.duplicate()).toString();
+  }
+
+  /**
+   * Returns a view of the remaining bytes of buffer as chars. ASCII bytes are
+   * read directly from the buffer, other contents are decoded once on first
+   * access.
+   *
+   * @param buffer UTF-8 encoded bytes, must not be modified while the view is
+   *  used.
+   * @return  CharSequence view of buffer.
+   */
+  public static CharSequence view(ByteBuffer buffer) {
+    ByteBuffer bytes = buffer.slice();
+    for (int i = 0; i < bytes.limit(); ++i) {
+      if (bytes.get(i) < 0) {
+        return new DecodingView(bytes);
+      }
+    }
+    return new AsciiView(bytes);
+  }
+
+  private static class AsciiView implements CharSequence {
+    private final ByteBuffer bytes_;
+
+    private AsciiView(ByteBuffer bytes) {
+      bytes_ = bytes;
+    }
+
+    @Override
+    public int length() {
+      return bytes_.limit();
+    }
+
+    @Override
+    public char charAt(int index) {
+      if (index < 0 || index >= bytes_.limit()) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", length: " + bytes_.limit());
+      }
+      return (char) bytes_.get(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+      if (start < 0 || end > bytes_.limit() || start > end) {
+        throw new IndexOutOfBoundsException("Range: [" + start + ", " + end + "), length: " + bytes_.limit());
+      }
+      ByteBuffer sub = bytes_.duplicate();
+      sub.limit(end);
+      sub.position(start);
+      return new AsciiView(sub.slice());
+    }
+
+    @Override
+    public String toString() {
+      return decode(bytes_);
+    }
+  }
+
+  private static class DecodingView implements CharSequence {
+    private final ByteBuffer bytes_;
+    private String decoded_;
+
+    private DecodingView(ByteBuffer bytes) {
+      bytes_ = bytes;
+    }
+
+    @Override
+    public int length() {
+      return toString().length();
+    }
+
+    @Override
+    public char charAt(int index) {
+      return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+      return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+      if (decoded_ == null) {
+        decoded_ = decode(bytes_);
+      }
+      return decoded_;
+    }
+  }
+}
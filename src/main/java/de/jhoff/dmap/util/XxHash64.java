@@ -0,0 +1,110 @@
+package de.jhoff.dmap.util;
+
+/**
+ * Pure Java implementation of the 64-bit xxHash (XXH64) algorithm. 
+ * 
+ * Used wherever keys need a strong, well distributed hash that is stable 
+ * across JVMs and therefore can be persisted, e.g. for Bloom filters.
+ */
+public final class XxHash64 {
+  private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+  private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+  private static final long PRIME64_3 = 0x165667B19E3779F9L;
+  private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+  private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+
+  private XxHash64() {
+  }
+
+  public static long hash(byte[] input) {
+    return hash(input, 0, input.length, 0);
+  }
+
+  public static long hash(byte[] input, long seed) {
+    return hash(input, 0, input.length, seed);
+  }
+
+  public static long hash(byte[] input, int offset, int length, long seed) {
+    int end = offset + length;
+    int p = offset;
+    long h64;
+    if (length >= 32) {
+      int limit = end - 32;
+      long v1 = seed + PRIME64_1 + PRIME64_2;
+      long v2 = seed + PRIME64_2;
+      long v3 = seed;
+      long v4 = seed - PRIME64_1;
+      do {
+        v1 = round(v1, getLong(input, p));
+        v2 = round(v2, getLong(input, p + 8));
+        v3 = round(v3, getLong(input, p + 16));
+        v4 = round(v4, getLong(input, p + 24));
+        p += 32;
+      } while (p <= limit);
+      h64 = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7)
+          + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+      h64 = mergeRound(h64, v1);
+      h64 = mergeRound(h64, v2);
+      h64 = mergeRound(h64, v3);
+      h64 = mergeRound(h64, v4);
+    } else {
+      h64 = seed + PRIME64_5;
+    }
+    h64 += length;
+
+    while (p + 8 <= end) {
+      h64 ^= round(0, getLong(input, p));
+      h64 = Long.rotateLeft(h64, 27) * PRIME64_1 + PRIME64_4;
+      p += 8;
+    }
+    if (p + 4 <= end) {
+      h64 ^= (getInt(input, p) & 0xFFFFFFFFL) * PRIME64_1;
+      h64 = Long.rotateLeft(h64, 23) * PRIME64_2 + PRIME64_3;
+      p += 4;
+    }
+    while (p < end) {
+      h64 ^= (input[p] & 0xFF) * PRIME64_5;
+      h64 = Long.rotateLeft(h64, 11) * PRIME64_1;
+      ++p;
+    }
+    return avalanche(h64);
+  }
+
+  private static long round(long acc, long input) {
+    acc += input * PRIME64_2;
+    acc = Long.rotateLeft(acc, 31);
+    return acc * PRIME64_1;
+  }
+
+  private static long mergeRound(long acc, long val) {
+    acc ^= round(0, val);
+    return acc * PRIME64_1 + PRIME64_4;
+  }
+
+  private static long avalanche(long h64) {
+    h64 ^= h64 >>> 33;
+    h64 *= PRIME64_2;
+    h64 ^= h64 >>> 29;
+    h64 *= PRIME64_3;
+    h64 ^= h64 >>> 32;
+    return h64;
+  }
+
+  private static long getLong(byte[] b, int i) {
+    return (b[i] & 0xFFL)
+        | (b[i + 1] & 0xFFL) << 8
+        | (b[i + 2] & 0xFFL) << 16
+        | (b[i + 3] & 0xFFL) << 24
+        | (b[i + 4] & 0xFFL) << 32
+        | (b[i + 5] & 0xFFL) << 40
+        | (b[i + 6] & 0xFFL) << 48
+        | (b[i + 7] & 0xFFL) << 56;
+  }
+
+  private static int getInt(byte[] b, int i) {
+    return (b[i] & 0xFF)
+        | (b[i + 1] & 0xFF) << 8
+        | (b[i + 2] & 0xFF) << 16
+        | (b[i + 3] & 0xFF) << 24;
+  }
+}
@@ -0,0 +1,58 @@
+package de.jhoff.dmap.util.map;
+
+/**
+ * Immutable snapshot of the counters of a {@link SegmentedLruCache}.
+ */
+public class CacheStats {
+  private final long hitCount_;
+  private final long missCount_;
+  private final long evictionCount_;
+
+  public CacheStats(long hitCount, long missCount, long evictionCount) {
+    hitCount_ = hitCount;
+    missCount_ = missCount;
+    evictionCount_ = evictionCount;
+  }
+
+  /**
+   * @return Number of lookups that found a cached value.
+   */
+  public long getHitCount() {
+    return hitCount_;
+  }
+
+  /**
+   * @return Number of lookups that did not find a cached value.
+   */
+  public long getMissCount() {
+    return missCount_;
+  }
+
+  /**
+   * @return Number of entries removed to make room for new ones.
+   */
+  public long getEvictionCount() {
+    return evictionCount_;
+  }
+
+  /**
+   * @return Total number of lookups (hits + misses).
+   */
+  public long getRequestCount() {
+    return hitCount_ + missCount_;
+  }
+
+  /**
+   * @return Ratio of hits to lookups, 1.0 if there were no lookups yet.
+   */
+  public double getHitRate() {
+    long requests = getRequestCount();
+    return requests == 0 ? 1.0 : (double) hitCount_ / requests;
+  }
+
+  @Override
+  public String toString() {
+    return "CacheStats[hits=" + hitCount_ + ", misses=" + missCount_
+        + ", evictions=" + evictionCount_ + ", hitRate=" + getHitRate() + "]";
+  }
+}
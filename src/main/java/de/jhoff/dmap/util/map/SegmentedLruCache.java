@@ -0,0 +1,236 @@
+package de.jhoff.dmap.util.map;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Thread-safe, size-bounded cache with a segmented LRU (SLRU) eviction policy.
+ *
+ * New entries are admitted to a probationary segment and are promoted to the
+ * protected segment on their first hit. Evictions always take the least
+ * recently used probationary entry first, so a single pass over many keys
+ * (e.g. a full iteration over a DMap) only churns the probationary segment
+ * and cannot flush the entries that are actually hot.
+ *
+ * The keys are distributed over independently locked stripes to keep lock
+ * contention low when many threads read concurrently. Counters are kept per
+ * stripe and summed up by {@link #stats()}.
+ */
+public class SegmentedLruCache<K, V> {
+
+  /** Share of the capacity reserved for entries that were hit at least once. */
+  private static final float PROTECTED_RATIO = 0.8f;
+
+  /** Upper bound for the number of stripes. */
+  private static final int MAX_STRIPES = 16;
+
+  /** Stripes are only added while each of them holds at least this many items. */
+  private static final int MIN_ITEMS_PER_STRIPE = 16;
+
+  private final Stripe<K, V>[] stripes_;
+
+  private final int stripeMask_;
+
+  private final int maxItems_;
+
+  private Logger logger_ = LoggerFactory.getLogger(SegmentedLruCache.class);
+
+  public SegmentedLruCache(int maxItems) {
+    if (maxItems < 0) {
+      throw new IllegalArgumentException("Cache size must not be negative: " + maxItems);
+    }
+    maxItems_ = maxItems;
+    int stripeCount = 1;
+    while (stripeCount < MAX_STRIPES && maxItems / (stripeCount * 2) >= MIN_ITEMS_PER_STRIPE) {
+      stripeCount *= 2;
+    }
+    stripes_ = newStripes(stripeCount);
+    for (int i = 0; i < stripeCount; ++i) {
+      // distribute the remainder over the first stripes
+      int capacity = maxItems / stripeCount + (i < maxItems % stripeCount ? 1 : 0);
+      stripes_[i] = new Stripe<>(capacity);
+    }
+    stripeMask_ = stripeCount - 1;
+    if (maxItems > 0) {
+      logger_.debug("Caching up to " + maxItems + " items in " + stripeCount + " stripes");
+    }
+  }
+
+  /**
+   * Returns the value cached for key and records a hit or miss.
+   *
+   * @param key Key to look up.
+   * @return  Cached value or null.
+   */
+  public V get(K key) {
+    return stripeFor(key).get(key);
+  }
+
+  /**
+   * Checks whether a value is cached for key without recording a hit or miss
+   * and without touching the recency information.
+   *
+   * @param key Key to look up.
+   * @return  true if a value is cached for key.
+   */
+  public boolean containsKey(K key) {
+    return stripeFor(key).containsKey(key);
+  }
+
+  /**
+   * Caches value for key, replacing a previously cached value.
+   *
+   * @param key Key to cache the value for.
+   * @param value Value to cache.
+   */
+  public void put(K key, V value) {
+    stripeFor(key).put(key, value, true);
+  }
+
+  /**
+   * Caches value for key unless there already is a cached value.
+   *
+   * @param key Key to cache the value for.
+   * @param value Value to cache.
+   * @return  The previously cached value, or null if value was added.
+   */
+  public V putIfAbsent(K key, V value) {
+    return stripeFor(key).put(key, value, false);
+  }
+
+  /**
+   * @return Number of cached entries.
+   */
+  public int size() {
+    int size = 0;
+    for (Stripe<K, V> stripe : stripes_) {
+      size += stripe.size();
+    }
+    return size;
+  }
+
+  /**
+   * @return Maximum number of cached entries.
+   */
+  public int getMaxItems() {
+    return maxItems_;
+  }
+
+  /**
+   * @return Snapshot of the hit, miss and eviction counters.
+   */
+  public CacheStats stats() {
+    long hits = 0;
+    long misses = 0;
+    long evictions = 0;
+    for (Stripe<K, V> stripe : stripes_) {
+      synchronized (stripe) {
+        hits += stripe.hitCount_;
+        misses += stripe.missCount_;
+        evictions += stripe.evictionCount_;
+      }
+    }
+    return new CacheStats(hits, misses, evictions);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <K, V> Stripe<K, V>[] newStripes(int count) {
+    return (Stripe<K, V>[]) new Stripe<?, ?>[count];
+  }
+
+  private Stripe<K, V> stripeFor(K key) {
+    int h = key.hashCode();
+    // spread higher bits, the lower ones are used by the stripe's hash maps as well
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return stripes_[h & stripeMask_];
+  }
+
+  private static class Stripe<K, V> {
+    private final int capacity_;
+    private final int protectedCapacity_;
+
+    /** Entries that were not hit since they were added, in LRU order. */
+    private final LinkedHashMap<K, V> probation_;
+
+    /** Entries that were hit at least once, in LRU order. */
+    private final LinkedHashMap<K, V> protected_;
+
+    private long hitCount_;
+    private long missCount_;
+    private long evictionCount_;
+
+    private Stripe(int capacity) {
+      capacity_ = capacity;
+      protectedCapacity_ = (int) (capacity * PROTECTED_RATIO);
+      probation_ = new LinkedHashMap<>(16, 0.75f, true);
+      protected_ = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    private synchronized V get(K key) {
+      V value = protected_.get(key);
+      if (value != null) {
+        ++hitCount_;
+        return value;
+      }
+      value = probation_.get(key);
+      if (value == null) {
+        ++missCount_;
+        return null;
+      }
+      ++hitCount_;
+      if (protectedCapacity_ > 0) {
+        // promote, demoting the least recently used protected entry if necessary
+        probation_.remove(key);
+        protected_.put(key, value);
+        if (protected_.size() > protectedCapacity_) {
+          Entry<K, V> eldest = removeEldest(protected_);
+          probation_.put(eldest.getKey(), eldest.getValue());
+        }
+      }
+      return value;
+    }
+
+    private synchronized boolean containsKey(K key) {
+      return protected_.containsKey(key) || probation_.containsKey(key);
+    }
+
+    private synchronized V put(K key, V value, boolean replace) {
+      V previous = protected_.get(key);
+      if (previous != null) {
+        if (replace) {
+          protected_.put(key, value);
+        }
+        return previous;
+      }
+      previous = probation_.get(key);
+      if (previous != null) {
+        if (replace) {
+          probation_.put(key, value);
+        }
+        return previous;
+      }
+      probation_.put(key, value);
+      while (probation_.size() + protected_.size() > capacity_) {
+        removeEldest(probation_.isEmpty() ? protected_ : probation_);
+        ++evictionCount_;
+      }
+      return null;
+    }
+
+    private synchronized int size() {
+      return probation_.size() + protected_.size();
+    }
+
+    private Entry<K, V> removeEldest(LinkedHashMap<K, V> map) {
+      Iterator<Entry<K, V>> it = map.entrySet().iterator();
+      Entry<K, V> eldest = it.next();
+      it.remove();
+      return eldest;
+    }
+  }
+}
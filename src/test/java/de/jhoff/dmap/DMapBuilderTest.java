@@ -1,15 +1,24 @@
 package de.jhoff.dmap;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import de.jhoff.dmap.codec.Codecs;
 import de.jhoff.dmap.util.ByteUtils;
 
 
@@ -43,6 +52,10 @@ public class DMapBuilderTest {
     assertEquals(defaultblockSize, raf.readInt());
     // flag for compression
     assertEquals(1, raf.readByte());
+    // trailer offset
+    assertTrue(raf.readLong() > 0);
+    // feature flags - bloom filters are written by default
+    assertEquals(DMap.FLAG_BLOOM_FILTERS, raf.readInt());
   
     tmpFile.delete();
     raf.close();
@@ -78,4 +91,154 @@ public class DMapBuilderTest {
     dmapBuilder.build();
     tmpFile.delete();
   }
+
+  @Test
+  public void testSpilledBuildMatchesInMemoryBuild() throws IOException {
+    File inMemoryFile = File.createTempFile("tmp", ".dmap");
+    inMemoryFile.delete();
+    File spilledFile = File.createTempFile("tmp", ".dmap");
+    spilledFile.delete();
+
+    DMapBuilder inMemoryBuilder = new DMapBuilder(inMemoryFile, 256);
+    // small budget, spills a run every few entries
+    DMapBuilder spilledBuilder = new DMapBuilder(spilledFile, 256).setMemoryBudget(1024);
+    int count = 1 << 12;
+    Random r = new Random(7);
+    byte[] key = new byte[4];
+    byte[] value = new byte[4];
+    for (int i = 0; i < count; ++i) {
+      // reused arrays, the builder has to copy them
+      ByteBuffer.wrap(key).putInt(count - 1 - i);
+      ByteBuffer.wrap(value).putInt(r.nextInt());
+      inMemoryBuilder.add(key, value);
+      spilledBuilder.add(key, value);
+    }
+    inMemoryBuilder.build();
+    spilledBuilder.build();
+
+    assertArrayEquals(Files.readAllBytes(inMemoryFile.toPath()), Files.readAllBytes(spilledFile.toPath()));
+    DMap dmap = new DMap.Builder(spilledFile).build();
+    assertEquals(count, dmap.size());
+    r = new Random(7);
+    for (int i = count - 1; i >= 0; --i) {
+      assertEquals(r.nextInt(), ByteBuffer.wrap(dmap.get(ByteUtils.getBytes(i))).getInt());
+    }
+
+    inMemoryFile.delete();
+    spilledFile.delete();
+  }
+
+  @Test
+  public void testForDuplicateKeyInDifferentRunsThrowsIOException() throws IOException {
+    File tmpFile = File.createTempFile("tmp", ".dmap");
+    tmpFile.delete();
+    DMapBuilder dmapBuilder = new DMapBuilder(tmpFile, 256).setMemoryBudget(256);
+    for (int i = 0; i < 100; ++i) {
+      dmapBuilder.add(ByteUtils.getBytes(i), ByteUtils.getBytes(i));
+    }
+    dmapBuilder.add(ByteUtils.getBytes(1), ByteUtils.getBytes(1));
+
+    exception.expect(IOException.class);
+    dmapBuilder.build();
+    tmpFile.delete();
+  }
+
+  @Test
+  public void testParallelCompressionMatchesSingleThreadedBuild() throws IOException {
+    File singleThreadedFile = File.createTempFile("tmp", ".dmap");
+    singleThreadedFile.delete();
+    File parallelFile = File.createTempFile("tmp", ".dmap");
+    parallelFile.delete();
+
+    DMapBuilder singleThreadedBuilder = new DMapBuilder(singleThreadedFile, 4096).setCompressionThreads(1);
+    DMapBuilder parallelBuilder = new DMapBuilder(parallelFile, 4096).setCompressionThreads(4);
+    int count = 10000;
+    Random r = new Random(11);
+    for (int i = 0; i < count; ++i) {
+      byte[] value = new byte[r.nextInt(100)];
+      r.nextBytes(value);
+      singleThreadedBuilder.add(ByteUtils.getBytes(i), value);
+      parallelBuilder.add(ByteUtils.getBytes(i), value);
+    }
+    singleThreadedBuilder.build();
+    parallelBuilder.build();
+
+    assertArrayEquals(Files.readAllBytes(singleThreadedFile.toPath()), Files.readAllBytes(parallelFile.toPath()));
+    singleThreadedFile.delete();
+    parallelFile.delete();
+  }
+
+  @Test
+  public void testSortedBuildMatchesUnsortedBuild() throws IOException {
+    File unsortedFile = File.createTempFile("tmp", ".dmap");
+    unsortedFile.delete();
+    File sortedFile = File.createTempFile("tmp", ".dmap");
+    sortedFile.delete();
+
+    DMapBuilder unsortedBuilder = new DMapBuilder(unsortedFile, 256).enablePerfectHashIndex();
+    DMapBuilder sortedBuilder = new DMapBuilder(sortedFile, 256).enablePerfectHashIndex();
+    int count = 1 << 12;
+    for (int i = 0; i < count; ++i) {
+      unsortedBuilder.add(ByteUtils.getBytes(count - 1 - i), ByteUtils.getBytes(i));
+    }
+    for (int i = 0; i < count; ++i) {
+      sortedBuilder.addSorted(ByteUtils.getBytes(i), ByteUtils.getBytes(count - 1 - i));
+    }
+    unsortedBuilder.build();
+    sortedBuilder.build();
+
+    assertArrayEquals(Files.readAllBytes(unsortedFile.toPath()), Files.readAllBytes(sortedFile.toPath()));
+    unsortedFile.delete();
+    sortedFile.delete();
+  }
+
+  @Test
+  public void testForUnsortedKeyInSortedBuildThrowsIOException() throws IOException {
+    File tmpFile = File.createTempFile("tmp", ".dmap");
+    tmpFile.delete();
+    DMapBuilder dmapBuilder = new DMapBuilder(tmpFile, 256);
+    dmapBuilder.addSorted(ByteUtils.getBytes(2), ByteUtils.getBytes(2));
+
+    exception.expect(IOException.class);
+    dmapBuilder.addSorted(ByteUtils.getBytes(1), ByteUtils.getBytes(1));
+    tmpFile.delete();
+  }
+
+  @Test
+  public void testFormatSettersAfterAddSortedThrowIllegalStateException() throws IOException {
+    File tmpFile = File.createTempFile("tmp", ".dmap");
+    tmpFile.delete();
+    DMapBuilder dmapBuilder = new DMapBuilder(tmpFile, 256);
+    dmapBuilder.addSorted(ByteUtils.getBytes(1), ByteUtils.getBytes(1));
+
+    // the header flags are written already
+    List<Runnable> setters = Arrays.asList(
+        () -> dmapBuilder.setBloomFilterFalsePositiveRate(0.1),
+        () -> dmapBuilder.disableBloomFilters(),
+        () -> dmapBuilder.enablePerfectHashIndex(),
+        () -> dmapBuilder.enableHashIndex(),
+        () -> dmapBuilder.enableKeyHashes(),
+        () -> dmapBuilder.enableFrontCoding(),
+        () -> dmapBuilder.enableBlockCompression(),
+        () -> dmapBuilder.enableDictionaryCompression(),
+        () -> dmapBuilder.setCodec(Codecs.IDENTITY),
+        () -> dmapBuilder.setKeyOrder(KeyOrder.LEXICOGRAPHIC));
+    for (Runnable setter : setters) {
+      try {
+        setter.run();
+        fail("Format setter accepted after addSorted()");
+      } catch (IllegalStateException e) {
+        // expected
+      }
+    }
+
+    // the map is still written as started
+    dmapBuilder.addSorted(ByteUtils.getBytes(2), ByteUtils.getBytes(2));
+    dmapBuilder.build();
+    DMap dmap = new DMap.Builder(tmpFile).build();
+    assertEquals(2, dmap.size());
+    assertEquals(1, ByteBuffer.wrap(dmap.get(ByteUtils.getBytes(1))).getInt());
+    assertEquals(2, ByteBuffer.wrap(dmap.get(ByteUtils.getBytes(2))).getInt());
+    tmpFile.delete();
+  }
 }
@@ -4,21 +4,33 @@ import static org.junit.Assert.*;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
+import java.util.Spliterator;
+import java.util.TreeMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
+import org.junit.Assume;
 import org.junit.Test;
 
+import de.jhoff.dmap.codec.Codec;
+import de.jhoff.dmap.codec.Codecs;
 import de.jhoff.dmap.util.ByteUtils;
 
 
@@ -95,6 +107,32 @@ public class DMapTest {
     tmpFile.delete();
   }
 
+  @Test
+  public void preloadedValuesStayCached() throws IOException {
+    File tmpFile = File.createTempFile("tmp", ".dmap");
+    tmpFile.delete();
+
+    // a few entries per block, many more blocks than cache stripes
+    DMapBuilder dmapBuilder = new DMapBuilder(tmpFile, 64, false);
+    int count = 1 << 12;
+    for (int i = 0; i < count; ++i) {
+      dmapBuilder.add(ByteUtils.getBytes(i), ByteUtils.getBytes(i));
+    }
+    dmapBuilder.build();
+
+    DMap dmap = new DMap.Builder(tmpFile).preloadValues().build();
+    assertTrue(dmap.getBlockCount() > 256);
+    for (int i = 0; i < count; ++i) {
+      assertEquals(i, ByteBuffer.wrap(dmap.get(ByteUtils.getBytes(i))).getInt());
+    }
+    // no block was evicted or mapped again
+    for (int i = 0; i < count; ++i) {
+      assertTrue(dmap.isBlockCached(ByteUtils.getBytes(i)));
+    }
+    assertEquals(0, dmap.getBlockCacheStats().getMissCount());
+    tmpFile.delete();
+  }
+
   @Test
   public void testDMapWithoutPreloadingOffsets() throws IOException {
     File tmpFile = File.createTempFile("tmp", ".dmap");
@@ -372,6 +410,959 @@ public class DMapTest {
     tmpFile.delete();
   }
 
+  @Test
+  public void getIntoBuffer() throws IOException {
+    for (boolean compress : new boolean[] { false, true }) {
+      File tmpFile = File.createTempFile("tmp", ".dmap");
+      tmpFile.delete();
+
+      DMapBuilder dmapBuilder = new DMapBuilder(tmpFile, 256, compress);
+      int count = 1 << 10;
+      for (int i = 0; i < count; ++i) {
+        dmapBuilder.add(ByteUtils.getBytes(i), ByteUtils.getBytes(i));
+      }
+      dmapBuilder.build();
+
+      DMap dmap = new DMap.Builder(tmpFile).build();
+      ByteBuffer heapBuffer = ByteBuffer.allocate(4);
+      ByteBuffer directBuffer = ByteBuffer.allocateDirect(4);
+      for (int i = 0; i < count; ++i) {
+        heapBuffer.clear();
+        assertEquals(4, dmap.get(ByteUtils.getBytes(i), heapBuffer));
+        assertEquals(4, heapBuffer.position());
+        assertEquals(i, heapBuffer.getInt(0));
+
+        directBuffer.clear();
+        assertEquals(4, dmap.get(ByteUtils.getBytes(i), directBuffer));
+        assertEquals(i, directBuffer.getInt(0));
+
+        ByteBuffer view = dmap.getView(ByteUtils.getBytes(i));
+        assertTrue(view.isReadOnly());
+        assertEquals(4, view.remaining());
+        assertEquals(i, view.getInt());
+      }
+      heapBuffer.clear();
+      assertEquals(-1, dmap.get(ByteUtils.getBytes(count + 1), heapBuffer));
+      assertEquals(-1, dmap.get(ByteUtils.getBytes(-1), heapBuffer));
+      assertEquals(0, heapBuffer.position());
+      assertNull(dmap.getView(ByteUtils.getBytes(count + 1)));
+      try {
+        dmap.get(ByteUtils.getBytes(0), ByteBuffer.allocate(3));
+        fail("Expected BufferOverflowException");
+      } catch (BufferOverflowException e) {
+        // expected
+      }
+      tmpFile.delete();
+    }
+  }
+
+  @Test
+  public void getIntoBufferDoesNotAllocate() throws IOException {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+    Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+    threadBean.setThreadAllocatedMemoryEnabled(true);
+
+    // uncompressed values are copied from the mapped block, compressed ones decompressed into dst
+    for (Codec codec : new Codec[] { Codecs.IDENTITY, Codecs.SNAPPY, Codecs.ZSTD }) {
+      File tmpFile = File.createTempFile("tmp", ".dmap");
+      tmpFile.delete();
+
+      DMapBuilder dmapBuilder = new DMapBuilder(tmpFile, 256).setCodec(codec);
+      int count = 1 << 10;
+      for (int i = 0; i < count; ++i) {
+        dmapBuilder.add(ByteUtils.getBytes(i), ByteUtils.getBytes(i));
+      }
+      dmapBuilder.build();
+
+      DMap dmap = new DMap.Builder(tmpFile).build();
+      byte[][] keys = new byte[count][];
+      for (int i = 0; i < count; ++i) {
+        keys[i] = ByteUtils.getBytes(i);
+      }
+      ByteBuffer dst = ByteBuffer.allocate(4);
+      long threadId = Thread.currentThread().getId();
+      // warm up the block cache and the JIT
+      for (int round = 0; round < 200; ++round) {
+        readAll(dmap, keys, dst);
+      }
+      // measure the cost of the measurement itself
+      long before = threadBean.getThreadAllocatedBytes(threadId);
+      long overhead = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+      before = threadBean.getThreadAllocatedBytes(threadId);
+      long sum = readAll(dmap, keys, dst);
+      long allocated = threadBean.getThreadAllocatedBytes(threadId) - before - overhead;
+      assertEquals((long) count * (count - 1) / 2, sum);
+      assertTrue("Allocated " + allocated + " bytes on the hit path with " + codec.getName(), allocated <= 0);
+      tmpFile.delete();
+    }
+  }
+
+  private long readAll(DMap dmap, byte[][] keys, ByteBuffer dst) throws IOException {
+    long sum = 0;
+    for (byte[] key : keys) {
+      dst.clear();
+      dmap.get(key, dst);
+      sum += dst.getInt(0);
+    }
+    return sum;
+  }
+
+  @Test
+  public void readVersion4File() throws Exception {
+    // built with version 4 of DMapBuilder: 1024 compressed (i, 2*i) pairs in 256 byte blocks
+    File mapFile = new File(getClass().getResource("/version4.dmap").toURI());
+    for (boolean preloadOffsets : new boolean[] { false, true }) {
+      DMap.Builder loader = new DMap.Builder(mapFile);
+      if (preloadOffsets) {
+        loader.preloadOffsets();
+      }
+      DMap dmap = loader.build();
+      assertEquals(1024, dmap.size());
+      for (int i = 0; i < 1024; ++i) {
+        assertEquals(2 * i, ByteBuffer.wrap(dmap.get(ByteUtils.getBytes(i))).getInt());
+      }
+      assertNull(dmap.get(ByteUtils.getBytes(1024)));
+      assertNull(dmap.get(ByteUtils.getBytes(-1)));
+
+      int entries = 0;
+      DMap.EntryIterator entryIterator = dmap.entryIterator();
+      while (entryIterator.hasNext()) {
+        DMap.Entry entry = entryIterator.next();
+        assertEquals(2 * ByteBuffer.wrap(entry.getKey()).getInt(), ByteBuffer.wrap(entry.getValue()).getInt());
+        ++entries;
+      }
+      assertEquals(1024, entries);
+
+      // unsorted trailers are sorted while scanning
+      DMap.EntryIterator scan = dmap.scan(ByteUtils.getBytes(100), ByteUtils.getBytes(900));
+      for (int i = 100; i < 900; ++i) {
+        assertTrue(scan.hasNext());
+        DMap.Entry entry = scan.next();
+        assertEquals(i, ByteBuffer.wrap(entry.getKey()).getInt());
+        assertEquals(2 * i, ByteBuffer.wrap(entry.getValue()).getInt());
+      }
+      assertFalse(scan.hasNext());
+    }
+  }
+
+  @Test
+  public void lookupInLargeSortedBlocks() throws IOException {
+    File tmpFile = File.createTempFile("tmp", ".dmap");
+    tmpFile.delete();
+
+    // keys of different lengths in a single block
+    DMapBuilder dmapBuilder = new DMapBuilder(tmpFile, 1 << 20, false);
+    int count = 1 << 12;
+    for (int i = 0; i < count; ++i) {
+      dmapBuilder.add(Integer.toString(i * 7).getBytes("UTF-8"), ByteUtils.getBytes(i));
+    }
+    dmapBuilder.build();
+
+    DMap dmap = new DMap.Builder(tmpFile).build();
+    assertEquals(1, dmap.getBlockCount());
+    for (int i = 0; i < count; ++i) {
+      assertEquals(i, ByteBuffer.wrap(dmap.get(Integer.toString(i * 7).getBytes("UTF-8"))).getInt());
+      assertNull(dmap.get(Integer.toString(i * 7 + 1).getBytes("UTF-8")));
+    }
+    assertNull(dmap.get(new byte[0]));
+    tmpFile.delete();
+  }
+
+  @Test
+  public void bloomFilters() throws IOException {
+    for (boolean bloomFilters : new boolean[] { true, false }) {
+      File tmpFile = File.createTempFile("tmp", ".dmap");
+      tmpFile.delete();
+
+      DMapBuilder dmapBuilder = new DMapBuilder(tmpFile, 256);
+      if (!bloomFilters) {
+        dmapBuilder.disableBloomFilters();
+      }
+      int count = 1 << 10;
+      for (int i = 0; i < count; i += 2) {
+        dmapBuilder.add(ByteUtils.getBytes(i), ByteUtils.getBytes(i));
+      }
+      dmapBuilder.build();
+
+      DMap dmap = new DMap.Builder(tmpFile).build();
+      // filters are loaded on the first lookup in their block
+      assertEquals(0, dmap.getBloomFilterMemoryUsage());
+      for (int i = 0; i < count; ++i) {
+        byte[] value = dmap.get(ByteUtils.getBytes(i));
+        if (i % 2 == 0) {
+          assertEquals(i, ByteBuffer.wrap(value).getInt());
+        } else {
+          assertNull(value);
+        }
+      }
+      assertEquals(bloomFilters, dmap.getBloomFilterMemoryUsage() > 0);
+      // filters are not loaded when offsets are preloaded
+      assertEquals(0, new DMap.Builder(tmpFile).preloadOffsets().build().getBloomFilterMemoryUsage());
+      tmpFile.delete();
+    }
+  }
+
+  @Test
+  public void perfectHashIndex() throws IOException {
+    File tmpFile = File.createTempFile("tmp", ".dmap");
+    tmpFile.delete();
+
+    DMapBuilder dmapBuilder = new DMapBuilder(tmpFile, 256).enablePerfectHashIndex();
+    int count = 1 << 12;
+    Random r = new Random();
+    Map<Integer, Integer> kvs = new HashMap<>();
+    for (int i = 0; i < count; ++i) {
+      int k = r.nextInt();
+      if (kvs.put(k, i) == null) {
+        dmapBuilder.add(ByteUtils.getBytes(k), ByteUtils.getBytes(i));
+      }
+    }
+    dmapBuilder.build();
+
+    for (boolean preloadOffsets : new boolean[] { false, true }) {
+      DMap.Builder loader = new DMap.Builder(tmpFile);
+      if (preloadOffsets) {
+        loader.preloadOffsets();
+      }
+      DMap dmap = loader.build();
+      assertTrue(dmap.getIndexMemoryUsage() > 0);
+      ByteBuffer dst = ByteBuffer.allocate(4);
+      for (Entry<Integer, Integer> e : kvs.entrySet()) {
+        byte[] key = ByteUtils.getBytes(e.getKey());
+        assertEquals(e.getValue().intValue(), ByteBuffer.wrap(dmap.get(key)).getInt());
+        dst.clear();
+        assertEquals(4, dmap.get(key, dst));
+        assertEquals(e.getValue().intValue(), dst.getInt(0));
+      }
+      for (int i = 0; i < count; ++i) {
+        if (!kvs.containsKey(i)) {
+          assertNull(dmap.get(ByteUtils.getBytes(i)));
+        }
+      }
+      assertNull(dmap.get(new byte[] { 1 }));
+
+      int entries = 0;
+      DMap.EntryIterator entryIterator = dmap.entryIterator();
+      while (entryIterator.hasNext()) {
+        DMap.Entry entry = entryIterator.next();
+        assertEquals(kvs.get(ByteBuffer.wrap(entry.getKey()).getInt()).intValue(), 
+            ByteBuffer.wrap(entry.getValue()).getInt());
+        ++entries;
+      }
+      assertEquals(kvs.size(), entries);
+    }
+    tmpFile.delete();
+  }
+
+  @Test
+  public void frontCoding() throws IOException {
+    TreeMap<String, Integer> kvs = new TreeMap<>();
+    Random r = new Random(9);
+    while (kvs.size() < 3000) {
+      // long keys with shared prefixes
+      kvs.put("https://example.org/" + new String[] { "users", "items", "orders" }[r.nextInt(3)] 
+          + "/" + r.nextInt(100000) + (r.nextBoolean() ? "/details" : ""), kvs.size());
+    }
+    long plainSize = 0;
+    for (int restartInterval : new int[] { 0, 1, 3, 16 }) {
+      for (KeyOrder keyOrder : KeyOrder.values()) {
+        File tmpFile = File.createTempFile("tmp", ".dmap");
+        tmpFile.delete();
+        DMapBuilder dmapBuilder = new DMapBuilder(tmpFile, 1024).setKeyOrder(keyOrder);
+        if (restartInterval > 0) {
+          dmapBuilder.enableFrontCoding(restartInterval);
+        }
+        if (keyOrder == KeyOrder.LENGTH_FIRST) {
+          dmapBuilder.enablePerfectHashIndex();
+        }
+        for (Entry<String, Integer> e : kvs.entrySet()) {
+          dmapBuilder.add(e.getKey().getBytes(StandardCharsets.US_ASCII), ByteUtils.getBytes(e.getValue()));
+        }
+        dmapBuilder.build();
+        if (restartInterval == 0) {
+          plainSize = tmpFile.length();
+        } else if (restartInterval == 16) {
+          assertTrue(tmpFile.length() < plainSize);
+        }
+
+        for (boolean preloadOffsets : new boolean[] { false, true }) {
+          DMap.Builder loader = new DMap.Builder(tmpFile);
+          if (preloadOffsets) {
+            loader.preloadOffsets();
+          }
+          DMap dmap = loader.build();
+          for (Entry<String, Integer> e : kvs.entrySet()) {
+            assertEquals(e.getValue().intValue(), 
+                ByteBuffer.wrap(dmap.get(e.getKey().getBytes(StandardCharsets.US_ASCII))).getInt());
+          }
+          for (String missing : new String[] { "", "https://", "https://example.org/users/", "zzz", 
+              kvs.firstKey() + "0", kvs.lastKey() + "0" }) {
+            assertEquals(kvs.containsKey(missing), dmap.get(missing.getBytes(StandardCharsets.US_ASCII)) != null);
+          }
+
+          DMap.EntryIterator entries = dmap.entryIterator(true);
+          int count = 0;
+          while (entries.hasNext()) {
+            DMap.Entry entry = entries.next();
+            assertEquals(kvs.get(new String(entry.getKey(), StandardCharsets.US_ASCII)).intValue(), 
+                ByteBuffer.wrap(entry.getValue()).getInt());
+            ++count;
+          }
+          assertEquals(kvs.size(), count);
+
+          if (keyOrder == KeyOrder.LEXICOGRAPHIC) {
+            String prefix = "https://example.org/items/4";
+            DMap.EntryIterator scan = dmap.prefixScan(prefix.getBytes(StandardCharsets.US_ASCII));
+            for (String key : kvs.tailMap(prefix).keySet()) {
+              if (!key.startsWith(prefix)) {
+                break;
+              }
+              assertTrue(scan.hasNext());
+              assertEquals(key, new String(scan.next().getKey(), StandardCharsets.US_ASCII));
+            }
+            assertFalse(scan.hasNext());
+          }
+        }
+        tmpFile.delete();
+      }
+    }
+  }
+
+  @Test
+  public void frontCodingSingleEntryBlocks() throws IOException {
+    // a one-entry map, and a map of 3 entries per block whose last block holds one entry
+    for (int[] sizes : new int[][] { { 1, 1024 }, { 100, 16 } }) {
+      int count = sizes[0];
+      for (boolean keyHashes : new boolean[] { false, true }) {
+        File tmpFile = File.createTempFile("tmp", ".dmap");
+        tmpFile.delete();
+        DMapBuilder dmapBuilder = new DMapBuilder(tmpFile, sizes[1], false).enableFrontCoding();
+        if (keyHashes) {
+          dmapBuilder.enableKeyHashes();
+        }
+        for (int i = 0; i < count; ++i) {
+          dmapBuilder.add(ByteUtils.getBytes(i), ByteUtils.getBytes(i));
+        }
+        dmapBuilder.build();
+
+        for (boolean preloadOffsets : new boolean[] { false, true }) {
+          DMap.Builder loader = new DMap.Builder(tmpFile);
+          if (preloadOffsets) {
+            loader.preloadOffsets();
+          }
+          DMap dmap = loader.build();
+          assertEquals((count + 2) / 3, dmap.getBlockCount());
+          for (int i = 0; i < count; ++i) {
+            assertEquals(i, ByteBuffer.wrap(dmap.get(ByteUtils.getBytes(i))).getInt());
+          }
+          assertNull(dmap.get(ByteUtils.getBytes(count)));
+          assertNull(dmap.get(ByteUtils.getBytes(-1)));
+          assertEquals(count, dmap.stream().count());
+        }
+        tmpFile.delete();
+      }
+    }
+  }
+
+  @Test
+  public void hashIndex() throws IOException {
+    for (boolean frontCoding : new boolean[] { false, true }) {
+      File tmpFile = File.createTempFile("tmp", ".dmap");
+      tmpFile.delete();
+
+      DMapBuilder dmapBuilder = new DMapBuilder(tmpFile, 256).enableHashIndex();
+      if (frontCoding) {
+        dmapBuilder.enableFrontCoding();
+      }
+      int count = 1 << 12;
+      Random r = new Random(13);
+      Map<Integer, Integer> kvs = new HashMap<>();
+      for (int i = 0; i < count; ++i) {
+        int k = r.nextInt();
+        if (kvs.put(k, i) == null) {
+          dmapBuilder.add(ByteUtils.getBytes(k), ByteUtils.getBytes(i));
+        }
+      }
+      dmapBuilder.build();
+
+      for (boolean preloadOffsets : new boolean[] { false, true }) {
+        DMap.Builder loader = new DMap.Builder(tmpFile);
+        if (preloadOffsets) {
+          loader.preloadOffsets();
+        }
+        DMap dmap = loader.build();
+        assertEquals(0, dmap.getIndexMemoryUsage());
+        for (Entry<Integer, Integer> e : kvs.entrySet()) {
+          assertEquals(e.getValue().intValue(), ByteBuffer.wrap(dmap.get(ByteUtils.getBytes(e.getKey()))).getInt());
+        }
+        for (int i = 0; i < count; ++i) {
+          if (!kvs.containsKey(i)) {
+            assertNull(dmap.get(ByteUtils.getBytes(i)));
+          }
+        }
+        assertNull(dmap.get(new byte[] { 1 }));
+        assertEquals(kvs.size(), dmap.stream().count());
+      }
+      tmpFile.delete();
+    }
+  }
+
+  @Test
+  public void keyHashes() throws IOException {
+    Map<Integer, Integer> kvs = new HashMap<>();
+    Random r = new Random(17);
+    while (kvs.size() < 2000) {
+      kvs.put(r.nextInt(), kvs.size());
+    }
+    for (int variant = 0; variant < 6; ++variant) {
+      File tmpFile = File.createTempFile("tmp", ".dmap");
+      tmpFile.delete();
+      DMapBuilder dmapBuilder = new DMapBuilder(tmpFile, 512).enableKeyHashes();
+      if (variant % 2 == 1) {
+        dmapBuilder.enableFrontCoding(4);
+      }
+      if (variant / 2 == 1) {
+        dmapBuilder.enableHashIndex();
+      } else if (variant / 2 == 2) {
+        dmapBuilder.enablePerfectHashIndex();
+      }
+      for (Entry<Integer, Integer> e : kvs.entrySet()) {
+        dmapBuilder.add(ByteUtils.getBytes(e.getKey()), ByteUtils.getBytes(e.getValue()));
+      }
+      dmapBuilder.build();
+
+      for (boolean preloadOffsets : new boolean[] { false, true }) {
+        DMap.Builder loader = new DMap.Builder(tmpFile);
+        if (preloadOffsets) {
+          loader.preloadOffsets();
+        }
+        DMap dmap = loader.build();
+        for (Entry<Integer, Integer> e : kvs.entrySet()) {
+          assertEquals(e.getValue().intValue(), ByteBuffer.wrap(dmap.get(ByteUtils.getBytes(e.getKey()))).getInt());
+        }
+        for (int i = 0; i < 1000; ++i) {
+          if (!kvs.containsKey(i)) {
+            assertNull(dmap.get(ByteUtils.getBytes(i)));
+          }
+        }
+        DMap.EntryIterator scan = dmap.scan(ByteUtils.getBytes(0), null);
+        int scanned = 0;
+        while (scan.hasNext()) {
+          DMap.Entry entry = scan.next();
+          assertEquals(kvs.get(ByteBuffer.wrap(entry.getKey()).getInt()).intValue(), 
+              ByteBuffer.wrap(entry.getValue()).getInt());
+          ++scanned;
+        }
+        assertTrue(scanned > 0);
+        assertEquals(kvs.size(), dmap.stream().count());
+      }
+      tmpFile.delete();
+    }
+  }
+
+
+  @Test
+  public void segmentedMapping() throws IOException {
+    Map<Integer, Integer> kvs = new HashMap<>();
+    Random r = new Random(19);
+    while (kvs.size() < 3000) {
+      kvs.put(r.nextInt(), kvs.size());
+    }
+    for (int variant = 0; variant < 3; ++variant) {
+      File tmpFile = File.createTempFile("tmp", ".dmap");
+      tmpFile.delete();
+      DMapBuilder dmapBuilder = new DMapBuilder(tmpFile, 512);
+      if (variant == 1) {
+        dmapBuilder.enableFrontCoding().enableHashIndex();
+      } else if (variant == 2) {
+        dmapBuilder.enableBlockCompression();
+      }
+      for (Entry<Integer, Integer> e : kvs.entrySet()) {
+        dmapBuilder.add(ByteUtils.getBytes(e.getKey()), ByteUtils.getBytes(e.getValue()));
+      }
+      dmapBuilder.build();
+
+      // a segment per block, a few blocks per segment and a single segment
+      for (int segmentSize : new int[] { 1, 4096, DMap.DEFAULT_SEGMENT_SIZE }) {
+        for (int preload = 0; preload < 3; ++preload) {
+          DMap.Builder loader = new DMap.Builder(tmpFile).mapFileInSegments(segmentSize);
+          if (preload == 1) {
+            loader.preloadOffsets();
+          } else if (preload == 2) {
+            loader.preloadValues();
+          }
+          DMap dmap = loader.build();
+          for (Entry<Integer, Integer> e : kvs.entrySet()) {
+            assertEquals(e.getValue().intValue(), ByteBuffer.wrap(dmap.get(ByteUtils.getBytes(e.getKey()))).getInt());
+          }
+          for (int i = 0; i < 100; ++i) {
+            if (!kvs.containsKey(i)) {
+              assertNull(dmap.get(ByteUtils.getBytes(i)));
+            }
+          }
+          assertEquals(kvs.size(), dmap.stream().count());
+          // blocks are never mapped or cached on their own
+          assertEquals(0, dmap.getBlockCacheStats().getRequestCount());
+        }
+      }
+      tmpFile.delete();
+    }
+  }
+  @Test
+  public void multiGet() throws IOException {
+    File tmpFile = File.createTempFile("tmp", ".dmap");
+    tmpFile.delete();
+
+    for (boolean compress : new boolean[] { false, true }) {
+      DMapBuilder dmapBuilder = new DMapBuilder(tmpFile, 256, compress);
+      int count = 1 << 12;
+      for (int i = 0; i < count; ++i) {
+        dmapBuilder.add(ByteUtils.getBytes(2 * i), ByteUtils.getBytes(i));
+      }
+      dmapBuilder.build();
+
+      for (boolean preloadOffsets : new boolean[] { false, true }) {
+        DMap.Builder loader = new DMap.Builder(tmpFile);
+        if (preloadOffsets) {
+          loader.preloadOffsets();
+        }
+        DMap dmap = loader.build();
+
+        // random batch including missing (odd) keys and duplicates
+        Random r = new Random(42);
+        byte[][] keys = new byte[2000][];
+        for (int i = 0; i < keys.length; ++i) {
+          keys[i] = ByteUtils.getBytes(r.nextInt(2 * count + 10));
+        }
+        keys[7] = keys[3];
+
+        byte[][] values = dmap.multiGet(keys);
+        byte[][] parallelValues = dmap.multiGet(keys, new ForkJoinPool(4));
+        ByteBuffer dst = ByteBuffer.allocate(4 * keys.length);
+        int[] valueLengths = new int[keys.length];
+        int totalLength = dmap.multiGet(keys, dst, valueLengths);
+        assertEquals(dst.position(), totalLength);
+        dst.flip();
+        for (int i = 0; i < keys.length; ++i) {
+          byte[] expected = dmap.get(keys[i]);
+          if (expected == null) {
+            assertNull(values[i]);
+            assertNull(parallelValues[i]);
+            assertEquals(-1, valueLengths[i]);
+          } else {
+            assertArrayEquals(expected, values[i]);
+            assertArrayEquals(expected, parallelValues[i]);
+            assertEquals(4, valueLengths[i]);
+            assertEquals(ByteBuffer.wrap(expected).getInt(), dst.getInt());
+          }
+        }
+        assertFalse(dst.hasRemaining());
+
+        // values that do not fit are not copied at all
+        ByteBuffer small = ByteBuffer.allocate(totalLength - 1);
+        try {
+          dmap.multiGet(keys, small, valueLengths);
+          fail();
+        } catch (BufferOverflowException e) {
+          assertEquals(0, small.position());
+        }
+        assertEquals(0, dmap.multiGet(new byte[0][]).length);
+      }
+      tmpFile.delete();
+    }
+  }
+
+  @Test
+  public void getAsync() throws Exception {
+    File tmpFile = File.createTempFile("tmp", ".dmap");
+    tmpFile.delete();
+
+    DMapBuilder dmapBuilder = new DMapBuilder(tmpFile, 256);
+    int count = 1 << 10;
+    for (int i = 0; i < count; ++i) {
+      dmapBuilder.add(ByteUtils.getBytes(i), ByteUtils.getBytes(2 * i));
+    }
+    dmapBuilder.build();
+
+    final AtomicInteger submitted = new AtomicInteger();
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    DMap dmap = new DMap.Builder(tmpFile).setLookupExecutor(r -> {
+      submitted.incrementAndGet();
+      executor.execute(r);
+    }).build();
+
+    // first lookup reads the block on the executor, the second one completes inline
+    byte[] key = ByteUtils.getBytes(17);
+    assertEquals(34, ByteBuffer.wrap(dmap.getAsync(key).get()).getInt());
+    assertEquals(1, submitted.get());
+    CompletableFuture<byte[]> cached = dmap.getAsync(key);
+    assertTrue(cached.isDone());
+    assertEquals(34, ByteBuffer.wrap(cached.get()).getInt());
+    assertEquals(1, submitted.get());
+
+    byte[][] keys = new byte[count][];
+    for (int i = 0; i < count; ++i) {
+      keys[i] = ByteUtils.getBytes(count - 1 - i);
+    }
+    byte[][] values = dmap.multiGetAsync(keys).get();
+    for (int i = 0; i < count; ++i) {
+      assertEquals(2 * (count - 1 - i), ByteBuffer.wrap(values[i]).getInt());
+    }
+    assertEquals(2, submitted.get());
+    // all blocks are cached now
+    assertTrue(dmap.multiGetAsync(keys).isDone());
+    assertEquals(2, submitted.get());
+    assertNull(dmap.getAsync(ByteUtils.getBytes(count)).get());
+
+    // default executor
+    dmap = new DMap.Builder(tmpFile).build();
+    assertEquals(34, ByteBuffer.wrap(dmap.getAsync(key).get()).getInt());
+
+    executor.shutdown();
+    tmpFile.delete();
+  }
+
+  @Test
+  public void scan() throws IOException {
+    File tmpFile = File.createTempFile("tmp", ".dmap");
+    tmpFile.delete();
+
+    DMapBuilder dmapBuilder = new DMapBuilder(tmpFile, 256);
+    int count = 1 << 12;
+    for (int i = 0; i < count; ++i) {
+      dmapBuilder.add(ByteUtils.getBytes(2 * i), ByteUtils.getBytes(i));
+    }
+    dmapBuilder.build();
+
+    for (boolean preloadOffsets : new boolean[] { false, true }) {
+      DMap.Builder loader = new DMap.Builder(tmpFile);
+      if (preloadOffsets) {
+        loader.preloadOffsets();
+      }
+      DMap dmap = loader.build();
+      assertEquals(KeyOrder.LENGTH_FIRST, dmap.getKeyOrder());
+
+      // bounds that are not in the map
+      DMap.EntryIterator scan = dmap.scan(ByteUtils.getBytes(101), ByteUtils.getBytes(3001));
+      for (int i = 51; i <= 1500; ++i) {
+        assertTrue(scan.hasNext());
+        DMap.Entry entry = scan.next();
+        assertEquals(2 * i, ByteBuffer.wrap(entry.getKey()).getInt());
+        assertEquals(i, ByteBuffer.wrap(entry.getValue()).getInt());
+      }
+      assertFalse(scan.hasNext());
+      assertNull(scan.next());
+
+      // unbounded
+      scan = dmap.scan(null, null);
+      for (int i = 0; i < count; ++i) {
+        assertEquals(2 * i, ByteBuffer.wrap(scan.next().getKey()).getInt());
+      }
+      assertFalse(scan.hasNext());
+
+      assertFalse(dmap.scan(ByteUtils.getBytes(10), ByteUtils.getBytes(10)).hasNext());
+      assertFalse(dmap.scan(ByteUtils.getBytes(2 * count), null).hasNext());
+      try {
+        dmap.prefixScan(new byte[] { 0 });
+        fail();
+      } catch (UnsupportedOperationException e) {
+        // expected
+      }
+    }
+    tmpFile.delete();
+  }
+
+  @Test
+  public void prefixScan() throws IOException {
+    File tmpFile = File.createTempFile("tmp", ".dmap");
+    tmpFile.delete();
+
+    DMapBuilder dmapBuilder = new DMapBuilder(tmpFile, 256).setKeyOrder(KeyOrder.LEXICOGRAPHIC);
+    TreeMap<String, Integer> kvs = new TreeMap<>();
+    Random r = new Random(5);
+    while (kvs.size() < 4000) {
+      // short keys over a small alphabet share many prefixes
+      char[] key = new char[1 + r.nextInt(7)];
+      for (int i = 0; i < key.length; ++i) {
+        key[i] = (char) ('a' + r.nextInt(4));
+      }
+      kvs.put(new String(key), kvs.size());
+    }
+    for (Entry<String, Integer> e : kvs.entrySet()) {
+      dmapBuilder.add(e.getKey().getBytes(StandardCharsets.US_ASCII), ByteUtils.getBytes(e.getValue()));
+    }
+    dmapBuilder.build();
+
+    for (boolean preloadOffsets : new boolean[] { false, true }) {
+      DMap.Builder loader = new DMap.Builder(tmpFile);
+      if (preloadOffsets) {
+        loader.preloadOffsets();
+      }
+      DMap dmap = loader.build();
+      assertEquals(KeyOrder.LEXICOGRAPHIC, dmap.getKeyOrder());
+      for (Entry<String, Integer> e : kvs.entrySet()) {
+        assertEquals(e.getValue().intValue(), 
+            ByteBuffer.wrap(dmap.get(e.getKey().getBytes(StandardCharsets.US_ASCII))).getInt());
+      }
+
+      for (String prefix : new String[] { "", "a", "ab", "dd", "cab", "abcd", "e" }) {
+        DMap.EntryIterator scan = dmap.prefixScan(prefix.getBytes(StandardCharsets.US_ASCII));
+        for (Entry<String, Integer> e : kvs.tailMap(prefix).entrySet()) {
+          if (!e.getKey().startsWith(prefix)) {
+            break;
+          }
+          assertTrue(scan.hasNext());
+          DMap.Entry entry = scan.next();
+          assertEquals(e.getKey(), new String(entry.getKey(), StandardCharsets.US_ASCII));
+          assertEquals(e.getValue().intValue(), ByteBuffer.wrap(entry.getValue()).getInt());
+        }
+        assertFalse(scan.hasNext());
+      }
+    }
+    tmpFile.delete();
+  }
+
+  @Test
+  public void orderedIterators() throws IOException {
+    File tmpFile = File.createTempFile("tmp", ".dmap");
+    tmpFile.delete();
+
+    for (boolean compress : new boolean[] { false, true }) {
+      DMapBuilder dmapBuilder = new DMapBuilder(tmpFile, 1024, compress);
+      int count = 1 << 12;
+      Random r = new Random(13);
+      byte[][] values = new byte[count][];
+      for (int i = count - 1; i >= 0; --i) {
+        // values of different lengths, some of them equal
+        values[i] = new byte[r.nextInt(8)];
+        r.nextBytes(values[i]);
+        dmapBuilder.add(ByteUtils.getBytes(i), values[i]);
+      }
+      dmapBuilder.build();
+
+      for (boolean preloadOffsets : new boolean[] { false, true }) {
+        DMap.Builder loader = new DMap.Builder(tmpFile);
+        if (preloadOffsets) {
+          loader.preloadOffsets();
+        }
+        DMap dmap = loader.build();
+
+        DMap.EntryIterator entries = dmap.entryIterator();
+        DMap.EntryIterator reusedEntries = dmap.entryIterator(true);
+        DMap.KeyIterator keys = dmap.keyIterator();
+        DMap.Entry previous = null;
+        for (int i = 0; i < count; ++i) {
+          DMap.Entry entry = entries.next();
+          assertEquals(i, ByteBuffer.wrap(entry.getKey()).getInt());
+          assertArrayEquals(values[i], entry.getValue());
+
+          DMap.Entry reusedEntry = reusedEntries.next();
+          if (previous != null) {
+            assertSame(previous, reusedEntry);
+          }
+          previous = reusedEntry;
+          assertEquals(i, ByteBuffer.wrap(reusedEntry.getKey()).getInt());
+          assertArrayEquals(values[i], reusedEntry.getValue());
+
+          assertEquals(i, ByteBuffer.wrap(keys.next()).getInt());
+        }
+        assertFalse(entries.hasNext());
+        assertFalse(reusedEntries.hasNext());
+        assertFalse(keys.hasNext());
+        assertNull(keys.next());
+      }
+      tmpFile.delete();
+    }
+  }
+
+  @Test
+  public void streams() throws IOException {
+    File tmpFile = File.createTempFile("tmp", ".dmap");
+    tmpFile.delete();
+
+    DMapBuilder dmapBuilder = new DMapBuilder(tmpFile, 256);
+    int count = 1 << 14;
+    for (int i = 0; i < count; ++i) {
+      dmapBuilder.add(ByteUtils.getBytes(i), ByteUtils.getBytes(3 * i));
+    }
+    dmapBuilder.build();
+
+    for (boolean preloadOffsets : new boolean[] { false, true }) {
+      DMap.Builder loader = new DMap.Builder(tmpFile);
+      if (preloadOffsets) {
+        loader.preloadOffsets();
+      }
+      DMap dmap = loader.build();
+
+      Spliterator<DMap.Entry> spliterator = dmap.stream().spliterator();
+      assertTrue(spliterator.hasCharacteristics(Spliterator.SIZED | Spliterator.ORDERED));
+      assertEquals(count, spliterator.estimateSize());
+      Spliterator<DMap.Entry> prefix = spliterator.trySplit();
+      assertEquals(count, prefix.estimateSize() + spliterator.estimateSize());
+
+      assertEquals(count, dmap.stream().count());
+      List<Integer> keys = dmap.parallelStream()
+          .peek(e -> assertEquals(3 * ByteBuffer.wrap(e.getKey()).getInt(), ByteBuffer.wrap(e.getValue()).getInt()))
+          .map(e -> ByteBuffer.wrap(e.getKey()).getInt())
+          .collect(Collectors.toList());
+      assertEquals(count, keys.size());
+      for (int i = 0; i < count; ++i) {
+        assertEquals(i, keys.get(i).intValue());
+      }
+    }
+    tmpFile.delete();
+  }
+
+  @Test
+  public void blockCompression() throws IOException {
+    File valueCompressedFile = File.createTempFile("tmp", ".dmap");
+    valueCompressedFile.delete();
+    File blockCompressedFile = File.createTempFile("tmp", ".dmap");
+    blockCompressedFile.delete();
+
+    DMapBuilder valueCompressedBuilder = new DMapBuilder(valueCompressedFile, 4096, true);
+    DMapBuilder blockCompressedBuilder = new DMapBuilder(blockCompressedFile, 4096).enableBlockCompression();
+    int count = 1 << 12;
+    for (int i = 0; i < count; ++i) {
+      byte[] value = ("{\"id\": " + i + ", \"type\": \"record\", \"status\": \"active\"}")
+          .getBytes(StandardCharsets.UTF_8);
+      valueCompressedBuilder.add(ByteUtils.getBytes(i), value);
+      blockCompressedBuilder.add(ByteUtils.getBytes(i), value);
+    }
+    valueCompressedBuilder.build();
+    blockCompressedBuilder.build();
+    // small values with shared structure compress better together
+    assertTrue(blockCompressedFile.length() < valueCompressedFile.length() / 2);
+
+    DMap expected = new DMap.Builder(valueCompressedFile).build();
+    for (boolean preloadOffsets : new boolean[] { false, true }) {
+      DMap.Builder loader = new DMap.Builder(blockCompressedFile);
+      if (preloadOffsets) {
+        loader.preloadOffsets();
+      }
+      DMap dmap = loader.setDecompressedBlockLimit(4).build();
+      ByteBuffer dst = ByteBuffer.allocate(128);
+      for (int i = 0; i < count; ++i) {
+        byte[] key = ByteUtils.getBytes(i);
+        byte[] value = expected.get(key);
+        assertArrayEquals(value, dmap.get(key));
+        assertEquals(ByteBuffer.wrap(value), dmap.getView(key));
+        dst.clear();
+        assertEquals(value.length, dmap.get(key, dst));
+      }
+      assertNull(dmap.get(ByteUtils.getBytes(count)));
+      // consecutive keys hit the decompressed block
+      assertTrue(dmap.getDecompressedBlockCacheStats().getHitCount() > 2 * count);
+
+      DMap.EntryIterator entries = dmap.entryIterator();
+      int entryCount = 0;
+      while (entries.hasNext()) {
+        DMap.Entry entry = entries.next();
+        assertArrayEquals(expected.get(entry.getKey()), entry.getValue());
+        ++entryCount;
+      }
+      assertEquals(count, entryCount);
+    }
+    valueCompressedFile.delete();
+    blockCompressedFile.delete();
+  }
+
+  @Test
+  public void codecs() throws IOException {
+    int count = 1 << 11;
+    for (Codec codec : new Codec[] { Codecs.IDENTITY, Codecs.SNAPPY, Codecs.zstd(5), Codecs.deflate(4) }) {
+      for (boolean compressBlocks : new boolean[] { false, true }) {
+        File tmpFile = File.createTempFile("tmp", ".dmap");
+        tmpFile.delete();
+        DMapBuilder dmapBuilder = new DMapBuilder(tmpFile, 2048).setCodec(codec);
+        if (compressBlocks) {
+          dmapBuilder.enableBlockCompression();
+        }
+        for (int i = 0; i < count; ++i) {
+          dmapBuilder.add(ByteUtils.getBytes(i), ("value " + i + " of " + count).getBytes(StandardCharsets.UTF_8));
+        }
+        dmapBuilder.build();
+
+        DMap dmap = new DMap.Builder(tmpFile).build();
+        Codec expectedCodec = compressBlocks && codec == Codecs.IDENTITY ? Codecs.SNAPPY : codec;
+        assertEquals(expectedCodec.getId(), dmap.getCodec().getId());
+        ByteBuffer dst = ByteBuffer.allocate(64);
+        for (int i = 0; i < count; ++i) {
+          byte[] expected = ("value " + i + " of " + count).getBytes(StandardCharsets.UTF_8);
+          assertArrayEquals(expected, dmap.get(ByteUtils.getBytes(i)));
+          dst.clear();
+          assertEquals(expected.length, dmap.get(ByteUtils.getBytes(i), dst));
+        }
+        DMap.EntryIterator entries = dmap.entryIterator(true);
+        int entryCount = 0;
+        while (entries.hasNext()) {
+          DMap.Entry entry = entries.next();
+          assertArrayEquals(dmap.get(entry.getKey()), entry.getValue());
+          ++entryCount;
+        }
+        assertEquals(count, entryCount);
+        tmpFile.delete();
+      }
+    }
+  }
+
+  @Test
+  public void dictionaryCompression() throws IOException {
+    int count = 1 << 14;
+    long[] fileSizes = new long[2];
+    for (boolean dictionary : new boolean[] { false, true }) {
+      File tmpFile = File.createTempFile("tmp", ".dmap");
+      tmpFile.delete();
+      DMapBuilder dmapBuilder = new DMapBuilder(tmpFile, 4096).setCodec(Codecs.ZSTD).setCompressionThreads(2);
+      if (dictionary) {
+        dmapBuilder.enableDictionaryCompression(8192);
+      }
+      for (int i = 0; i < count; ++i) {
+        dmapBuilder.add(ByteUtils.getBytes(i), createRecord(i));
+      }
+      dmapBuilder.build();
+      fileSizes[dictionary ? 1 : 0] = tmpFile.length();
+
+      DMap dmap = new DMap.Builder(tmpFile).build();
+      ByteBuffer dst = ByteBuffer.allocate(256);
+      for (int i = 0; i < count; ++i) {
+        assertArrayEquals(createRecord(i), dmap.get(ByteUtils.getBytes(i)));
+        dst.clear();
+        assertEquals(createRecord(i).length, dmap.get(ByteUtils.getBytes(i), dst));
+      }
+      tmpFile.delete();
+    }
+    assertTrue(fileSizes[1] < fileSizes[0]);
+
+    // too few values to train a dictionary on
+    File tmpFile = File.createTempFile("tmp", ".dmap");
+    tmpFile.delete();
+    DMapBuilder dmapBuilder = new DMapBuilder(tmpFile).enableDictionaryCompression();
+    dmapBuilder.add(ByteUtils.getBytes(1), createRecord(1));
+    dmapBuilder.build();
+    DMap dmap = new DMap.Builder(tmpFile).build();
+    assertArrayEquals(createRecord(1), dmap.get(ByteUtils.getBytes(1)));
+    tmpFile.delete();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void dictionaryAndBlockCompression() throws IOException {
+    File tmpFile = File.createTempFile("tmp", ".dmap");
+    tmpFile.delete();
+    tmpFile.deleteOnExit();
+    DMapBuilder dmapBuilder = new DMapBuilder(tmpFile).enableDictionaryCompression().enableBlockCompression();
+    dmapBuilder.addSorted(ByteUtils.getBytes(1), ByteUtils.getBytes(1));
+  }
+
+  private static byte[] createRecord(int id) {
+    return ("{\"id\":" + id + ",\"type\":\"" + (id % 3 == 0 ? "customer" : "supplier") 
+        + "\",\"country\":\"" + new String[] { "DE", "FR", "US" }[id % 3] + "\",\"score\":" + (id % 17) + "}")
+        .getBytes(StandardCharsets.UTF_8);
+  }
+
   private class Reader implements Callable<Boolean> {
     private DMap dmap_;
     private Map<Integer, Integer> toRead_;
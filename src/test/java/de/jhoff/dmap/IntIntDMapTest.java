@@ -0,0 +1,114 @@
+package de.jhoff.dmap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class IntIntDMapTest {
+
+  @Rule
+  public ExpectedException exception = ExpectedException.none();
+
+  @Test
+  public void randomPairs() throws IOException {
+    File tmpFile = File.createTempFile("tmp", ".dmap");
+    tmpFile.delete();
+
+    IntIntDMapBuilder builder = new IntIntDMapBuilder(tmpFile);
+    Random r = new Random(17);
+    Map<Integer, Integer> kvs = new HashMap<>();
+    // sizes that are not a power of two minus one leave the last tree level incomplete
+    while (kvs.size() < 10000) {
+      int key = r.nextInt();
+      if (!kvs.containsKey(key)) {
+        int value = r.nextInt();
+        kvs.put(key, value);
+        builder.add(key, value);
+      }
+    }
+    builder.build();
+
+    for (boolean preload : new boolean[] { false, true }) {
+      IntIntDMap.Builder loader = new IntIntDMap.Builder(tmpFile);
+      if (preload) {
+        loader.preload();
+      }
+      IntIntDMap map = loader.build();
+      assertEquals(kvs.size(), map.size());
+      for (Entry<Integer, Integer> e : kvs.entrySet()) {
+        assertTrue(map.containsKey(e.getKey()));
+        assertEquals(e.getValue().intValue(), map.get(e.getKey(), 0));
+      }
+      for (int i = 0; i < 10000; ++i) {
+        int key = r.nextInt();
+        if (!kvs.containsKey(key)) {
+          assertFalse(map.containsKey(key));
+          assertEquals(-1, map.get(key, -1));
+        }
+      }
+      for (int key : new int[] { Integer.MIN_VALUE, Integer.MAX_VALUE, 0 }) {
+        assertEquals(kvs.containsKey(key), map.containsKey(key));
+      }
+    }
+    tmpFile.delete();
+  }
+
+  @Test
+  public void smallMaps() throws IOException {
+    for (int size = 0; size < 20; ++size) {
+      File tmpFile = File.createTempFile("tmp", ".dmap");
+      tmpFile.delete();
+      IntIntDMapBuilder builder = new IntIntDMapBuilder(tmpFile);
+      for (int i = size - 1; i >= 0; --i) {
+        builder.add(2 * i, -i);
+      }
+      builder.build();
+
+      IntIntDMap map = new IntIntDMap.Builder(tmpFile).build();
+      assertEquals(size, map.size());
+      for (int i = -1; i <= 2 * size; ++i) {
+        assertEquals(i >= 0 && i % 2 == 0 && i < 2 * size, map.containsKey(i));
+        assertEquals(i >= 0 && i % 2 == 0 && i < 2 * size ? -i / 2 : 1, map.get(i, 1));
+      }
+      tmpFile.delete();
+    }
+  }
+
+  @Test
+  public void duplicateKeyThrowsIOException() throws IOException {
+    File tmpFile = File.createTempFile("tmp", ".dmap");
+    tmpFile.delete();
+    IntIntDMapBuilder builder = new IntIntDMapBuilder(tmpFile);
+    builder.add(1, 1);
+    builder.add(2, 2);
+    builder.add(1, 3);
+
+    exception.expect(IOException.class);
+    builder.build();
+    tmpFile.delete();
+  }
+
+  @Test
+  public void rejectsOtherFiles() throws IOException {
+    File tmpFile = File.createTempFile("tmp", ".dmap");
+    tmpFile.delete();
+    DMapBuilder builder = new DMapBuilder(tmpFile, 256);
+    builder.add(new byte[] { 1 }, new byte[] { 1 });
+    builder.build();
+
+    exception.expect(IOException.class);
+    new IntIntDMap.Builder(tmpFile).build();
+    tmpFile.delete();
+  }
+}
@@ -0,0 +1,128 @@
+package de.jhoff.dmap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class LongDMapTest {
+
+  @Rule
+  public ExpectedException exception = ExpectedException.none();
+
+  @Test
+  public void segmentsFitIntoOneMapping() {
+    // a segment is mapped together with the longest value starting in it
+    assertTrue(LongDMap.SEGMENT_SIZE + LongDMap.MAX_VALUE_LENGTH <= Integer.MAX_VALUE);
+    assertTrue(LongDMap.MAX_VALUE_LENGTH > 0);
+  }
+
+  @Test
+  public void randomEntries() throws IOException {
+    Random r = new Random(23);
+    TreeMap<Long, byte[]> kvs = new TreeMap<>();
+    while (kvs.size() < 10000) {
+      long key = kvs.size() % 2 == 0 ? r.nextLong() : r.nextInt(1 << 20);
+      byte[] value = new byte[r.nextInt(20)];
+      r.nextBytes(value);
+      kvs.put(key, value);
+    }
+    kvs.put(Long.MIN_VALUE, new byte[] { 1 });
+    kvs.put(Long.MAX_VALUE, new byte[] { 2 });
+
+    for (boolean sortedInput : new boolean[] { false, true }) {
+      File tmpFile = File.createTempFile("tmp", ".dmap");
+      tmpFile.delete();
+      LongDMapBuilder builder = new LongDMapBuilder(tmpFile);
+      Iterable<Map.Entry<Long, byte[]>> input = sortedInput ? kvs.entrySet() : kvs.descendingMap().entrySet();
+      for (Map.Entry<Long, byte[]> e : input) {
+        builder.add(e.getKey(), e.getValue());
+      }
+      builder.build();
+
+      LongDMap map = new LongDMap.Builder(tmpFile).preloadValues().build();
+      assertEquals(kvs.size(), map.size());
+      ByteBuffer dst = ByteBuffer.allocate(32);
+      for (Map.Entry<Long, byte[]> e : kvs.entrySet()) {
+        assertTrue(map.containsKey(e.getKey()));
+        assertArrayEquals(e.getValue(), map.get(e.getKey()));
+        assertEquals(ByteBuffer.wrap(e.getValue()), map.getView(e.getKey()));
+        dst.clear();
+        assertEquals(e.getValue().length, map.get(e.getKey(), dst));
+        assertEquals(e.getValue().length, dst.position());
+      }
+      for (int i = 0; i < 10000; ++i) {
+        long key = i % 2 == 0 ? r.nextLong() : r.nextInt(1 << 20);
+        if (!kvs.containsKey(key)) {
+          assertFalse(map.containsKey(key));
+          assertNull(map.get(key));
+          assertEquals(-1, map.get(key, dst));
+        }
+      }
+
+      assertRange(kvs, map, Long.MIN_VALUE, Long.MAX_VALUE);
+      assertRange(kvs, map, 0, 1 << 20);
+      assertRange(kvs, map, -1000, 1000);
+      assertRange(kvs, map, 5, 5);
+      Iterator<LongDMap.Entry> entries = map.entryIterator();
+      for (Map.Entry<Long, byte[]> e : kvs.entrySet()) {
+        LongDMap.Entry entry = entries.next();
+        assertEquals(e.getKey().longValue(), entry.getKey());
+        assertArrayEquals(e.getValue(), entry.getValue());
+      }
+      assertFalse(entries.hasNext());
+      tmpFile.delete();
+    }
+  }
+
+  @Test
+  public void emptyMap() throws IOException {
+    File tmpFile = File.createTempFile("tmp", ".dmap");
+    tmpFile.delete();
+    new LongDMapBuilder(tmpFile).build();
+
+    LongDMap map = new LongDMap.Builder(tmpFile).build();
+    assertEquals(0, map.size());
+    assertNull(map.get(0));
+    assertFalse(map.scan(Long.MIN_VALUE, Long.MAX_VALUE).hasNext());
+    tmpFile.delete();
+  }
+
+  @Test
+  public void duplicateKeyThrowsIOException() throws IOException {
+    File tmpFile = File.createTempFile("tmp", ".dmap");
+    tmpFile.delete();
+    LongDMapBuilder builder = new LongDMapBuilder(tmpFile);
+    builder.add(1, new byte[] { 1 });
+    builder.add(2, new byte[] { 2 });
+    builder.add(1, new byte[] { 3 });
+
+    exception.expect(IOException.class);
+    builder.build();
+    tmpFile.delete();
+  }
+
+  private static void assertRange(TreeMap<Long, byte[]> kvs, LongDMap map, long from, long to) {
+    Iterator<LongDMap.Entry> entries = map.scan(from, to);
+    for (Map.Entry<Long, byte[]> e : kvs.subMap(from, true, to, false).entrySet()) {
+      assertTrue(entries.hasNext());
+      LongDMap.Entry entry = entries.next();
+      assertEquals(e.getKey().longValue(), entry.getKey());
+      assertArrayEquals(e.getValue(), entry.getValue());
+    }
+    assertFalse(entries.hasNext());
+  }
+}
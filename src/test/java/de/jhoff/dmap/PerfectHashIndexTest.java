@@ -0,0 +1,36 @@
+package de.jhoff.dmap;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Test;
+
+import de.jhoff.dmap.util.ExtendedFileChannel;
+
+public class PerfectHashIndexTest {
+  @Test
+  public void testLookupAndCollisions() throws IOException {
+    File tmpFile = File.createTempFile("tmp", ".idx");
+    RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+    ExtendedFileChannel channel = new ExtendedFileChannel(raf.getChannel());
+    // some padding in front of the section
+    channel.writeLong(0);
+    // two keys share hash 3
+    long[] hashes = new long[] { 1, 2, 3, 4, 3 };
+    int[] blocks = new int[] { 0, 0, 1, 1, 2 };
+    int[] entryPositions = new int[] { 10, 20, 30, 40, 50 };
+    PerfectHashIndex.write(channel, hashes, blocks, entryPositions);
+
+    PerfectHashIndex index = PerfectHashIndex.read(channel, 8);
+    assertEquals((0L << 32) | 10, index.lookup(1));
+    assertEquals((0L << 32) | 20, index.lookup(2));
+    assertEquals((1L << 32) | 40, index.lookup(4));
+    assertEquals(PerfectHashIndex.COLLISION, index.lookup(3));
+    channel.close();
+    raf.close();
+    tmpFile.delete();
+  }
+}
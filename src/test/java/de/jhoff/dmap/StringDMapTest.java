@@ -0,0 +1,85 @@
+package de.jhoff.dmap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.junit.Test;
+
+import de.jhoff.dmap.codec.Codecs;
+
+public class StringDMapTest {
+
+  @Test
+  public void asciiAndNonAsciiEntries() throws IOException {
+    Map<String, String> kvs = new HashMap<>();
+    for (int i = 0; i < 2000; ++i) {
+      kvs.put("key-" + i, "value-" + i);
+      kvs.put("schlüssel-" + i, "wert-äöü-" + i);
+      kvs.put("🔑-" + i, "€" + i);
+    }
+    kvs.put("", "empty key");
+    kvs.put("empty value", "");
+
+    for (boolean compressValues : new boolean[] { false, true }) {
+      File tmpFile = File.createTempFile("tmp", ".dmap");
+      tmpFile.delete();
+      StringDMapBuilder builder = new StringDMapBuilder(new DMapBuilder(tmpFile, 1024, compressValues));
+      for (Entry<String, String> e : kvs.entrySet()) {
+        builder.add(new StringBuilder(e.getKey()), e.getValue());
+      }
+      builder.build();
+
+      StringDMap map = new StringDMap(tmpFile);
+      assertEquals(kvs.size(), map.size());
+      for (Entry<String, String> e : kvs.entrySet()) {
+        assertTrue(map.containsKey(e.getKey()));
+        assertEquals(e.getValue(), map.get(e.getKey()));
+        assertEquals(e.getValue(), map.get(new StringBuilder(e.getKey())));
+        CharSequence chars = map.getChars(e.getKey());
+        assertEquals(e.getValue(), chars.toString());
+        assertEquals(e.getValue().length(), chars.length());
+        if (chars.length() > 1) {
+          assertEquals(e.getValue().charAt(1), chars.charAt(1));
+          assertEquals(e.getValue().substring(1), chars.subSequence(1, chars.length()).toString());
+        }
+        assertEquals(ByteBuffer.wrap(e.getValue().getBytes(StandardCharsets.UTF_8)), map.getUtf8(e.getKey()));
+      }
+      assertFalse(map.containsKey("missing"));
+      assertNull(map.get("missing"));
+      assertNull(map.getChars("missing"));
+      tmpFile.delete();
+    }
+  }
+
+  @Test
+  public void defaultBuilderReturnsViewsOfTheMappedFile() throws IOException {
+    File tmpFile = File.createTempFile("tmp", ".dmap");
+    tmpFile.delete();
+    StringDMapBuilder builder = new StringDMapBuilder(tmpFile);
+    for (int i = 0; i < 1000; ++i) {
+      builder.add("key-" + i, "value-" + i);
+    }
+    builder.build();
+
+    StringDMap map = new StringDMap(tmpFile);
+    assertEquals(Codecs.IDENTITY, map.getMap().getCodec());
+    for (int i = 0; i < 1000; ++i) {
+      // a copy of a decompressed value would be a heap buffer
+      ByteBuffer utf8 = map.getUtf8("key-" + i);
+      assertTrue(utf8.isDirect());
+      assertEquals(ByteBuffer.wrap(("value-" + i).getBytes(StandardCharsets.UTF_8)), utf8);
+      assertEquals("value-" + i, map.getChars("key-" + i).toString());
+    }
+    tmpFile.delete();
+  }
+}
@@ -0,0 +1,150 @@
+package de.jhoff.dmap.codec;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CodecsTest {
+  @Test
+  public void testRoundTrip() throws IOException {
+    Random r = new Random(11);
+    for (Codec codec : new Codec[] { Codecs.IDENTITY, Codecs.SNAPPY, Codecs.ZSTD, Codecs.zstd(19), 
+        Codecs.DEFLATE, Codecs.deflate(1) }) {
+      assertSame(Codecs.forId(codec.getId()).getClass(), codec.getClass());
+      for (int length : new int[] { 0, 1, 100, 100000 }) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; ++i) {
+          // compressible, but not trivially
+          data[i] = (byte) (r.nextInt(4) + 'a');
+        }
+        byte[] compressed = codec.compress(data);
+        assertTrue(compressed.length <= codec.maxCompressedLength(length));
+        // at an offset within a larger buffer
+        byte[] padded = new byte[compressed.length + 3];
+        System.arraycopy(compressed, 0, padded, 2, compressed.length);
+        assertEquals(length, codec.getUncompressedLength(ByteBuffer.wrap(padded), 2, compressed.length));
+        assertArrayEquals(data, codec.decompress(padded, 2, compressed.length));
+        byte[] dst = new byte[length + 1];
+        assertEquals(length, codec.decompress(compressed, 0, compressed.length, dst, 1));
+        for (int i = 0; i < length; ++i) {
+          assertEquals(data[i], dst[i + 1]);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testLengthBoundaries() throws IOException {
+    Random r = new Random(13);
+    // around the content size field widths of Zstandard and the varint widths of Snappy
+    for (int length : new int[] { 2, 127, 128, 255, 256, 257, 16383, 16384, 65791, 65792, 1 << 21 }) {
+      byte[] data = new byte[length];
+      for (int i = 0; i < length; ++i) {
+        // runs and random bytes, for overlapping copies and long literals
+        data[i] = (i / 1000) % 2 == 0 ? (byte) (i % 7) : (byte) r.nextInt();
+      }
+      for (Codec codec : new Codec[] { Codecs.SNAPPY, Codecs.ZSTD, Codecs.DEFLATE }) {
+        byte[] compressed = codec.compress(data);
+        assertEquals(length, codec.getUncompressedLength(ByteBuffer.wrap(compressed), 0, compressed.length));
+        assertArrayEquals(data, codec.decompress(compressed, 0, compressed.length));
+      }
+    }
+  }
+
+  @Test
+  public void testCorruptData() {
+    byte[] compressed = Codecs.SNAPPY.compress(new byte[1000]);
+    for (Codec codec : new Codec[] { Codecs.SNAPPY, Codecs.ZSTD, Codecs.DEFLATE }) {
+      byte[] complete = codec.compress(new byte[1000]);
+      byte[] truncated = new byte[complete.length / 2];
+      System.arraycopy(complete, 0, truncated, 0, truncated.length);
+      try {
+        codec.decompress(truncated, 0, truncated.length, new byte[1000], 0);
+        fail("Truncated data decompressed with " + codec.getName());
+      } catch (IOException e) {
+        // expected
+      }
+    }
+    try {
+      // the length of the Snappy data is no Zstandard frame
+      Codecs.ZSTD.getUncompressedLength(ByteBuffer.wrap(compressed), 0, compressed.length);
+      fail("Snappy data read as Zstandard frame");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testZstdLevels() {
+    byte[] data = new byte[50000];
+    Random r = new Random(5);
+    String[] words = new String[] { "alpha ", "beta ", "gamma ", "delta ", "epsilon " };
+    for (int i = 0; i < data.length; ) {
+      for (byte b : words[r.nextInt(words.length)].getBytes(StandardCharsets.UTF_8)) {
+        if (i < data.length) {
+          data[i++] = b;
+        }
+      }
+    }
+    assertTrue(Codecs.zstd(19).compress(data).length <= Codecs.zstd(1).compress(data).length);
+    assertTrue(Codecs.ZSTD.compress(data).length < Codecs.SNAPPY.compress(data).length);
+    assertTrue(Codecs.deflate(9).compress(data).length <= Codecs.deflate(1).compress(data).length);
+    assertTrue(Codecs.DEFLATE.compress(data).length < Codecs.SNAPPY.compress(data).length);
+  }
+
+  @Test
+  public void testDictionary() throws IOException {
+    assertFalse(Codecs.SNAPPY.supportsDictionary());
+    assertTrue(Codecs.ZSTD.supportsDictionary());
+    Random r = new Random(3);
+    List<byte[]> samples = new ArrayList<>();
+    for (int i = 0; i < 5000; ++i) {
+      samples.add(("{\"id\":" + i + ",\"name\":\"item" + r.nextInt(100) + "\",\"active\":" 
+          + r.nextBoolean() + "}").getBytes(StandardCharsets.UTF_8));
+    }
+    byte[] dictionary = Codecs.ZSTD.trainDictionary(samples, 4096);
+    assertNotNull(dictionary);
+    assertTrue(dictionary.length <= 4096);
+    Codec codec = Codecs.ZSTD.withDictionary(dictionary);
+    assertEquals(Codecs.ZSTD.getId(), codec.getId());
+    long plainBytes = 0;
+    long dictionaryBytes = 0;
+    for (byte[] sample : samples) {
+      byte[] compressed = codec.compress(sample);
+      assertEquals(sample.length, codec.getUncompressedLength(ByteBuffer.wrap(compressed), 0, compressed.length));
+      assertArrayEquals(sample, codec.decompress(compressed, 0, compressed.length));
+      plainBytes += Codecs.ZSTD.compress(sample).length;
+      dictionaryBytes += compressed.length;
+    }
+    assertTrue(dictionaryBytes * 2 < plainBytes);
+    // too few samples
+    assertNull(Codecs.ZSTD.trainDictionary(samples.subList(0, 2), 4096));
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testNoDictionary() {
+    Codecs.SNAPPY.withDictionary(new byte[16]);
+  }
+
+  @Test(expected = IOException.class)
+  public void testUnknownId() throws IOException {
+    Codecs.forId(200);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testReservedId() {
+    Codecs.register(new IdentityCodec() {
+      @Override
+      public int getId() {
+        return 5;
+      }
+    });
+  }
+}
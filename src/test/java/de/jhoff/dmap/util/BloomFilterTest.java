@@ -0,0 +1,57 @@
+package de.jhoff.dmap.util;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.junit.Test;
+
+public class BloomFilterTest {
+  @Test
+  public void testNoFalseNegativesAndFalsePositiveRate() {
+    int count = 10000;
+    BloomFilter filter = BloomFilter.create(count, 0.01);
+    for (int i = 0; i < count; ++i) {
+      filter.add(XxHash64.hash(ByteUtils.getBytes(i)));
+    }
+    for (int i = 0; i < count; ++i) {
+      assertTrue(filter.mightContain(XxHash64.hash(ByteUtils.getBytes(i))));
+    }
+    int falsePositives = 0;
+    for (int i = count; i < 11 * count; ++i) {
+      if (filter.mightContain(XxHash64.hash(ByteUtils.getBytes(i)))) {
+        ++falsePositives;
+      }
+    }
+    // 1% expected, allow some slack
+    assertTrue("False positives: " + falsePositives, falsePositives < count * 10 * 0.02);
+  }
+
+  @Test
+  public void testSerialization() throws IOException {
+    BloomFilter filter = BloomFilter.create(100, 0.05);
+    for (int i = 0; i < 100; ++i) {
+      filter.add(XxHash64.hash(ByteUtils.getBytes(i)));
+    }
+    File tmpFile = File.createTempFile("tmp", ".bloom");
+    RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+    ExtendedFileChannel channel = new ExtendedFileChannel(raf.getChannel());
+    filter.writeTo(channel);
+    assertEquals(filter.serializedSize(), channel.size());
+
+    ByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+    BloomFilter read = BloomFilter.readFrom(buffer);
+    assertEquals(filter.serializedSize(), buffer.position());
+    assertEquals(filter.sizeInBytes(), read.sizeInBytes());
+    for (int i = 0; i < 100; ++i) {
+      assertTrue(read.mightContain(XxHash64.hash(ByteUtils.getBytes(i))));
+    }
+    channel.close();
+    raf.close();
+    tmpFile.delete();
+  }
+}
@@ -0,0 +1,19 @@
+package de.jhoff.dmap.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class ByteArrayTest {
+  @Test
+  public void testHashCode() {
+    byte[] bytes = new byte[] { 1, 2, 3, 4, 5 };
+    ByteArray computed = new ByteArray(bytes.clone());
+    ByteArray stored = new ByteArray(bytes.clone(), XxHash64.hash(bytes));
+    assertEquals(computed.hashCode(), stored.hashCode());
+    assertEquals(computed, stored);
+    assertEquals(stored, computed);
+    assertFalse(new ByteArray(new byte[] { 1, 2, 3, 4, 6 }).equals(computed));
+    assertFalse(computed.hashCode() == new ByteArray(new byte[0]).hashCode());
+  }
+}
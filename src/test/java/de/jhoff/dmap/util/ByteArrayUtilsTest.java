@@ -123,4 +123,24 @@ public class ByteArrayUtilsTest {
     assertEquals(new ByteArray(ByteUtils.getBytes(224)), 
         ByteArrayUtils.findMaxElementLessThanTarget(keys, new ByteArray(ByteUtils.getBytes(1024*1024))));
   }
+
+  @Test
+  public void testFindIndex() {
+    ByteArray[] keys = new ByteArray[8];
+    int value = 0;
+    // The keys are incremented by 32 = > 0,32,64,....224
+    for(int i=0;i<keys.length;i++) {
+      keys[i] = new ByteArray(ByteUtils.getBytes(value));
+      value+=32;
+    }
+
+    assertEquals(-1, ByteArrayUtils.findMaxElementIndexLessThanTarget(keys, new byte[] { 1, 2, 3 }));
+    assertEquals(0, ByteArrayUtils.findMaxElementIndexLessThanTarget(keys, ByteUtils.getBytes(0)));
+    assertEquals(0, ByteArrayUtils.findMaxElementIndexLessThanTarget(keys, ByteUtils.getBytes(31)));
+    assertEquals(1, ByteArrayUtils.findMaxElementIndexLessThanTarget(keys, ByteUtils.getBytes(32)));
+    assertEquals(3, ByteArrayUtils.findMaxElementIndexLessThanTarget(keys, ByteUtils.getBytes(127)));
+    assertEquals(7, ByteArrayUtils.findMaxElementIndexLessThanTarget(keys, ByteUtils.getBytes(224)));
+    assertEquals(7, ByteArrayUtils.findMaxElementIndexLessThanTarget(keys, ByteUtils.getBytes(1024)));
+    assertEquals(-1, ByteArrayUtils.findMaxElementIndexLessThanTarget(new ByteArray[0], ByteUtils.getBytes(1)));
+  }
 }
@@ -0,0 +1,102 @@
+package de.jhoff.dmap.util;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class EliasFanoTest {
+  @Test
+  public void testGetAndLowerBound() {
+    Random r = new Random(7);
+    for (int count : new int[] { 0, 1, 2, 63, 64, 1000, 20000 }) {
+      for (long range : new long[] { 1, count + 1, 1L << 20, 1L << 40, Long.MAX_VALUE }) {
+        long[] values = new long[count];
+        for (int i = 0; i < count; ++i) {
+          values[i] = (r.nextLong() & Long.MAX_VALUE) % range;
+        }
+        Arrays.sort(values);
+        EliasFano ef = EliasFano.encode(values);
+        assertEquals(count, ef.size());
+        for (int i = 0; i < count; ++i) {
+          assertEquals(values[i], ef.get(i));
+        }
+        for (int i = 0; i < 1000; ++i) {
+          long target = i < count ? values[i] + (i % 3) - 1 : (r.nextLong() & Long.MAX_VALUE) % range;
+          assertEquals(lowerBound(values, target), ef.lowerBound(target));
+        }
+        assertEquals(0, ef.lowerBound(0));
+        assertEquals(count, ef.lowerBound(-1L));
+      }
+    }
+  }
+
+  @Test
+  public void testUnsignedValues() {
+    long[] values = new long[] { 0, 5, Long.MAX_VALUE, Long.MIN_VALUE, -2, -1 };
+    EliasFano ef = EliasFano.encode(values);
+    for (int i = 0; i < values.length; ++i) {
+      assertEquals(values[i], ef.get(i));
+      assertEquals(i, ef.lowerBound(values[i]));
+    }
+    assertEquals(3, ef.lowerBound(Long.MAX_VALUE + 1));
+    assertEquals(4, ef.lowerBound(Long.MIN_VALUE + 1));
+  }
+
+  @Test
+  public void testFewBitsPerValue() {
+    int count = 100000;
+    long[] values = new long[count];
+    for (int i = 0; i < count; ++i) {
+      values[i] = 1000L * i + i % 7;
+    }
+    EliasFano ef = EliasFano.encode(values);
+    double bitsPerValue = ef.sizeInBytes() * 8.0 / count;
+    // 2 + log2(1000)
+    assertTrue("Bits per value: " + bitsPerValue, bitsPerValue < 13);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnsortedValues() {
+    EliasFano.encode(new long[] { 1, 3, 2 });
+  }
+
+  @Test
+  public void testSerialization() throws IOException {
+    long[] values = new long[1000];
+    for (int i = 1; i < values.length; ++i) {
+      values[i] = values[i - 1] + XxHash64.hash(ByteUtils.getBytes(i)) % 100 + 100;
+    }
+    EliasFano ef = EliasFano.encode(values);
+
+    File tmpFile = File.createTempFile("tmp", ".ef");
+    RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+    ExtendedFileChannel channel = new ExtendedFileChannel(raf.getChannel());
+    ef.writeTo(channel);
+    assertEquals(ef.serializedSize(), channel.size());
+    ByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+    EliasFano read = EliasFano.readFrom(buffer);
+    assertFalse(buffer.hasRemaining());
+    for (int i = 0; i < values.length; ++i) {
+      assertEquals(values[i], read.get(i));
+    }
+    channel.close();
+    raf.close();
+    tmpFile.delete();
+  }
+
+  private static int lowerBound(long[] values, long target) {
+    int index = 0;
+    while (index < values.length && Long.compareUnsigned(values[index], target) < 0) {
+      ++index;
+    }
+    return index;
+  }
+}
@@ -0,0 +1,72 @@
+package de.jhoff.dmap.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ExtendedFileChannelTest {
+
+  @Test
+  public void bufferedMatchesUnbuffered() throws IOException {
+    File unbufferedFile = File.createTempFile("tmp", ".bin");
+    File bufferedFile = File.createTempFile("tmp", ".bin");
+    ExtendedFileChannel unbuffered = new ExtendedFileChannel(new RandomAccessFile(unbufferedFile, "rw").getChannel());
+    // tiny buffer to exercise refills and gathering writes
+    ExtendedFileChannel buffered = new ExtendedFileChannel(new RandomAccessFile(bufferedFile, "rw").getChannel(), 
+        16, ExtendedFileChannel.Durability.NONE);
+
+    byte[] bytes = new byte[100];
+    new Random(3).nextBytes(bytes);
+    for (ExtendedFileChannel channel : new ExtendedFileChannel[] { unbuffered, buffered }) {
+      channel.writeLong(0);
+      for (int i = 0; i < 1000; ++i) {
+        channel.writeVLong(i * 1000003L);
+        channel.writeInt(i);
+        channel.writeVInt(-i);
+        channel.writeBool(i % 2 == 0);
+      }
+      channel.write(bytes);
+      assertEquals(channel.size(), channel.position());
+      // overwrite the placeholder
+      channel.position(0);
+      channel.writeLong(42);
+      channel.close();
+    }
+    assertEquals(unbufferedFile.length(), bufferedFile.length());
+
+    buffered = new ExtendedFileChannel(new RandomAccessFile(bufferedFile, "r").getChannel(), 
+        16, ExtendedFileChannel.Durability.NONE);
+    assertEquals(42, buffered.readLong());
+    for (int i = 0; i < 1000; ++i) {
+      assertEquals(i * 1000003L, buffered.readVLong());
+      assertEquals(i, buffered.readInt());
+      assertEquals(-i, buffered.readVInt());
+      assertEquals(i % 2 == 0, buffered.readBool());
+    }
+    long bytesStart = buffered.position();
+    byte[] read = new byte[bytes.length];
+    assertEquals(bytes.length, buffered.read(read));
+    assertArrayEquals(bytes, read);
+    assertEquals(-1, buffered.read(ByteBuffer.allocate(1)));
+
+    // seeking back, within and outside the buffered data
+    buffered.position(bytesStart + 90);
+    ByteBuffer one = ByteBuffer.allocate(1);
+    assertEquals(1, buffered.read(one));
+    assertEquals(bytes[90], one.get(0));
+    buffered.position(0);
+    assertEquals(42, buffered.readLong());
+    assertEquals(8, buffered.position());
+    buffered.close();
+
+    unbufferedFile.delete();
+    bufferedFile.delete();
+  }
+}
@@ -0,0 +1,74 @@
+package de.jhoff.dmap.util;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class MinimalPerfectHashTest {
+  @Test
+  public void testMapsKeysToDistinctPositions() {
+    for (int count : new int[] { 0, 1, 2, 7, 1000, 100000 }) {
+      long[] hashes = new long[count];
+      for (int i = 0; i < count; ++i) {
+        hashes[i] = XxHash64.hash(ByteUtils.getBytes(i));
+      }
+      MinimalPerfectHash mph = MinimalPerfectHash.build(hashes);
+      assertEquals(count, mph.size());
+      boolean[] used = new boolean[count];
+      for (long hash : hashes) {
+        int position = mph.get(hash);
+        assertTrue(position >= 0 && position < count);
+        assertFalse(used[position]);
+        used[position] = true;
+      }
+    }
+  }
+
+  @Test
+  public void testFewBitsPerKey() {
+    int count = 100000;
+    long[] hashes = new long[count];
+    Random r = new Random(42);
+    for (int i = 0; i < count; ++i) {
+      hashes[i] = r.nextLong();
+    }
+    MinimalPerfectHash mph = MinimalPerfectHash.build(hashes);
+    double bitsPerKey = mph.sizeInBytes() * 8.0 / count;
+    assertTrue("Bits per key: " + bitsPerKey, bitsPerKey < 8);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDuplicateHashes() {
+    MinimalPerfectHash.build(new long[] { 1, 2, 3, 2 });
+  }
+
+  @Test
+  public void testSerialization() throws IOException {
+    long[] hashes = new long[1000];
+    for (int i = 0; i < hashes.length; ++i) {
+      hashes[i] = XxHash64.hash(ByteUtils.getBytes(i));
+    }
+    MinimalPerfectHash mph = MinimalPerfectHash.build(hashes);
+
+    File tmpFile = File.createTempFile("tmp", ".mph");
+    RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+    ExtendedFileChannel channel = new ExtendedFileChannel(raf.getChannel());
+    mph.writeTo(channel);
+    ByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+    MinimalPerfectHash read = MinimalPerfectHash.readFrom(buffer);
+    assertFalse(buffer.hasRemaining());
+    for (long hash : hashes) {
+      assertEquals(mph.get(hash), read.get(hash));
+    }
+    channel.close();
+    raf.close();
+    tmpFile.delete();
+  }
+}
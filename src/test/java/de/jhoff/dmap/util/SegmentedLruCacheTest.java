@@ -0,0 +1,132 @@
+package de.jhoff.dmap.util;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import de.jhoff.dmap.util.map.CacheStats;
+import de.jhoff.dmap.util.map.SegmentedLruCache;
+
+public class SegmentedLruCacheTest {
+  @Test
+  public void testForUnchangedMapSizeForMultipleInserts() {
+    int limit = 3;
+    SegmentedLruCache<Integer, Integer> cachedIntegers = new SegmentedLruCache<>(limit);
+    int count = 0;
+    for(int i=0;i<10;i++) {
+      cachedIntegers.put(i, i);
+      if(count < limit) {
+        assertEquals(++count, cachedIntegers.size());
+      } else {
+        assertEquals(count, cachedIntegers.size());
+      }
+    }
+  }
+
+  @Test
+  public void testForOldestEntryRemoval() {
+    int limit = 3;
+    SegmentedLruCache<Integer, Integer> cachedIntegers = new SegmentedLruCache<>(limit);
+    for(int i=0;i<10;i++) {
+      cachedIntegers.put(i, i);
+    }
+    assertEquals(3, cachedIntegers.size());
+    assertEquals(false, cachedIntegers.containsKey(1));
+    assertEquals(false, cachedIntegers.containsKey(5));
+    assertEquals(false, cachedIntegers.containsKey(6));
+    assertEquals(true, cachedIntegers.containsKey(7));
+    assertEquals(true, cachedIntegers.containsKey(9));
+    assertEquals(true, cachedIntegers.containsKey(8));
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEntryIsEvicted() {
+    SegmentedLruCache<Integer, Integer> cachedIntegers = new SegmentedLruCache<>(3);
+    for(int i=0;i<3;i++) {
+      cachedIntegers.put(i, i);
+    }
+    // touch the oldest entry, the next insert has to evict 1 instead
+    assertEquals(Integer.valueOf(0), cachedIntegers.get(0));
+    cachedIntegers.put(3, 3);
+    assertTrue(cachedIntegers.containsKey(0));
+    assertFalse(cachedIntegers.containsKey(1));
+  }
+
+  @Test
+  public void testScanDoesNotFlushHotEntries() {
+    int limit = 100;
+    SegmentedLruCache<Integer, Integer> cachedIntegers = new SegmentedLruCache<>(limit);
+    // hot working set, hit once after insertion
+    for(int i=0;i<50;i++) {
+      cachedIntegers.put(i, i);
+      cachedIntegers.get(i);
+    }
+    // one pass over many more keys than fit into the cache
+    for(int i=1000;i<10000;i++) {
+      if (cachedIntegers.get(i) == null) {
+        cachedIntegers.put(i, i);
+      }
+    }
+    for(int i=0;i<50;i++) {
+      assertEquals(Integer.valueOf(i), cachedIntegers.get(i));
+    }
+    assertEquals(limit, cachedIntegers.size());
+  }
+
+  @Test
+  public void testStats() {
+    SegmentedLruCache<Integer, Integer> cachedIntegers = new SegmentedLruCache<>(2);
+    assertNull(cachedIntegers.get(1));
+    cachedIntegers.put(1, 1);
+    assertEquals(Integer.valueOf(1), cachedIntegers.get(1));
+    cachedIntegers.put(2, 2);
+    cachedIntegers.put(3, 3);
+    assertNull(cachedIntegers.putIfAbsent(4, 4));
+    assertEquals(Integer.valueOf(4), cachedIntegers.putIfAbsent(4, 5));
+
+    CacheStats stats = cachedIntegers.stats();
+    assertEquals(1, stats.getHitCount());
+    assertEquals(1, stats.getMissCount());
+    assertEquals(2, stats.getEvictionCount());
+    assertEquals(0.5, stats.getHitRate(), 0.0);
+  }
+
+  @Test
+  public void testConcurrentAccess() throws Exception {
+    final int limit = 512;
+    final SegmentedLruCache<Integer, Integer> cachedIntegers = new SegmentedLruCache<>(limit);
+    ExecutorService es = Executors.newFixedThreadPool(8);
+    List<Future<Boolean>> results = new ArrayList<>();
+    for (int t = 0; t < 8; ++t) {
+      final int seed = t;
+      results.add(es.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws Exception {
+          for (int i = 0; i < 100000; ++i) {
+            int key = (i * 31 + seed) % 2048;
+            Integer value = cachedIntegers.get(key);
+            if (value == null) {
+              cachedIntegers.putIfAbsent(key, key);
+            } else if (value != key) {
+              return false;
+            }
+          }
+          return true;
+        }
+      }));
+    }
+    for (Future<Boolean> result : results) {
+      assertTrue(result.get());
+    }
+    es.shutdown();
+    assertTrue(cachedIntegers.size() <= limit);
+    assertEquals(800000, cachedIntegers.stats().getRequestCount());
+  }
+}
@@ -0,0 +1,27 @@
+package de.jhoff.dmap.util;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class Utf8Test {
+  @Test
+  public void testEncodeMatchesString() {
+    Random r = new Random(3);
+    char[] alphabet = new char[] { 'a', '\u007f', '\u0080', 'ü', '߿', 'ࠀ', '€', '￿',
+        '\ud83d', '\udd11' };
+    for (int i = 0; i < 10000; ++i) {
+      StringBuilder chars = new StringBuilder();
+      int length = r.nextInt(10);
+      for (int j = 0; j < length; ++j) {
+        chars.append(alphabet[r.nextInt(alphabet.length)]);
+      }
+      byte[] expected = chars.toString().getBytes(StandardCharsets.UTF_8);
+      assertArrayEquals(chars.toString(), expected, Utf8.encode(chars));
+      assertEquals(expected.length, Utf8.encodedLength(chars));
+    }
+  }
+}
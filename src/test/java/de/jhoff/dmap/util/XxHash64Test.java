@@ -0,0 +1,23 @@
+package de.jhoff.dmap.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.UnsupportedEncodingException;
+
+import org.junit.Test;
+
+public class XxHash64Test {
+  @Test
+  public void testReferenceValues() throws UnsupportedEncodingException {
+    assertEquals(0xEF46DB3751D8E999L, XxHash64.hash(new byte[0]));
+    assertEquals(0x44BC2CF5AD770999L, XxHash64.hash("abc".getBytes("UTF-8")));
+    // long enough for the striped main loop
+    assertEquals(0xFBCEA83C8A378BF1L, XxHash64.hash("Nobody inspects the spammish repetition".getBytes("UTF-8")));
+  }
+
+  @Test
+  public void testOffsetAndLength() throws UnsupportedEncodingException {
+    byte[] padded = "__abc__".getBytes("UTF-8");
+    assertEquals(XxHash64.hash("abc".getBytes("UTF-8"), 17), XxHash64.hash(padded, 2, 3, 17));
+  }
+}